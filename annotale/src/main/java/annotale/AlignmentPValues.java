@@ -5,15 +5,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.sequences.Sequence;
 import de.jstacs.io.FileManager;
 import de.jstacs.parameters.FileParameter;
-import de.jstacs.utils.DoubleList;
 import de.jstacs.utils.Normalisation;
 import de.jstacs.utils.Pair;
-import de.jstacs.utils.ToolBox;
 import de.jstacs.utils.graphics.PDFAdaptor;
 import annotale.BuildFamilies.FamilyResult;
 import annotale.Tools.Translator;
@@ -22,13 +21,34 @@ import annotale.alignmentCosts.RVDCosts;
 
 public class AlignmentPValues {
 
+    private static class CostDistribution {
+
+        private double minSum;
+        private double[] log10Cdf;
+
+        private CostDistribution(double minSum, double[] log10Cdf) {
+            this.minSum = minSum;
+            this.log10Cdf = log10Cdf;
+        }
+
+    }
+
     private double[][] cost;
     private double[][] prob;
 
+    private double binWidth;
+    private int[][] costBins;
+    private double[][] binProb;
+
+    private ConcurrentHashMap<String, CostDistribution> cache;
+
     private static int n = 0;
 
     private static double doublePrec = 1E-3;
 
+    // tolerance for ties with the threshold, in bins
+    private static double tiePrec = 1E-6;
+
     public AlignmentPValues(TALE[] allTales, RVDCosts costs) {
 
         AlphabetContainer rvdAlph = allTales[0].getRvdSequence().getAlphabetContainer();
@@ -73,6 +93,37 @@ public class AlignmentPValues {
 
         }
 
+        // common grid of all cost differences, so distributions can be convolved on integer bins
+        long grid = 0;
+        for (int i = 0; i < cost.length; i++) {
+            for (int j = 1; j < cost[i].length; j++) {
+                grid = gcd(grid, Math.round((cost[i][j] - cost[i][0]) / doublePrec));
+            }
+        }
+        binWidth = (grid == 0 ? 1 : grid) * doublePrec;
+
+        costBins = new int[cost.length][];
+        binProb = new double[cost.length][];
+        for (int i = 0; i < cost.length; i++) {
+            costBins[i] = new int[cost[i].length];
+            binProb[i] = new double[cost[i].length];
+            for (int j = 0; j < cost[i].length; j++) {
+                costBins[i][j] = (int) Math.round((cost[i][j] - cost[i][0]) / binWidth);
+                binProb[i][j] = Math.exp(prob[i][j]);
+            }
+        }
+
+        cache = new ConcurrentHashMap<String, CostDistribution>();
+
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 	
 	
@@ -145,75 +196,119 @@ public class AlignmentPValues {
 
     public double getLog10PValue(Sequence rvds, double costThresh, double baseScore) {
 
-        double[] prevScores = new double[]{baseScore};
-        double[] prevProbs = new double[]{0};
+        int[] codes = getCodes(rvds);
 
-        for (int i = 0; i < rvds.getLength(); i++) {
-            int rvd = rvds.discreteVal(i);
-            double[] sc = cost[rvd];
-            double[] pr = prob[rvd];
+        return getLog10PValue(getDistribution(codes, 0, codes.length), costThresh, baseScore);
 
-            Pair<double[], double[]> pair = joinAggregateAndFilter(prevScores, prevProbs, sc, pr,
-                  costThresh);
+    }
 
-            prevScores = pair.getFirstElement();
-            prevProbs = pair.getSecondElement();
-            if (prevScores.length == 0) {
-                return Double.NEGATIVE_INFINITY;
-            }
-            //	System.out.println(i+" "+prevScores.length);
-            //	System.out.println( Arrays.toString(prevScores) );
-            //	System.out.println( Arrays.toString(prevProbs) );
-        }
 
-        int i = 0;
-        while (i < prevScores.length && prevScores[i] < costThresh) {
-            i++;
+    /**
+     * Returns the distribution of alignment costs for the RVD sequence of the given TALE, which is
+     * computed only once per TALE and re-used for all later queries.
+     */
+    private CostDistribution getDistribution(TALE tale) {
+        Sequence rvds = tale.getRvdSequence();
+        int[] codes = getCodes(rvds);
+        StringBuffer key = new StringBuffer(codes.length);
+        for (int i = 0; i < codes.length; i++) {
+            key.append((char) codes[i]);
         }
+        String k = key.toString();
+        CostDistribution dist = cache.get(k);
+        if (dist == null) {
+            dist = getDistribution(codes, 0, codes.length);
+            cache.putIfAbsent(k, dist);
+        }
+        return dist;
+    }
 
-        return Normalisation.getLogSum(0, i, prevProbs) / Math.log(10);
-
-
+    private static int[] getCodes(Sequence rvds) {
+        int[] codes = new int[rvds.getLength()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = rvds.discreteVal(i);
+        }
+        return codes;
     }
 
 
-    private Pair<double[], double[]> joinAggregateAndFilter(double[] prevScores, double[] prevProbs,
-          double[] sc, double[] pr,
-          double costThresh) {
+    /**
+     * Convolves the per-RVD cost histograms of <code>codes[off..off+len)</code>. Probabilities are
+     * kept in linear space and re-scaled after each position, the scaling factors are accumulated
+     * in log-space.
+     */
+    private CostDistribution getDistribution(int[] codes, int off, int len) {
 
-        double[] tempSc = new double[prevScores.length * sc.length];
-        double[] tempPr = new double[prevProbs.length * pr.length];
-        for (int i = 0, k = 0; i < prevScores.length; i++) {
-            for (int j = 0; j < sc.length; j++, k++) {
-                tempSc[k] = prevScores[i] + sc[j];
-                tempPr[k] = prevProbs[i] + pr[j];
-            }
+        int maxBin = 0;
+        double minSum = 0;
+        for (int i = off; i < off + len; i++) {
+            int[] bins = costBins[codes[i]];
+            maxBin += bins[bins.length - 1];
+            minSum += cost[codes[i]][0];
         }
 
-        ToolBox.sortAlongWith(tempSc, tempPr);
-
-        DoubleList resSc = new DoubleList(tempSc.length);
-        DoubleList resPr = new DoubleList(tempSc.length);
-        int i = 0;
-        //System.out.println(tempSc.length);
-        while (i < tempSc.length) {
-
-            int j = i;
-            double prev = tempSc[j];
-			/*if(prev-costThresh > doublePrec){
-				break;
-			}*/
-            while (i < tempSc.length && Math.abs(tempSc[i] - prev) < doublePrec) {
-                i++;
+        double[] curr = new double[maxBin + 1];
+        double[] next = new double[maxBin + 1];
+        curr[0] = 1.0;
+        int currMax = 0;
+        double logScale = 0.0;
+
+        for (int i = off; i < off + len; i++) {
+            int rvd = codes[i];
+            int[] bins = costBins[rvd];
+            double[] pr = binProb[rvd];
+
+            int nextMax = currMax + bins[bins.length - 1];
+            Arrays.fill(next, 0, nextMax + 1, 0.0);
+            for (int b = 0; b <= currMax; b++) {
+                double p = curr[b];
+                if (p > 0) {
+                    for (int j = 0; j < bins.length; j++) {
+                        next[b + bins[j]] += p * pr[j];
+                    }
+                }
+            }
+
+            double max = 0;
+            for (int b = 0; b <= nextMax; b++) {
+                if (next[b] > max) {
+                    max = next[b];
+                }
+            }
+            for (int b = 0; b <= nextMax; b++) {
+                next[b] /= max;
             }
+            logScale += Math.log(max);
 
-            resSc.add(prev);
-            //System.out.println(j+" "+i);
-            resPr.add(Normalisation.getLogSum(j, i, tempPr));
+            double[] temp = curr;
+            curr = next;
+            next = temp;
+            currMax = nextMax;
         }
-        //System.out.println();
 
-        return new Pair<double[], double[]>(resSc.toArray(), resPr.toArray());
+        double[] log10Cdf = new double[currMax + 1];
+        double sum = 0;
+        for (int b = 0; b <= currMax; b++) {
+            sum += curr[b];
+            log10Cdf[b] = (Math.log(sum) + logScale) / Math.log(10);
+        }
+
+        return new CostDistribution(minSum, log10Cdf);
+    }
+
+
+    private double getLog10PValue(CostDistribution dist, double costThresh, double baseScore) {
+        // strictly smaller than the threshold; the tolerance only absorbs rounding of exact ties
+        // and stays far below one bin, as thresholds including gap costs need not lie on the grid
+        double limit = (costThresh - baseScore - dist.minSum) / binWidth - tiePrec;
+        if (limit <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (limit > dist.log10Cdf.length) {
+            return Math.min(0.0, dist.log10Cdf[dist.log10Cdf.length - 1]);
+        }
+        int b = (int) Math.ceil(limit) - 1;
+        return dist.log10Cdf[b];
     }
 
 
@@ -265,7 +360,6 @@ public class AlignmentPValues {
     public double getLog10PValue(TALE tale, TALE tale2, double sc, double extraGapOpening,
           double extraGapExtension) {
 
-        String str = null;
         //tale should always be the shorter one
         if (tale.getNumberOfRepeats() > tale2.getNumberOfRepeats()) {
             TALE temp = tale;
@@ -274,25 +368,35 @@ public class AlignmentPValues {
 
         }
 
-        Sequence rvd = tale.getRvdSequence();
-        Sequence rvd2 = tale2.getRvdSequence();
+        int[] rvd2 = getCodes(tale2.getRvdSequence());
+        int len = tale.getRvdSequence().getLength();
+
+        CostDistribution q = getDistribution(tale);
+        CostDistribution full2 = null;
 
         double sum = 0.0;
         double sumq = 0.0;
-        int l = rvd2.getLength() - rvd.getLength() + 1;
+        int l = rvd2.length - len + 1;
         for (int i = 0; i < l; i++) {
             double base =
                   ((i > 0 && l > 1) ? extraGapOpening : 0) + (i < l - 1 && l > 1 ? extraGapOpening
                         : 0) + (l - 1) * extraGapExtension;
-            //System.out.println(rvd+"\n"+rvd2+" "+base+" "+sc);
-            double p = this.getLog10PValue(rvd2.getSubSequence(i, rvd.getLength()), sc,
-                  base);//TODO gaps
+            CostDistribution window;
+            if (l == 1) {
+                if (full2 == null) {
+                    full2 = getDistribution(tale2);
+                }
+                window = full2;
+            } else {
+                window = getDistribution(rvd2, i, len);
+            }
+            double p = getLog10PValue(window, sc, base);//TODO gaps
             p = log1m(p * Math.log(10));
             sum += p;
 
-            double q = this.getLog10PValue(rvd, sc, base);//TODO gaps
-            q = log1m(q * Math.log(10));
-            sumq += q;
+            double qp = getLog10PValue(q, sc, base);//TODO gaps
+            qp = log1m(qp * Math.log(10));
+            sumq += qp;
         }
 
         //double p1 = log1m( sum );
@@ -12,6 +12,10 @@ import java.text.NumberFormat;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.jstacs.algorithms.alignment.Alignment.AlignmentType;
 import de.jstacs.algorithms.alignment.StringAlignment;
@@ -157,77 +161,133 @@ public class BuildFamilies {
 
     public static FamilyResult[] getFamilyResults(TALEFamily[] fams, double pval,
           TALEFamilyBuilder builder, int offset) {
+        return getFamilyResults(fams, pval, builder, offset, 1);
+    }
 
-        Costs costs = builder.getCosts();
-
-        AlignmentPValues pv = null;
+    /**
+     * Compares each of the families starting at <code>offset</code> to all other families using
+     * <code>threads</code> threads. If the builder uses the same alignment type and gap costs as
+     * the family comparison, alignment costs are taken from the builder by
+     * {@link TALEFamilyBuilder#getDistance(TALE, TALE)}. Otherwise, all pairs are realigned, which
+     * is reported on standard error. Alignments are only computed for significant pairs. The
+     * results are in the order of <code>fams</code> irrespective of the number of threads.
+     */
+    public static FamilyResult[] getFamilyResults(TALEFamily[] fams, double pval,
+          TALEFamilyBuilder builder, int offset, int threads) {
 
-        if (costs instanceof AffineCosts
-              && ((AffineCosts) costs).getInternalCosts() instanceof RVDCosts) {
+        AlignmentPValues pv = builder.getAlignmentPValues();
 
-            pv = new AlignmentPValues(builder.getAllTALEs(),
-                  (RVDCosts) ((AffineCosts) costs).getInternalCosts());
+        boolean useBuilder = builder.getAlignmentType() == at
+              && builder.getExtraGapOpening() == extraGapOpening
+              && builder.getExtraGapExtension() == extraGapExtension;
+        if (!useBuilder) {
+            System.err.println("Alignment parameters of the class builder differ from those for "
+                  + "comparing families, re-aligning all pairs of TALEs.");
         }
 
         FamilyResult[] ress = new FamilyResult[fams.length - offset];
 
-        for (int i = offset; i < fams.length; i++) {
-            TALE[] members = fams[i].getFamilyMembers();
-            LinkedList<TALEFamily> relFams = new LinkedList<TALEFamilyBuilder.TALEFamily>();
-            LinkedList<TALE[]> relsTales = new LinkedList<TALE[]>();
-            LinkedList<StringAlignment[]> relsAls = new LinkedList<StringAlignment[]>();
-            LinkedList<int[]> relsMys = new LinkedList<int[]>();
-            LinkedList<double[]> relPs = new LinkedList<double[]>();
-            for (int j = 0; j < fams.length; j++) {
-                if (i != j) {
-
-                    LinkedList<TALE> relTales = new LinkedList<TALE>();
-                    LinkedList<StringAlignment> relAls = new LinkedList<StringAlignment>();
-                    IntList relMy = new IntList();
-                    DoubleList relP = new DoubleList();
-                    TALE[] members2 = fams[j].getFamilyMembers();
-                    for (int k = 0; k < members.length; k++) {
-                        for (int l = 0; l < members2.length; l++) {
-
-                            StringAlignment al = TALEAligner.align(members[k], members2[l], costs,
-                                  at, extraGapOpening, extraGapExtension);
-                            if (pv != null) {
-                                double p = pv.getLog10PValue(members[k], members2[l], al.getCost(),
+        if (threads <= 1 || ress.length <= 1) {
+            for (int i = offset; i < fams.length; i++) {
+                ress[i - offset] = getFamilyResult(fams, i, pval, builder, pv, useBuilder);
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                LinkedList<Future<FamilyResult>> futures = new LinkedList<Future<FamilyResult>>();
+                for (int i = offset; i < fams.length; i++) {
+                    final int fi = i;
+                    futures.add(pool.submit(
+                          () -> getFamilyResult(fams, fi, pval, builder, pv, useBuilder)));
+                }
+                for (int i = 0; i < ress.length; i++) {
+                    ress[i] = futures.removeFirst().get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        return ress;
+    }
+
+
+    private static FamilyResult getFamilyResult(TALEFamily[] fams, int i, double pval,
+          TALEFamilyBuilder builder, AlignmentPValues pv, boolean useBuilder) {
+
+        Costs costs = builder.getCosts();
+
+        double logPval = Math.log10(pval);
+
+        TALE[] members = fams[i].getFamilyMembers();
+        LinkedList<TALEFamily> relFams = new LinkedList<TALEFamilyBuilder.TALEFamily>();
+        LinkedList<TALE[]> relsTales = new LinkedList<TALE[]>();
+        LinkedList<StringAlignment[]> relsAls = new LinkedList<StringAlignment[]>();
+        LinkedList<int[]> relsMys = new LinkedList<int[]>();
+        LinkedList<double[]> relPs = new LinkedList<double[]>();
+        for (int j = 0; pv != null && j < fams.length; j++) {
+            if (i != j) {
+
+                LinkedList<TALE> relTales = new LinkedList<TALE>();
+                LinkedList<StringAlignment> relAls = new LinkedList<StringAlignment>();
+                IntList relMy = new IntList();
+                DoubleList relP = new DoubleList();
+                TALE[] members2 = fams[j].getFamilyMembers();
+                for (int k = 0; k < members.length; k++) {
+                    for (int l = 0; l < members2.length; l++) {
+
+                        StringAlignment al = null;
+                        double cost;
+                        if (useBuilder) {
+                            cost = builder.getDistance(members[k], members2[l]);
+                        } else {
+                            al = TALEAligner.align(members[k], members2[l], costs, at,
+                                  extraGapOpening, extraGapExtension);
+                            cost = al.getCost();
+                        }
+
+                        double p = pv.getLog10PValue(members[k], members2[l], cost,
+                              extraGapOpening, extraGapExtension);
+                        if (p < logPval) {
+                            if (al == null) {
+                                al = TALEAligner.align(members[k], members2[l], costs, at,
                                       extraGapOpening, extraGapExtension);
-                                if (p < Math.log10(pval)) {
-                                    relTales.add(members2[l]);
-                                    relAls.add(al);
-                                    relMy.add(k);
-                                    relP.add(p);
-                                }
                             }
-
+                            relTales.add(members2[l]);
+                            relAls.add(al);
+                            relMy.add(k);
+                            relP.add(p);
                         }
-                    }
 
-                    if (relTales.size() > 0) {
-                        relFams.add(fams[j]);
-                        relsTales.add(relTales.toArray(new TALE[0]));
-                        relsAls.add(relAls.toArray(new StringAlignment[0]));
-                        relsMys.add(relMy.toArray());
-                        relPs.add(relP.toArray());
                     }
                 }
 
+                if (relTales.size() > 0) {
+                    relFams.add(fams[j]);
+                    relsTales.add(relTales.toArray(new TALE[0]));
+                    relsAls.add(relAls.toArray(new StringAlignment[0]));
+                    relsMys.add(relMy.toArray());
+                    relPs.add(relP.toArray());
+                }
             }
 
-            ress[i - offset] = new FamilyResult(fams[i], relFams.toArray(new TALEFamily[0]),
-                  relsTales.toArray(new TALE[0][0]), relsAls.toArray(new StringAlignment[0][0]),
-                  relPs.toArray(new double[0][0]), relsMys.toArray(new int[0][0]));
-
         }
 
-        return ress;
+        return new FamilyResult(fams[i], relFams.toArray(new TALEFamily[0]),
+              relsTales.toArray(new TALE[0][0]), relsAls.toArray(new StringAlignment[0][0]),
+              relPs.toArray(new double[0][0]), relsMys.toArray(new int[0][0]));
     }
 
 
     public static Pair<TALEFamilyBuilder, FamilyResult[]> build(TALE[] ttales, double cut,
           double pval) throws NonParsableException, IOException {
+        return build(ttales, cut, pval, 1);
+    }
+
+    public static Pair<TALEFamilyBuilder, FamilyResult[]> build(TALE[] ttales, double cut,
+          double pval, int threads) throws NonParsableException, IOException {
         RVDCosts rvdCosts = new RVDCosts(1.0, 0.2, 0.8, 0.0);//TODO
         Costs costs = new AffineCosts(5.0, 5.0, rvdCosts);
 
@@ -243,7 +303,7 @@ public class BuildFamilies {
 
         TALEFamily[] fams = builder.getFamilies();
 
-        FamilyResult[] ress = getFamilyResults(fams, pval, builder, 0);
+        FamilyResult[] ress = getFamilyResults(fams, pval, builder, 0, threads);
 
         return new Pair<TALEFamilyBuilder, FamilyResult[]>(builder, ress);
 
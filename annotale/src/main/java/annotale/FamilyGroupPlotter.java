@@ -98,6 +98,19 @@ public class FamilyGroupPlotter extends TALEFamilyTreePlotter {
 
         graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, graphics.getFont().getSize()));
 
+        return getLayout(graphics, tree).dimension.clone();
+    }
+
+    /**
+     * Measures the plot of <code>tree</code> and lays out its edges, or returns the layout of the
+     * previous call for the same tree and font size.
+     */
+    private Layout getLayout(Graphics2D graphics, ClusterTree<TALEFamily> tree) {
+        int fontSize = graphics.getFont().getSize();
+        if (layout != null && layout.source == tree && layout.fontSize == fontSize) {
+            return layout;
+        }
+
         int height = getHeight(tree.getNumberOfElements());
         int treeWidth = height;
         double[] idDim = getIDFontDimensions(graphics, tree.getClusterElements());
@@ -106,8 +119,12 @@ public class FamilyGroupPlotter extends TALEFamilyTreePlotter {
 
         int idWidth = (int) Math.ceil(idDim[0] * rat);
 
-        return new int[]{treeWidth + idWidth + 2 * lineHeight,
+        int[] dimension = new int[]{treeWidth + idWidth + 2 * lineHeight,
               height + (tree.getNumberOfElements() > 1 ? 2 * lineHeight : 0)};
+
+        layout = new Layout(tree, fontSize, rat, idWidth, dimension,
+              getEdges(tree, treeWidth, 0));
+        return layout;
     }
 
     public PlotGenerator getPlotGenerator(ClusterTree<TALEFamily> tree) {
@@ -131,16 +148,12 @@ public class FamilyGroupPlotter extends TALEFamilyTreePlotter {
         int xoff = treeWidth;
         int yoff = (int) Math.ceil(lineHeight * 1.5);
 
-        double[] idDim = getIDFontDimensions(graphics, members);
-
-        double rat = lineHeight / idDim[1];
-
-        int idWidth = (int) Math.ceil(idDim[0] * rat);
+        Layout layout = getLayout(graphics, tree);
 
         graphics.setFont(new Font(graphics.getFont().getFontName(), graphics.getFont().getStyle(),
-              (int) Math.floor(graphics.getFont().getSize() * rat)));
+              (int) Math.floor(graphics.getFont().getSize() * layout.rat)));
 
-        plotTree(graphics, treeWidth, tree, 0, 0);
+        plotTree(graphics, treeWidth, tree, layout.edges);
 
         plotIDs(graphics, members, xoff, yoff);
 
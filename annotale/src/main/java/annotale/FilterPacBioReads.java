@@ -1,140 +1,305 @@
 package annotale;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.util.HashSet;
-
-import de.jstacs.data.alphabets.DNAAlphabetContainer;
-import de.jstacs.data.sequences.Sequence;
-import de.jstacs.sequenceScores.statisticalModels.differentiable.homogeneous.HomogeneousMMDiffSM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.AbstractHMM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.HMMFactory;
-import de.jstacs.utils.Pair;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import de.jstacs.data.WrongAlphabetException;
 import annotale.tools.TALEPredictionTool;
 
+/**
+ * Splits the reads of a FastQ file into those with and without TALE repeats on either strand.
+ * <br>
+ * Usage: <code>FilterPacBioReads &lt;reads.fastq[.gz]&gt; [&lt;threads&gt;]
+ * [&lt;output prefix&gt;]</code>
+ * <br>
+ * The reads are written to <code>&lt;output prefix&gt;_repeats.fastq</code> and
+ * <code>&lt;output prefix&gt;_norepeats.fastq</code>, gzipped (with suffix <code>.gz</code>) if the
+ * input is. The output prefix defaults to the input file. One thread reads batches of
+ * {@link #BATCH_SIZE} reads, the batches are checked on a pool of threads, and one thread writes
+ * them in input order, so the outputs do not depend on the number of threads.
+ */
 public class FilterPacBioReads {
 
+    /**
+     * Number of reads checked by one task.
+     */
+    private static final int BATCH_SIZE = 1000;
+
     public static void main(String[] args) throws Exception {
 
+        if (args.length < 1) {
+            System.err.println(
+                  "Usage: FilterPacBioReads <reads.fastq[.gz]> [<threads>] [<output prefix>]");
+            System.exit(1);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+              : Runtime.getRuntime().availableProcessors();
+        String prefix = args.length > 2 ? args[2] : args[0];
+        boolean gzip = args[0].endsWith(".gz");
+        String suffix = gzip ? ".fastq.gz" : ".fastq";
+
         Reader repeatHMMer = new InputStreamReader(TALEPredictionTool.class.getClassLoader()
               .getResourceAsStream("annotale/data/repeats.hmm"));
 
-        StringBuffer consensus = new StringBuffer();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> repeats = HMMFactory.parseProfileHMMFromHMMer(
-              repeatHMMer, consensus, null, null);
+        HMMerModel hmm = new HMMerModel(repeatHMMer);
 
         int frag = 10;
-        HashSet<String> parts = new HashSet<String>();
-        for (int i = 0; i < consensus.length() / frag; i++) {
-            parts.add(consensus.substring(i * frag, (i + 1) * frag).toUpperCase());
-        }
-
-        BufferedReader read = new BufferedReader(new FileReader(args[0]));
+        SeedFilter seeds = new SeedFilter(hmm.getConsensus(), frag);
 
-        PrintWriter no = new PrintWriter(args[0] + "_norepeats.fastq");
-        PrintWriter re = new PrintWriter(args[0] + "_repeats.fastq");
+        BufferedReader read = new BufferedReader(new InputStreamReader(open(args[0], gzip),
+              "US-ASCII"), 1 << 16);
 
-        String str = null;
-        int i = 0;
+        Writer no = create(prefix + "_norepeats" + suffix, gzip);
+        Writer re = create(prefix + "_repeats" + suffix, gzip);
 
-        String head = null;
-        String seq = null;
-        String qual = null;
-        boolean use = false;
-
-        while ((str = read.readLine()) != null) {
-            if (i % 4 == 0) {
-                head = str;
-            } else if ((i - 1) % 4 == 0) {
-                seq = str;
-                use = !findRepeats(Sequence.create(DNAAlphabetContainer.SINGLETON, seq),
-                      repeats.getFirstElement(), repeats.getSecondElement(), parts, frag,
-                      consensus.length());
-                use &= !findRepeats(
-                      Sequence.create(DNAAlphabetContainer.SINGLETON, seq).reverseComplement(),
-                      repeats.getFirstElement(), repeats.getSecondElement(), parts, frag,
-                      consensus.length());
-            } else if ((i - 3) % 4 == 0) {
-                qual = str;
-                PrintWriter temp = null;
-                if (use) {
-                    temp = no;
-                } else {
-                    temp = re;
-                }
-                temp.println(head);
-                temp.println(seq);
-                temp.println("+");
-                temp.println(qual);
-            }
-            i++;
+        try {
+            filter(read, no, re, hmm, seeds, threads);
+        } finally {
+            no.close();
+            re.close();
+            read.close();
         }
 
-        no.close();
-        re.close();
-        read.close();
+    }
 
+    private static InputStream open(String file, boolean gzip) throws IOException {
+        InputStream in = new FileInputStream(file);
+        return gzip ? new GZIPInputStream(in, 1 << 16) : in;
     }
 
+    private static Writer create(String file, boolean gzip) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, "US-ASCII"), 1 << 16);
+    }
 
-    public static boolean findRepeats(Sequence seq, AbstractHMM hmm, HomogeneousMMDiffSM hom,
-          HashSet<String> parts, int frag, int consensusLength) throws Exception {
+    /**
+     * Writes the FastQ records of <code>reads</code> with TALE repeats on either strand to
+     * <code>repeats</code> and all others to <code>noRepeats</code>, in input order. The records are
+     * checked in batches on <code>threads</code> threads, while at most a few batches per thread
+     * are held in memory.
+     *
+     * @param reads the reads, four lines per record
+     * @param noRepeats the output for reads without repeats
+     * @param repeats the output for reads with repeats
+     * @param hmm the profile HMM of the repeats and its background model
+     * @param seeds the prefilter for the windows scored by <code>hmm</code>
+     * @param threads the number of threads checking reads
+     * @return the number of reads with repeats
+     * @throws Exception if the reads could not be read, checked or written
+     */
+    public static long filter(BufferedReader reads, Writer noRepeats, Writer repeats,
+          HMMerModel hmm, SeedFilter seeds, int threads) throws Exception {
+        threads = Math.max(1, threads);
+        ThreadLocal<RepeatCheck> checks = new ThreadLocal<RepeatCheck>();
 
-        int numLay = consensusLength;
-        numLay = (int) Math.round(numLay * 1.1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            //the single writer thread writes the batches in the order they were submitted
+            LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+            long found = 0;
+            String[] batch = null;
+            while ((batch = readBatch(reads)) != null) {
+                String[] records = batch;
+                Future<boolean[]> checked = pool.submit(
+                      () -> getCheck(checks, hmm, seeds).check(records));
+                pending.add(writer.submit(() -> write(records, checked.get(), noRepeats,
+                      repeats)));
+                if (pending.size() > 4 * threads) {
+                    found += pending.removeFirst().get();
+                }
+            }
+            while (!pending.isEmpty()) {
+                found += pending.removeFirst().get();
+            }
+            return found;
+        } finally {
+            pool.shutdownNow();
+            writer.shutdownNow();
+        }
+    }
 
-        int w = numLay;
+    /**
+     * Returns the repeat check of the calling thread.
+     */
+    private static RepeatCheck getCheck(ThreadLocal<RepeatCheck> checks, HMMerModel hmm,
+          SeedFilter seeds) {
+        RepeatCheck check = checks.get();
+        if (check == null) {
+            check = new RepeatCheck(hmm, seeds);
+            checks.set(check);
+        }
+        return check;
+    }
 
-        double t = consensusLength * Math.log(1.2);
+    /**
+     * Reads up to {@link #BATCH_SIZE} records as header, sequence, and quality lines, or returns
+     * <code>null</code> at the end of <code>reads</code>.
+     */
+    private static String[] readBatch(BufferedReader reads) throws IOException {
+        String[] batch = new String[3 * BATCH_SIZE];
+        int n = 0;
+        String head = null;
+        while (n < batch.length && (head = reads.readLine()) != null) {
+            String seq = reads.readLine();
+            //the separator line is written as '+' only
+            reads.readLine();
+            String qual = reads.readLine();
+            if (qual == null) {
+                throw new IOException("Incomplete FastQ record " + head);
+            }
+            batch[n++] = head;
+            batch[n++] = seq;
+            batch[n++] = qual;
+        }
+        if (n == 0) {
+            return null;
+        } else if (n < batch.length) {
+            String[] temp = new String[n];
+            System.arraycopy(batch, 0, temp, 0, n);
+            batch = temp;
+        }
+        return batch;
+    }
+
+    private static int write(String[] records, boolean[] repeat, Writer noRepeats, Writer repeats)
+          throws IOException {
+        int found = 0;
+        for (int i = 0; i < repeat.length; i++) {
+            Writer temp = null;
+            if (repeat[i]) {
+                temp = repeats;
+                found++;
+            } else {
+                temp = noRepeats;
+            }
+            temp.write(records[3 * i]);
+            temp.write('\n');
+            temp.write(records[3 * i + 1]);
+            temp.write("\n+\n");
+            temp.write(records[3 * i + 2]);
+            temp.write('\n');
+        }
+        return found;
+    }
 
-        double maxVal = Double.NEGATIVE_INFINITY;
+    /**
+     * Checks reads for TALE repeats on both strands. Each thread uses its own instance, whose
+     * buffers are reused for all reads and only grow with the longest read seen so far.
+     */
+    private static class RepeatCheck {
 
-        int num = -1;
+        private final HMMerModel hmm;
+        private final SeedFilter seeds;
+        private final int consensusLength;
+        private final int w;
+        private final double t;
+        private final ProfileHMM.Workspace ws;
 
-        for (int j = 0; j < seq.getLength() - w + 1; j++) {
+        private byte[] codes;
+        private int[] counts;
+        private double[] bg;
+        private double[] scores;
 
-            Sequence sub = seq.getSubSequence(j, w);
+        private RepeatCheck(HMMerModel hmm, SeedFilter seeds) {
+            this.hmm = hmm;
+            this.seeds = seeds;
+            this.consensusLength = hmm.getConsensus().length();
+            this.w = (int) Math.round(consensusLength * 1.1);
+            this.t = consensusLength * Math.log(1.2);
+            this.ws = hmm.getHMM().createWorkspace();
+            this.codes = new byte[0];
+        }
 
-            if (num == -1) {
-                num = 0;
-                String substr = sub.toString();
-                String[] parts2 = parts.toArray(new String[0]);
-                for (int k = 0; k < parts2.length; k++) {
-                    if (substr.indexOf(parts2[k]) > -1) {
-                        num++;
+        private boolean[] check(String[] records) throws Exception {
+            boolean[] repeat = new boolean[records.length / 3];
+            for (int i = 0; i < repeat.length; i++) {
+                String read = records[3 * i + 1];
+                int len = read.length();
+                if (len > codes.length) {
+                    grow(len);
+                }
+                ProfileHMM.encode(read, false, codes);
+                for (int j = 0; j < len; j++) {
+                    if (codes[j] < 0) {
+                        throw new WrongAlphabetException("Only A, C, G, and T can be scored, found "
+                              + read.charAt(j) + " in " + records[3 * i] + ".");
                     }
                 }
+                repeat[i] = hasRepeats(len);
+                if (!repeat[i]) {
+                    reverseComplement(len);
+                    repeat[i] = hasRepeats(len);
+                }
             }
+            return repeat;
+        }
 
-            if (num > parts.size() / 3) {
-                double fg = hmm.getLogProbFor(sub);
-                double bg = hom.getLogProbFor(sub);
-                double rat = fg - bg;
-                if (rat > maxVal) {
-                    maxVal = rat;
-                }
+        private void grow(int len) {
+            len = Math.max(len, 2 * codes.length);
+            codes = new byte[len];
+            counts = new int[len + w];
+            bg = new double[len];
+            scores = new double[len];
+        }
+
+        /**
+         * Replaces the first <code>len</code> codes by their reverse complement.
+         */
+        private void reverseComplement(int len) {
+            for (int i = 0, j = len - 1; i <= j; i++, j--) {
+                byte temp = codes[i];
+                codes[i] = (byte) (3 - codes[j]);
+                codes[j] = (byte) (3 - temp);
             }
+        }
 
-            if (j < seq.getLength() - w) {
-                String substr1 = seq.toString(j, j + frag);
-                String substr2 = seq.toString(j + w - frag + 1, j + w + 1);
-                if (parts.contains(substr1)) {
-                    num--;
-                }
-                if (parts.contains(substr2)) {
-                    num++;
+        /**
+         * Checks if any window of the first <code>len</code> codes with enough seeds scores above
+         * the threshold. Each stretch of such windows is scored by one Forward pass with free
+         * start, and the window starting at <code>s</code> is scored at its consensus end
+         * <code>s + consensusLength - 1</code>.
+         */
+        private boolean hasRepeats(int len) throws Exception {
+            int n = Math.max(0, len - w + 1);
+            seeds.countSeeds(codes, 0, n, w, counts);
+            int minSeeds = seeds.getNumberOfSeeds() / 3;
+            for (int j = 0; j < n; j++) {
+                if (counts[j] > minSeeds) {
+                    int last = j;
+                    while (last + 1 < n && counts[last + 1] > minSeeds) {
+                        last++;
+                    }
+                    hmm.getLogOddsScores(codes, j, last + consensusLength - 1, bg, scores, ws);
+                    for (int e = consensusLength - 1; e <= last - j + consensusLength - 1; e++) {
+                        if (scores[e] > t) {
+                            return true;
+                        }
+                    }
+                    j = last;
                 }
             }
-        }
-        //System.out.println(maxVal+" > "+t);
-        if (maxVal > t) {
-            return true;
-        } else {
             return false;
         }
+
     }
 
 }
@@ -0,0 +1,229 @@
+package annotale;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.LinkedList;
+
+import de.jstacs.data.WrongAlphabetException;
+import de.jstacs.data.alphabets.DNAAlphabetContainer;
+import de.jstacs.data.sequences.Sequence;
+import de.jstacs.sequenceScores.statisticalModels.differentiable.homogeneous.HomogeneousMMDiffSM;
+import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.AbstractHMM;
+import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.HMMFactory;
+import de.jstacs.utils.IntList;
+import de.jstacs.utils.Pair;
+
+
+/**
+ * Profile HMM read from a HMMer3 file, together with its background model and its consensus. The
+ * profile HMM is scored by {@link ProfileHMM}, while the background model and the consensus are
+ * taken from {@link HMMFactory#parseProfileHMMFromHMMer(Reader, StringBuffer, LinkedList,
+ * LinkedList)}. The file is read once for both.
+ * <br>
+ * The conditional probabilities of the background model are tabulated once, so instances are
+ * immutable and may be used by several threads at once.
+ */
+public class HMMerModel {
+
+    private final ProfileHMM hmm;
+    private final HomogeneousMMDiffSM background;
+    private final String consensus;
+    //log-probability of a symbol given its preceding i symbols under the background model in
+    //backgroundLogProbs[i], indexed by the 2-bit codes of context and symbol; i is less than the
+    //order only at the start of a sequence
+    private final double[][] backgroundLogProbs;
+
+    /**
+     * Parses the profile HMM in <code>hmmer</code>.
+     *
+     * @param hmmer the contents of the HMMer3 file
+     * @throws Exception if the file could not be read or parsed
+     */
+    public HMMerModel(Reader hmmer) throws Exception {
+        String model = read(hmmer);
+        StringBuffer cons = new StringBuffer();
+        Pair<AbstractHMM, HomogeneousMMDiffSM> models = HMMFactory.parseProfileHMMFromHMMer(
+              new StringReader(model), cons, new LinkedList<Integer>(), new LinkedList<Integer>());
+        this.hmm = ProfileHMM.parse(new StringReader(model));
+        this.background = models.getSecondElement();
+        this.consensus = cons.toString();
+        this.backgroundLogProbs = tabulate(background);
+    }
+
+    private static double[][] tabulate(HomogeneousMMDiffSM background) throws Exception {
+        int order = background.getMaximalMarkovOrder();
+        double[][] logProbs = new double[order + 1][];
+        for (int i = 0; i <= order; i++) {
+            logProbs[i] = new double[1 << (2 * (i + 1))];
+            char[] kmer = new char[i + 1];
+            for (int key = 0; key < logProbs[i].length; key++) {
+                for (int p = 0; p <= i; p++) {
+                    kmer[p] = "ACGT".charAt((key >> (2 * (i - p))) & 3);
+                }
+                Sequence seq = Sequence.create(DNAAlphabetContainer.SINGLETON, new String(kmer));
+                logProbs[i][key] = background.getLogProbFor(seq, 0, i);
+                if (i > 0) {
+                    logProbs[i][key] -= background.getLogProbFor(seq, 0, i - 1);
+                }
+            }
+        }
+        return logProbs;
+    }
+
+    private static String read(Reader reader) throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+        StringBuffer sb = new StringBuffer();
+        String str = null;
+        while ((str = br.readLine()) != null) {
+            sb.append(str).append('\n');
+        }
+        br.close();
+        return sb.toString();
+    }
+
+    /**
+     * Returns the profile HMM.
+     *
+     * @return the HMM
+     */
+    public ProfileHMM getHMM() {
+        return hmm;
+    }
+
+    /**
+     * Returns the background model of the profile HMM. The Jstacs model keeps internal state
+     * while scoring, so it may only be used by one thread at a time.
+     *
+     * @return the background model
+     */
+    public HomogeneousMMDiffSM getBackground() {
+        return background;
+    }
+
+    /**
+     * Returns the consensus of the profile HMM.
+     *
+     * @return the consensus
+     */
+    public String getConsensus() {
+        return consensus;
+    }
+
+    /**
+     * Returns the log-probability of positions <code>start</code> to <code>end</code> (inclusive)
+     * of <code>seq</code> under the profile HMM.
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the log-probability
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public double getLogProb(Sequence seq, int start, int end) throws WrongAlphabetException {
+        return hmm.getLogProb(seq, start, end);
+    }
+
+    /**
+     * Returns the Viterbi path of positions <code>start</code> to <code>end</code> (inclusive) of
+     * <code>seq</code> under the profile HMM.
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the states of the path and its log-probability
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public Pair<IntList, Double> getViterbiPath(Sequence seq, int start, int end)
+          throws WrongAlphabetException {
+        return hmm.getViterbiPath(seq, start, end);
+    }
+
+    /**
+     * Returns the log-odds of all sub-sequences of <code>seq</code> starting at or after
+     * <code>start</code> and ending at each position <code>e</code> up to <code>end</code>, indexed
+     * by <code>e - start</code>, see {@link ProfileHMM#getLogOddsScores(byte[], int, int, double[],
+     * double[], ProfileHMM.Workspace)}. The background probability of each position is conditional
+     * on its preceding positions up to the order of the background model.
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the scores
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public double[] getLogOddsScores(Sequence seq, int start, int end)
+          throws WrongAlphabetException {
+        //the context of the first position is encoded as well
+        int first = Math.max(0, start - getBackgroundOrder());
+        byte[] codes = ProfileHMM.encode(seq, first, end);
+        double[] bg = new double[end - start + 1];
+        double[] scores = new double[end - start + 1];
+        getLogOddsScores(codes, start - first, end - first, bg, scores, hmm.createWorkspace());
+        return scores;
+    }
+
+    /**
+     * Stores the log-odds of all sub-sequences of the encoded sequence <code>codes</code> starting
+     * at or after <code>start</code> and ending at each position <code>e</code> up to
+     * <code>end</code> in <code>scores[e - start]</code>, using the given buffers instead of
+     * allocating new ones. The background probabilities are conditional on the preceding positions
+     * of <code>codes</code>, where position <code>0</code> is taken as start of the sequence.
+     *
+     * @param codes the encoded sequence, see {@link ProfileHMM#encode(CharSequence, boolean,
+     *        byte[])}
+     * @param start the first position
+     * @param end the last position
+     * @param bg the buffer for the background log-probabilities, at least <code>end - start +
+     *        1</code> long
+     * @param scores the array for the scores, at least <code>end - start + 1</code> long
+     * @param ws the buffers of the calling thread, created by {@link ProfileHMM#createWorkspace()}
+     * @throws WrongAlphabetException if the positions or their context contain other symbols than
+     *         A, C, G, and T
+     */
+    public void getLogOddsScores(byte[] codes, int start, int end, double[] bg, double[] scores,
+          ProfileHMM.Workspace ws) throws WrongAlphabetException {
+        int order = getBackgroundOrder();
+        for (int i = start; i <= end; i++) {
+            int c = Math.max(0, i - order);
+            int key = 0;
+            for (int p = c; p <= i; p++) {
+                if (codes[p] < 0) {
+                    throw new WrongAlphabetException(
+                          "Only A, C, G, and T can be scored, found other symbol at " + p + ".");
+                }
+                key = (key << 2) | codes[p];
+            }
+            bg[i - start] = backgroundLogProbs[i - c][key];
+        }
+        hmm.getLogOddsScores(codes, start, end, bg, scores, ws);
+    }
+
+    private int getBackgroundOrder() {
+        return backgroundLogProbs.length - 1;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>state</code> of a path returned by {@link
+     * #getViterbiPath(Sequence, int, int)} is a match state.
+     *
+     * @param state the state index
+     * @return if the state is a match state
+     */
+    public boolean isMatchState(int state) {
+        return hmm.isMatchState(state);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>state</code> of a path returned by {@link
+     * #getViterbiPath(Sequence, int, int)} is a silent state.
+     *
+     * @param state the state index
+     * @return if the state is silent
+     */
+    public boolean isSilentState(int state) {
+        return hmm.isSilentState(state);
+    }
+
+}
@@ -2,20 +2,20 @@ package annotale;
 
 import java.io.FileReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.jstacs.data.DNADataSet;
 import de.jstacs.data.DataSet;
 import de.jstacs.data.WrongAlphabetException;
 import de.jstacs.data.sequences.Sequence;
 import de.jstacs.data.sequences.WrongSequenceTypeException;
-import de.jstacs.sequenceScores.statisticalModels.differentiable.homogeneous.HomogeneousMMDiffSM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.AbstractHMM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.HMMFactory;
 import de.jstacs.tools.ProgressUpdater;
-import de.jstacs.utils.ComparableElement;
 import de.jstacs.utils.DoubleList;
 import de.jstacs.utils.IntList;
 import de.jstacs.utils.Pair;
@@ -25,6 +25,14 @@ import annotale.Tools.Translator;
 
 public class NHMMer {
 
+    /**
+     * Number of window positions scanned by one task of {@link #findRepeats(DataSet, HMMerModel,
+     * ProgressUpdater, double, boolean, int)}. Longer contigs are split
+     * into chunks of this many windows, which overlap by the window width minus one. The chunks do
+     * not depend on the number of threads, so neither do the results.
+     */
+    private static final int CHUNK_SIZE = 500000;
+
     public static void main(String[] args) throws Exception {
         DNADataSet ds = new DNADataSet(args[3]);
 
@@ -41,128 +49,131 @@ public class NHMMer {
 
     public static int[][] run(Reader repeatHMMer, Reader startHMMer, Reader endHMMer, DataSet ds,
           ProgressUpdater progress, boolean sensitive) throws Exception {
-        StringBuffer repeatConsensus = new StringBuffer();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> repeats = HMMFactory.parseProfileHMMFromHMMer(
-              repeatHMMer, repeatConsensus, null, null);
-
-        StringBuffer startConsensus = new StringBuffer();
-        LinkedList<Integer> startMatchStates = new LinkedList<Integer>();
-        LinkedList<Integer> startSilentStates = new LinkedList<Integer>();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> start = HMMFactory.parseProfileHMMFromHMMer(
-              startHMMer, startConsensus, startMatchStates, startSilentStates);
-
-        StringBuffer endConsensus = new StringBuffer();
-        LinkedList<Integer> endMatchStates = new LinkedList<Integer>();
-        LinkedList<Integer> endSilentStates = new LinkedList<Integer>();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> end = HMMFactory.parseProfileHMMFromHMMer(endHMMer,
-              endConsensus, endMatchStates, endSilentStates);
+        return run(repeatHMMer, startHMMer, endHMMer, ds, progress, sensitive, 1);
+    }
 
-        progress.setLast(4.0);
+    /**
+     * Predicts TALE loci on both strands of all sequences in <code>ds</code>. Contigs (in chunks, if
+     * long) and strands are scanned for repeat regions on a pool of <code>threads</code> threads,
+     * and the termini of all regions found are refined in parallel afterwards. The loci are
+     * reported in the same order for any number of threads: first all on the forward strand, then
+     * all on the reverse strand, each by contig and position.
+     */
+    public static int[][] run(Reader repeatHMMer, Reader startHMMer, Reader endHMMer, DataSet ds,
+          ProgressUpdater progress, boolean sensitive, int threads) throws Exception {
+        return run(new HMMerModel(repeatHMMer), new HMMerModel(startHMMer),
+              new HMMerModel(endHMMer), ds, progress, sensitive, threads);
+    }
 
-        LinkedList<int[]> fwd = findRepeats(ds, repeats.getFirstElement(),
-              repeats.getSecondElement(), repeatConsensus.toString(), progress, 0.0, sensitive);
-        LinkedList<int[]> rev = findRepeats(ds.getReverseComplementaryDataSet(),
-              repeats.getFirstElement(), repeats.getSecondElement(), repeatConsensus.toString(),
-              progress, 1.0, sensitive);
+    /**
+     * Predicts TALE loci on both strands of all sequences in <code>ds</code> like {@link
+     * #run(Reader, Reader, Reader, DataSet, ProgressUpdater, boolean, int)}, but with models that
+     * have been parsed before, e.g., to scan several data sets.
+     */
+    public static int[][] run(HMMerModel repeats, HMMerModel start, HMMerModel end, DataSet ds,
+          ProgressUpdater progress, boolean sensitive, int threads) throws Exception {
+        progress.setLast(4.0);
 
-        int totalNum = fwd.size() + rev.size();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            ScanProgress scanned = new ScanProgress(progress, 0.0, getTotalLength(ds));
+            //both strands are submitted before waiting for either of them
+            ArrayList<Future<Pair<IntList, DoubleList>>> fwdScans = submitScans(pool, ds, true,
+                  repeats, sensitive, scanned);
+            ArrayList<Future<Pair<IntList, DoubleList>>> revScans = submitScans(pool, ds, false,
+                  repeats, sensitive, scanned);
 
-        double k = 0;
+            LinkedList<int[]> fwd = collectRepeats(ds, fwdScans, repeats.getConsensus());
+            LinkedList<int[]> rev = collectRepeats(ds, revScans, repeats.getConsensus());
 
-        LinkedList<int[]> list = new LinkedList<int[]>();
+            ScanProgress refined = new ScanProgress(progress, 2.0,
+                  (fwd.size() + rev.size()) / 2.0);
 
-        for (int i = 0; i < fwd.size(); i++, k++) {
-            int[] curr = fwd.get(i);
-            //System.out.println("curr: "+Arrays.toString( curr ));
-            int[] refinestartend = new int[]{curr[1], curr[2]};
-            //	System.out.println("repeats: "+Arrays.toString(refinestartend));
-            int[] nterm = getBestTerminus(ds, curr[0], curr[1], curr[2], true, true,
-                  start.getFirstElement(), start.getSecondElement(), startConsensus.toString(),
-                  startMatchStates, startSilentStates);
-            if (nterm != null) {
-                refinestartend[0] = nterm[0];
-            }
-            int[] cterm = getBestTerminus(ds, curr[0], curr[1], curr[2], true, false,
-                  end.getFirstElement(), end.getSecondElement(), endConsensus.toString(),
-                  endMatchStates, endSilentStates);
-            if (cterm != null) {
-                refinestartend[1] = cterm[1];
+            ArrayList<Future<int[]>> hits = new ArrayList<Future<int[]>>();
+            for (int[] curr : fwd) {
+                hits.add(pool.submit(() -> getTALELocus(ds, curr, true, start, end, refined)));
             }
-            //System.out.println("terms: "+Arrays.toString( nterm )+" "+Arrays.toString( cterm ));
-            int[] reg = refine(refinestartend[0], refinestartend[1], ds.getElementAt(curr[0]));
-            //System.out.println("refined: "+Arrays.toString( reg ));
-
-            int mRNALength =
-                  Math.max(refinestartend[1], reg[1]) - Math.min(refinestartend[0], reg[0]);
-            int cdsLength = reg[1] - reg[0];
-
-            if (mRNALength - startConsensus.length() / 3 > cdsLength
-                  || mRNALength - endConsensus.length() / 3 > cdsLength) {
-                list.add(new int[]{curr[0], reg[0], reg[1], +1, Math.min(refinestartend[0], reg[0]),
-                      Math.max(refinestartend[1], reg[1]), 1});
-            } else {
-                list.add(new int[]{curr[0], reg[0], reg[1], +1, reg[0], reg[1], 0});
+            for (int[] curr : rev) {
+                hits.add(pool.submit(() -> getTALELocus(ds, curr, false, start, end, refined)));
             }
 
-            progress.setCurrent(2.0 * k / totalNum + 2.0);
-
-        }
-
-        for (int i = 0; i < rev.size(); i++, k++) {
-            int[] curr = rev.get(i);
-            //System.out.println("curr: "+Arrays.toString( curr ));
-            int[] refinestartend = new int[]{curr[1], curr[2]};
-            //System.out.println("repeats: "+Arrays.toString(refinestartend));
-            int[] nterm = getBestTerminus(ds, curr[0], curr[1], curr[2], false, true,
-                  start.getFirstElement(), start.getSecondElement(), startConsensus.toString(),
-                  startMatchStates, startSilentStates);
-            if (nterm != null) {
-                refinestartend[0] = nterm[0];
-            }
-            int[] cterm = getBestTerminus(ds, curr[0], curr[1], curr[2], false, false,
-                  end.getFirstElement(), end.getSecondElement(), endConsensus.toString(),
-                  endMatchStates, endSilentStates);
-            if (cterm != null) {
-                refinestartend[1] = cterm[1];
-            }
-            //System.out.println("terms: "+Arrays.toString( nterm )+" "+Arrays.toString( cterm ));
-            int[] reg = refine(refinestartend[0], refinestartend[1],
-                  ds.getElementAt(curr[0]).reverseComplement());
-            //System.out.println("refined: "+Arrays.toString( reg ));
-            int el = ds.getElementAt(curr[0]).getLength();
-
-            int mRNALength =
-                  Math.max(refinestartend[1], reg[1]) - Math.min(refinestartend[0], reg[0]);
-            int cdsLength = reg[1] - reg[0];
-
-            if (mRNALength - startConsensus.length() / 3 > cdsLength
-                  || mRNALength - endConsensus.length() / 3 > cdsLength) {
-                list.add(new int[]{curr[0], el - reg[1], el - reg[0], -1,
-                      el - Math.max(refinestartend[1], reg[1]),
-                      el - Math.min(refinestartend[0], reg[0]), 1});
-            } else {
-                list.add(new int[]{curr[0], el - reg[1], el - reg[0], -1, el - reg[1], el - reg[0],
-                      0});
+            LinkedList<int[]> list = new LinkedList<int[]>();
+            for (Future<int[]> hit : hits) {
+                list.add(hit.get());
             }
-            progress.setCurrent(2.0 * k / totalNum + 2.0);
-        }
 
-        LinkedList<int[]> toRemove = new LinkedList<int[]>();
+            LinkedList<int[]> toRemove = new LinkedList<int[]>();
 
-        for (int i = 1; i < list.size(); i++) {
-            int[] temp = list.get(i - 1);
-            int[] temp2 = list.get(i);
-            if (temp[0] == temp2[0] && temp[3] == temp2[3]) {
-                if (temp[1] >= temp2[1] && temp[2] <= temp2[2]) {
-                    toRemove.add(temp);
-                } else if (temp[1] <= temp2[1] && temp[2] >= temp2[2]) {
-                    toRemove.add(temp2);
+            for (int i = 1; i < list.size(); i++) {
+                int[] temp = list.get(i - 1);
+                int[] temp2 = list.get(i);
+                if (temp[0] == temp2[0] && temp[3] == temp2[3]) {
+                    if (temp[1] >= temp2[1] && temp[2] <= temp2[2]) {
+                        toRemove.add(temp);
+                    } else if (temp[1] <= temp2[1] && temp[2] >= temp2[2]) {
+                        toRemove.add(temp2);
+                    }
                 }
             }
+            list.removeAll(toRemove);
+
+            return list.toArray(new int[0][]);
+        } finally {
+            pool.shutdownNow();
         }
-        list.removeAll(toRemove);
+    }
 
-        return list.toArray(new int[0][]);
+    /**
+     * Refines the repeat region <code>curr</code> found on the forward (<code>fwd</code>) or
+     * reverse strand of sequence <code>curr[0]</code> of <code>ds</code> to a TALE locus
+     * <code>{contig, start, end, strand, mRNA start, mRNA end, flag}</code> in forward
+     * coordinates.
+     */
+    private static int[] getTALELocus(DataSet ds, int[] curr, boolean fwd, HMMerModel start,
+          HMMerModel end, ScanProgress progress) throws Exception {
+        String startConsensus = start.getConsensus();
+        String endConsensus = end.getConsensus();
+
+        Sequence seq = ds.getElementAt(curr[0]);
+        //reverse-complemented once for both termini and the CDS
+        Sequence strand = fwd ? seq : seq.reverseComplement();
+
+        //System.out.println("curr: "+Arrays.toString( curr ));
+        int[] refinestartend = new int[]{curr[1], curr[2]};
+        //	System.out.println("repeats: "+Arrays.toString(refinestartend));
+        int[] nterm = getBestTerminus(strand, curr[1], curr[2], true, start, startConsensus);
+        if (nterm != null) {
+            refinestartend[0] = nterm[0];
+        }
+        int[] cterm = getBestTerminus(strand, curr[1], curr[2], false, end, endConsensus);
+        if (cterm != null) {
+            refinestartend[1] = cterm[1];
+        }
+        //System.out.println("terms: "+Arrays.toString( nterm )+" "+Arrays.toString( cterm ));
+        int[] reg = refine(refinestartend[0], refinestartend[1], strand);
+        //System.out.println("refined: "+Arrays.toString( reg ));
+
+        int mRNALength =
+              Math.max(refinestartend[1], reg[1]) - Math.min(refinestartend[0], reg[0]);
+        int cdsLength = reg[1] - reg[0];
+
+        int[] locus;
+        if (mRNALength - startConsensus.length() / 3 > cdsLength
+              || mRNALength - endConsensus.length() / 3 > cdsLength) {
+            locus = new int[]{curr[0], reg[0], reg[1], +1, Math.min(refinestartend[0], reg[0]),
+                  Math.max(refinestartend[1], reg[1]), 1};
+        } else {
+            locus = new int[]{curr[0], reg[0], reg[1], +1, reg[0], reg[1], 0};
+        }
+        if (!fwd) {
+            int el = seq.getLength();
+            locus = new int[]{locus[0], el - locus[2], el - locus[1], -1, el - locus[5],
+                  el - locus[4], locus[6]};
+        }
+
+        progress.add(1);
+
+        return locus;
     }
 
     private static int[] refine(int start, int end, Sequence original)
@@ -229,8 +240,23 @@ public class NHMMer {
     }
 
     public static int[] getBestTerminus(DataSet ds, int id, int start, int end, boolean fwd,
-          boolean isStart, AbstractHMM hmm, HomogeneousMMDiffSM hom, String consensus,
-          LinkedList<Integer> matchStates, LinkedList<Integer> silentStates) throws Exception {
+          boolean isStart, HMMerModel hmm, String consensus) throws Exception {
+        Sequence seq = ds.getElementAt(id);
+
+        if (!fwd) {
+            seq = seq.reverseComplement();
+        }
+        return getBestTerminus(seq, start, end, isStart, hmm, consensus);
+    }
+
+    /**
+     * Finds the N- (<code>isStart</code>) or C-terminus next to the repeat region from
+     * <code>start</code> to <code>end</code> of <code>seq</code>, which is already oriented like
+     * the TALE. The windows next to the region are scored by one Forward pass with free start
+     * over all of them, see {@link #getWindowScores(HMMerModel, Sequence, int, int, int)}.
+     */
+    private static int[] getBestTerminus(Sequence seq, int start, int end, boolean isStart,
+          HMMerModel hmm, String consensus) throws Exception {
 
         int numLay = consensus.length();//TODO
         numLay = (int) Math.round(numLay * 1.1);
@@ -239,23 +265,16 @@ public class NHMMer {
 
         double t = consensus.length() * Math.log(1.5);
 
-        Sequence seq = ds.getElementAt(id);
-
-        if (!fwd) {
-            seq = seq.reverseComplement();
-        }
-
         DoubleList scores = new DoubleList();
         IntList positions = new IntList();
 
         if (isStart) {
             int numLower = 0;
-            for (int i = start - w + (int) Math.round(0.1 * consensus.length());
-                  i >= Math.max(0, start - w - 200); i -= 5) {
-                //Sequence sub = seq.getSubSequence( i, w );
-                double fg = hmm.getLogProbFor(seq, i, i + w - 1);
-                double bg = hom.getLogProbFor(seq, i, i + w - 1);
-                double rat = fg - bg;
+            int first = Math.max(0, start - w - 200);
+            int last = start - w + (int) Math.round(0.1 * consensus.length());
+            double[] odds = getWindowScores(hmm, seq, first, last, consensus.length());
+            for (int i = last; i >= first; i -= 5) {
+                double rat = odds[i - first];
                 //	System.out.println(i+" "+rat);
                 if (scores.length() > 0 && rat < scores.get(scores.length() - 1)) {
                     numLower++;
@@ -270,12 +289,11 @@ public class NHMMer {
             }
         } else {
             int numLower = 0;
-            for (int i = end - (int) Math.round(0.1 * consensus.length());
-                  i < Math.min(end + 200, seq.getLength() - w + 1); i += 5) {
-                //Sequence sub = seq.getSubSequence( i, w );
-                double fg = hmm.getLogProbFor(seq, i, i + w - 1);
-                double bg = hom.getLogProbFor(seq, i, i + w - 1);
-                double rat = fg - bg;
+            int first = end - (int) Math.round(0.1 * consensus.length());
+            int last = Math.min(end + 200, seq.getLength() - w + 1) - 1;
+            double[] odds = getWindowScores(hmm, seq, first, last, consensus.length());
+            for (int i = first; i <= last; i += 5) {
+                double rat = odds[i - first];
                 if (scores.length() > 0 && rat < scores.get(scores.length() - 1)) {
                     numLower++;
                 } else {
@@ -304,12 +322,12 @@ public class NHMMer {
 
         int[] region = new int[2];
 
-        Pair<IntList, Double> vit = hmm.getViterbiPathFor(positions.get(idx),
-              positions.get(idx) + w - 1, seq);
+        Pair<IntList, Double> vit = hmm.getViterbiPath(seq, positions.get(idx),
+              positions.get(idx) + w - 1);
         IntList states = vit.getFirstElement();
         double[] count = new double[states.length()];
         for (int i = 0; i < states.length(); i++) {
-            if (matchStates.contains(states.get(i))) {
+            if (hmm.isMatchState(states.get(i))) {
                 count[i] = i > 0 ? count[i - 1] + 1 : 1;
             } else {
                 count[i] = i > 0 && count[i - 1] > 0 ? count[i - 1] - 1 : 0;
@@ -325,13 +343,13 @@ public class NHMMer {
 
         int offStart = 0;
         for (int i = 0; i < startIdx; i++) {
-            if (!silentStates.contains(states.get(i))) {
+            if (!hmm.isSilentState(states.get(i))) {
                 offStart++;
             }
         }
         int offEnd = 0;
         for (int i = states.length() - 1; i > endIdx; i--) {
-            if (!silentStates.contains(states.get(i))) {
+            if (!hmm.isSilentState(states.get(i))) {
                 offEnd++;
             }
         }
@@ -344,109 +362,199 @@ public class NHMMer {
 
     }
 
-    public static LinkedList<int[]> findRepeats(DataSet ds, AbstractHMM hmm,
-          HomogeneousMMDiffSM hom, String consensus, ProgressUpdater progress,
-          double progressOffset, boolean sensitive) throws Exception {
+    public static LinkedList<int[]> findRepeats(DataSet ds, HMMerModel hmm,
+          ProgressUpdater progress, double progressOffset, boolean sensitive) throws Exception {
+        return findRepeats(ds, hmm, progress, progressOffset, sensitive, 1);
+    }
 
-        int totalLength = 0;
+    /**
+     * Finds regions of TALE repeats in all sequences of <code>ds</code> (forward strand only).
+     * Contigs and chunks of long contigs are scanned on <code>threads</code> threads.
+     * <br>
+     * Only windows sharing enough fragments with the consensus of <code>hmm</code> are scored.
+     * Each stretch of such windows is scored by one Forward pass of the profile HMM with free start
+     * (see {@link #getWindowScores(HMMerModel, Sequence, int, int, int)}), so the runtime is linear
+     * in the length of repeat-rich regions.
+     */
+    public static LinkedList<int[]> findRepeats(DataSet ds, HMMerModel hmm,
+          ProgressUpdater progress, double progressOffset, boolean sensitive, int threads)
+          throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            ArrayList<Future<Pair<IntList, DoubleList>>> scans = submitScans(pool, ds, true, hmm,
+                  sensitive,
+                  new ScanProgress(progress, progressOffset, getTotalLength(ds)));
+            return collectRepeats(ds, scans, hmm.getConsensus());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long getTotalLength(DataSet ds) {
+        long totalLength = 0;
         for (int i = 0; i < ds.getNumberOfElements(); i++) {
             totalLength += ds.getElementAt(i).getLength();
         }
+        return totalLength;
+    }
 
+    private static double getThreshold(String consensus) {
+        return consensus.length() * Math.log(1.3);
+    }
+
+    private static int getWindowWidth(String consensus) {
         int numLay = consensus.length();
-        numLay = (int) Math.round(numLay * 1.1);
+        return (int) Math.round(numLay * 1.1);
+    }
 
-        int w = numLay;
+    private static int getNumberOfWindows(Sequence seq, int w) {
+        return Math.max(0, seq.getLength() - w + 1);
+    }
+
+    /**
+     * Submits the scans of all contigs of <code>ds</code> on the forward or reverse strand to
+     * <code>pool</code>, one task per chunk of {@link #CHUNK_SIZE} windows, in the order of contigs
+     * and chunks. Windows of the reverse strand are numbered along the reverse complement, but
+     * each task only reverse-complements the part of the contig it scans.
+     */
+    private static ArrayList<Future<Pair<IntList, DoubleList>>> submitScans(ExecutorService pool,
+          DataSet ds, boolean forward, HMMerModel hmm, boolean sensitive, ScanProgress progress) {
+        String consensus = hmm.getConsensus();
+        int w = getWindowWidth(consensus);
 
         int frag = 10;
         if (sensitive) {
             frag = 5;
         }
-        HashSet<String> parts = new HashSet<String>();
-        for (int i = 0; i < consensus.length() / frag; i++) {
-            parts.add(consensus.substring(i * frag, (i + 1) * frag).toUpperCase());
-        }
-
-        double t = consensus.length() * Math.log(1.3);
+        SeedFilter seeds = new SeedFilter(consensus, frag);
 
-        LinkedList<int[]> found = new LinkedList<int[]>();
-
-        double l = 0;
+        double t = getThreshold(consensus);
 
+        ArrayList<Future<Pair<IntList, DoubleList>>> scans = new ArrayList<Future<Pair<IntList, DoubleList>>>();
         for (int i = 0; i < ds.getNumberOfElements(); i++) {
             Sequence seq = ds.getElementAt(i);
+            int n = getNumberOfWindows(seq, w);
+            for (int from = 0; from < n; from += CHUNK_SIZE) {
+                int to = Math.min(n, from + CHUNK_SIZE);
+                int a = from;
+                scans.add(pool.submit(() -> {
+                    if (forward) {
+                        return scan(seq, a, to, 0, hmm, seeds, w, t, progress);
+                    } else {
+                        //positions a to to+w-1 of the reverse complement
+                        int len = to + w - 1 - a;
+                        Sequence part = seq.getSubSequence(seq.getLength() - a - len, len)
+                              .reverseComplement();
+                        return scan(part, 0, to - a, a, hmm, seeds, w, t, progress);
+                    }
+                }));
+            }
+        }
+        return scans;
+    }
 
-            double[] vals = new double[seq.getLength() - w + 1];
-
-            int num = -1;
+    /**
+     * Scores the windows of width <code>w</code> starting at positions <code>from</code> (inclusive)
+     * to <code>to</code> (exclusive) of <code>seq</code>. Windows containing too few fragments of the
+     * consensus are not scored, and each stretch of the other windows is scored by one Forward pass.
+     * Only the start positions (plus <code>offset</code>) and scores of windows scoring above
+     * <code>t</code> are returned, as no other window can become a peak.
+     */
+    private static Pair<IntList, DoubleList> scan(Sequence seq, int from, int to, int offset,
+          HMMerModel hmm, SeedFilter seeds, int w, double t, ScanProgress progress)
+          throws Exception {
+        IntList positions = new IntList();
+        DoubleList vals = new DoubleList();
 
-            for (int j = 0; j < seq.getLength() - w + 1; j++, l++) {
+        int[] num = seeds.countSeeds(seq, from, to, w);
+        int minSeeds = seeds.getNumberOfSeeds() / 2;
+        int consensusLength = hmm.getConsensus().length();
 
-                if (j % 1000 == 0) {
-                    progress.setCurrent(l / totalLength + progressOffset);
-                }
+        int reported = from;
 
-                Sequence sub = seq.getSubSequence(j, w);
+        for (int j = from; j < to; j++) {
 
-                if (num == -1) {
-                    num = 0;
-                    String substr = sub.toString();
-                    String[] parts2 = parts.toArray(new String[0]);
-                    for (int k = 0; k < parts2.length; k++) {
-                        if (substr.indexOf(parts2[k]) > -1) {
-                            num++;
-                        }
-                    }
-                }
+            while (j - reported >= 1000) {
+                progress.add(1000);
+                reported += 1000;
+            }
 
-                if (num > parts.size() / 2) {
-                    double fg = hmm.getLogProbFor(sub);
-                    double bg = hom.getLogProbFor(sub);
-                    double rat = fg - bg;
-                    vals[j] = rat;
+            if (num[j - from] > minSeeds) {
+                int last = j;
+                while (last + 1 < to && num[last + 1 - from] > minSeeds) {
+                    last++;
                 }
-
-                if (j < seq.getLength() - w) {
-                    String substr1 = seq.toString(j, j + frag);
-                    String substr2 = seq.toString(j + w - frag + 1, j + w + 1);
-                    if (parts.contains(substr1)) {
-                        num--;
-                    }
-                    if (parts.contains(substr2)) {
-                        num++;
+                double[] scores = getWindowScores(hmm, seq, j, last, consensusLength);
+                for (int s = j; s <= last; s++) {
+                    double rat = scores[s - j];
+                    if (rat > t) {
+                        positions.add(s + offset);
+                        vals.add(rat);
                     }
                 }
+                j = last;
             }
-            //System.out.println("scan finished");
-            LinkedList<ComparableElement<Double, Integer>> list = new LinkedList<ComparableElement<Double, Integer>>();
-            while (true) {
-                int maxIdx = ToolBox.getMaxIndex(vals);
-                double max = vals[maxIdx];
-                for (int j = Math.max(0, maxIdx - w / 2); j < maxIdx + w / 2 && j < vals.length;
-                      j++) {
-                    vals[j] = 0;
-                }
-                if (max > t) {
-                    list.add(new ComparableElement<Double, Integer>(max, maxIdx));
-                } else {
-                    break;
-                }
+        }
+        progress.add(to - reported);
+
+        return new Pair<IntList, DoubleList>(positions, vals);
+    }
+
+    /**
+     * Returns the scores of the windows of <code>seq</code> starting at positions
+     * <code>first</code> to <code>last</code>, indexed by start position minus <code>first</code>,
+     * from a single Forward pass of <code>hmm</code> with free start over the whole stretch. The
+     * window starting at <code>s</code> gets the log-odds of all sub-sequences from
+     * <code>first</code> or later to <code>s + consensusLength - 1</code>, where a complete match of
+     * the model starting at <code>s</code> ends. Scoring each window on its own would cost time
+     * quadratic in the length of the stretch.
+     */
+    static double[] getWindowScores(HMMerModel hmm, Sequence seq, int first, int last,
+          int consensusLength) throws Exception {
+        if (last < first) {
+            return new double[0];
+        }
+        double[] odds = hmm.getLogOddsScores(seq, first, last + consensusLength - 1);
+        return Arrays.copyOfRange(odds, consensusLength - 1, odds.length);
+    }
+
+    /**
+     * Joins the chunks scanned by {@link #submitScans(ExecutorService, DataSet, boolean,
+     * HMMerModel, boolean, ScanProgress)} and extracts the repeat regions
+     * <code>{contig, start, end}</code> from the window scores.
+     */
+    private static LinkedList<int[]> collectRepeats(DataSet ds,
+          ArrayList<Future<Pair<IntList, DoubleList>>> scans, String consensus) throws Exception {
+        int w = getWindowWidth(consensus);
+
+        LinkedList<int[]> found = new LinkedList<int[]>();
 
+        int c = 0;
+        for (int i = 0; i < ds.getNumberOfElements(); i++) {
+            int n = getNumberOfWindows(ds.getElementAt(i), w);
+            IntList positions = new IntList();
+            DoubleList vals = new DoubleList();
+            for (int from = 0; from < n; from += CHUNK_SIZE, c++) {
+                Pair<IntList, DoubleList> chunk = scans.get(c).get();
+                for (int j = 0; j < chunk.getFirstElement().length(); j++) {
+                    positions.add(chunk.getFirstElement().get(j));
+                    vals.add(chunk.getSecondElement().get(j));
+                }
             }
 
-            ComparableElement<Double, Integer>[] els = list.toArray(new ComparableElement[0]);
-            Arrays.sort(els);
+            //System.out.println("scan finished");
+            int[] els = getPeaks(positions.toArray(), vals.toArray(), w);
             if (els.length > 0) {
-                int start = els[0].getWeight();
-                int end = els[0].getWeight() + consensus.length();
+                int start = els[0];
+                int end = els[0] + consensus.length();
                 for (int j = 1; j < els.length; j++) {
-                    //System.out.println(els[j].getWeight());
-                    if (els[j].getWeight() - 500 > els[j - 1].getWeight() || j == els.length - 1) {
-                        end = els[j - 1].getWeight() + consensus.length();
+                    //System.out.println(els[j]);
+                    if (els[j] - 500 > els[j - 1] || j == els.length - 1) {
+                        end = els[j - 1] + consensus.length();
                         //System.out.println(start+" "+end );
                         found.add(new int[]{i, start, end});
-                        start = els[j].getWeight();
-                        end = els[j].getWeight() + consensus.length();
+                        start = els[j];
+                        end = els[j] + consensus.length();
                     }
                 }
             }
@@ -457,4 +565,103 @@ public class NHMMer {
         return found;
     }
 
+    /**
+     * Picks peaks from the window scores <code>vals</code> at start positions
+     * <code>positions</code> (ascending) by non-maximum suppression: the best remaining window is a
+     * peak, and all windows starting less than <code>w/2</code> before or after it are discarded.
+     * Ties are broken by position. The candidates are ordered in a binary heap, so the runtime is
+     * <code>O(k log k)</code> for <code>k</code> candidates, independent of the contig length.
+     *
+     * @return the peak positions in ascending order
+     */
+    private static int[] getPeaks(int[] positions, double[] vals, int w) {
+        int k = positions.length;
+        int[] heap = new int[k];
+        for (int i = 0; i < k; i++) {
+            heap[i] = i;
+        }
+        for (int i = k / 2 - 1; i >= 0; i--) {
+            siftDown(heap, i, k, vals);
+        }
+
+        int[] peaks = new int[k];
+        int numPeaks = 0;
+        int size = k;
+        while (size > 0) {
+            int idx = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, 0, size, vals);
+
+            int pos = positions[idx];
+            //suppressed by a peak p if p - w/2 <= pos < p + w/2, only the nearest peaks on either
+            //side need to be checked
+            int ins = Arrays.binarySearch(peaks, 0, numPeaks, pos);
+            if (ins < 0) {
+                ins = -ins - 1;
+            }
+            boolean suppressed = (ins < numPeaks && peaks[ins] - w / 2 <= pos)
+                  || (ins > 0 && pos < peaks[ins - 1] + w / 2);
+            if (!suppressed) {
+                System.arraycopy(peaks, ins, peaks, ins + 1, numPeaks - ins);
+                peaks[ins] = pos;
+                numPeaks++;
+            }
+        }
+        return Arrays.copyOf(peaks, numPeaks);
+    }
+
+    /**
+     * Restores the heap order below <code>i</code>: higher scores first, then lower indexes.
+     */
+    private static void siftDown(int[] heap, int i, int size, double[] vals) {
+        while (true) {
+            int best = i;
+            int l = 2 * i + 1;
+            int r = l + 1;
+            if (l < size && before(heap[l], heap[best], vals)) {
+                best = l;
+            }
+            if (r < size && before(heap[r], heap[best], vals)) {
+                best = r;
+            }
+            if (best == i) {
+                return;
+            }
+            int temp = heap[i];
+            heap[i] = heap[best];
+            heap[best] = temp;
+            i = best;
+        }
+    }
+
+    private static boolean before(int a, int b, double[] vals) {
+        return vals[a] > vals[b] || (vals[a] == vals[b] && a < b);
+    }
+
+    /**
+     * Progress shared by the tasks of one phase, reported as <code>offset + done/unit</code>.
+     */
+    private static class ScanProgress {
+
+        private final ProgressUpdater progress;
+        private final double offset;
+        private final double unit;
+        private final AtomicLong done;
+
+        private ScanProgress(ProgressUpdater progress, double offset, double unit) {
+            this.progress = progress;
+            this.offset = offset;
+            this.unit = unit;
+            this.done = new AtomicLong();
+        }
+
+        private void add(int n) {
+            double current = offset + done.addAndGet(n) / unit;
+            synchronized (progress) {
+                progress.setCurrent(current);
+            }
+        }
+
+    }
+
 }
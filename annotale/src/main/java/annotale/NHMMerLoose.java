@@ -3,15 +3,11 @@ package annotale;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.LinkedList;
 
 import de.jstacs.data.DNADataSet;
 import de.jstacs.data.sequences.Sequence;
 import de.jstacs.data.sequences.annotation.SimpleSequenceAnnotationParser;
-import de.jstacs.sequenceScores.statisticalModels.differentiable.homogeneous.HomogeneousMMDiffSM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.AbstractHMM;
-import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.HMMFactory;
 import de.jstacs.utils.ComparableElement;
 import de.jstacs.utils.DoubleList;
 import de.jstacs.utils.IntList;
@@ -28,34 +24,15 @@ public class NHMMerLoose {
 
         DNADataSet ds = new DNADataSet(args[0], '>', parser);
 
-        StringBuffer repeatConsensus = new StringBuffer();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> repeats = HMMFactory.parseProfileHMMFromHMMer(
-              new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/repeats.hmm")), repeatConsensus, null,
-              null);
-
-        StringBuffer startConsensus = new StringBuffer();
-        LinkedList<Integer> startMatchStates = new LinkedList<Integer>();
-        LinkedList<Integer> startSilentStates = new LinkedList<Integer>();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> start = HMMFactory.parseProfileHMMFromHMMer(
-              new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/starts.hmm")), startConsensus,
-              startMatchStates, startSilentStates);
-
-        StringBuffer endConsensus = new StringBuffer();
-        LinkedList<Integer> endMatchStates = new LinkedList<Integer>();
-        LinkedList<Integer> endSilentStates = new LinkedList<Integer>();
-        Pair<AbstractHMM, HomogeneousMMDiffSM> end = HMMFactory.parseProfileHMMFromHMMer(
-              new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/ends.hmm")), endConsensus, endMatchStates,
-              endSilentStates);
+        HMMerModel repeats = parse("annotale/data/repeats.hmm");
+        HMMerModel start = parse("annotale/data/starts.hmm");
+        HMMerModel end = parse("annotale/data/ends.hmm");
 
         PrintWriter wr = new PrintWriter(args[0] + "_stretch.fasta");
         for (int i = 0; i < ds.getNumberOfElements(); i++) {
             Sequence seq = ds.getElementAt(i);
             //	System.out.println(i+":");
-            int[][] res = run(repeats, start, end, repeatConsensus, startConsensus, endConsensus,
-                  startMatchStates, startSilentStates, endMatchStates, endSilentStates, seq);
+            int[][] res = run(repeats, start, end, seq);
 
             if (res.length > 0) {
 
@@ -96,17 +73,17 @@ public class NHMMerLoose {
     }
 
 
-    public static int[][] run(Pair<AbstractHMM, HomogeneousMMDiffSM> repeats,
-          Pair<AbstractHMM, HomogeneousMMDiffSM> start, Pair<AbstractHMM, HomogeneousMMDiffSM> end,
-          StringBuffer repeatConsensus, StringBuffer startConsensus, StringBuffer endConsensus,
-          LinkedList<Integer> startMatchStates, LinkedList<Integer> startSilentStates,
-          LinkedList<Integer> endMatchStates, LinkedList<Integer> endSilentStates, Sequence seq)
+    private static HMMerModel parse(String resource) throws Exception {
+        return new HMMerModel(new InputStreamReader(
+              TALEPredictionTool.class.getClassLoader().getResourceAsStream(resource)));
+    }
+
+    public static int[][] run(HMMerModel repeats, HMMerModel start, HMMerModel end, Sequence seq)
           throws Exception {
 
-        LinkedList<int[]> fwd = findRepeats(seq, repeats.getFirstElement(),
-              repeats.getSecondElement(), repeatConsensus.toString());
-        LinkedList<int[]> rev = findRepeats(seq.reverseComplement(), repeats.getFirstElement(),
-              repeats.getSecondElement(), repeatConsensus.toString());
+        LinkedList<int[]> fwd = findRepeats(seq, repeats, repeats.getConsensus());
+        LinkedList<int[]> rev = findRepeats(seq.reverseComplement(), repeats,
+              repeats.getConsensus());
 
         int totalNum = fwd.size() + rev.size();
 
@@ -119,14 +96,13 @@ public class NHMMerLoose {
             //System.out.println("currfwd: "+Arrays.toString( curr ));
             int[] refinestartend = new int[]{curr[1], curr[2]};
             //	System.out.println("repeats: "+Arrays.toString(refinestartend));
-            int[] nterm = getBestTerminus(seq, curr[1], curr[2], true, true,
-                  start.getFirstElement(), start.getSecondElement(), startConsensus.toString(),
-                  startMatchStates, startSilentStates);
+            int[] nterm = getBestTerminus(seq, curr[1], curr[2], true, true, start,
+                  start.getConsensus());
             if (nterm != null) {
                 refinestartend[0] = nterm[0];
             }
-            int[] cterm = getBestTerminus(seq, curr[1], curr[2], true, false, end.getFirstElement(),
-                  end.getSecondElement(), endConsensus.toString(), endMatchStates, endSilentStates);
+            int[] cterm = getBestTerminus(seq, curr[1], curr[2], true, false, end,
+                  end.getConsensus());
             if (cterm != null) {
                 refinestartend[1] = cterm[1];
             }
@@ -140,15 +116,13 @@ public class NHMMerLoose {
             //System.out.println("currrev: "+Arrays.toString( curr ));
             int[] refinestartend = new int[]{curr[1], curr[2]};
             //System.out.println("repeats: "+Arrays.toString(refinestartend));
-            int[] nterm = getBestTerminus(seq, curr[1], curr[2], false, true,
-                  start.getFirstElement(), start.getSecondElement(), startConsensus.toString(),
-                  startMatchStates, startSilentStates);
+            int[] nterm = getBestTerminus(seq, curr[1], curr[2], false, true, start,
+                  start.getConsensus());
             if (nterm != null) {
                 refinestartend[0] = nterm[0];
             }
-            int[] cterm = getBestTerminus(seq, curr[1], curr[2], false, false,
-                  end.getFirstElement(), end.getSecondElement(), endConsensus.toString(),
-                  endMatchStates, endSilentStates);
+            int[] cterm = getBestTerminus(seq, curr[1], curr[2], false, false, end,
+                  end.getConsensus());
             if (cterm != null) {
                 refinestartend[1] = cterm[1];
             }
@@ -175,9 +149,15 @@ public class NHMMerLoose {
     }
 
 
+    /**
+     * Finds the N- (<code>isStart</code>) or C-terminus next to the repeat region from
+     * <code>start</code> to <code>end</code> of <code>seq</code> on the forward (<code>fwd</code>)
+     * or reverse strand. The windows next to the region are scored by one Forward pass with free
+     * start over all of them, see {@link NHMMer#getWindowScores(HMMerModel, Sequence, int, int,
+     * int)}.
+     */
     public static int[] getBestTerminus(Sequence seq, int start, int end, boolean fwd,
-          boolean isStart, AbstractHMM hmm, HomogeneousMMDiffSM hom, String consensus,
-          LinkedList<Integer> matchStates, LinkedList<Integer> silentStates) throws Exception {
+          boolean isStart, HMMerModel hmm, String consensus) throws Exception {
 
         int numLay = consensus.length();//TODO
         numLay = (int) Math.round(numLay * 1.1);
@@ -195,12 +175,11 @@ public class NHMMerLoose {
 
         if (isStart) {
             int numLower = 0;
-            for (int i = start - w + (int) Math.round(0.1 * consensus.length());
-                  i >= Math.max(0, start - w - 200); i -= 5) {
-                //Sequence sub = seq.getSubSequence( i, w );
-                double fg = hmm.getLogProbFor(seq, i, i + w - 1);
-                double bg = hom.getLogProbFor(seq, i, i + w - 1);
-                double rat = fg - bg;
+            int first = Math.max(0, start - w - 200);
+            int last = start - w + (int) Math.round(0.1 * consensus.length());
+            double[] odds = NHMMer.getWindowScores(hmm, seq, first, last, consensus.length());
+            for (int i = last; i >= first; i -= 5) {
+                double rat = odds[i - first];
                 //	System.out.println(i+" "+rat);
                 if (scores.length() > 0 && rat < scores.get(scores.length() - 1)) {
                     numLower++;
@@ -215,12 +194,11 @@ public class NHMMerLoose {
             }
         } else {
             int numLower = 0;
-            for (int i = end - (int) Math.round(0.1 * consensus.length());
-                  i < Math.min(end + 200, seq.getLength() - w + 1); i += 5) {
-                //Sequence sub = seq.getSubSequence( i, w );
-                double fg = hmm.getLogProbFor(seq, i, i + w - 1);
-                double bg = hom.getLogProbFor(seq, i, i + w - 1);
-                double rat = fg - bg;
+            int first = end - (int) Math.round(0.1 * consensus.length());
+            int last = Math.min(end + 200, seq.getLength() - w + 1) - 1;
+            double[] odds = NHMMer.getWindowScores(hmm, seq, first, last, consensus.length());
+            for (int i = first; i <= last; i += 5) {
+                double rat = odds[i - first];
                 if (scores.length() > 0 && rat < scores.get(scores.length() - 1)) {
                     numLower++;
                 } else {
@@ -249,12 +227,12 @@ public class NHMMerLoose {
 
         int[] region = new int[2];
 
-        Pair<IntList, Double> vit = hmm.getViterbiPathFor(positions.get(idx),
-              positions.get(idx) + w - 1, seq);
+        Pair<IntList, Double> vit = hmm.getViterbiPath(seq, positions.get(idx),
+              positions.get(idx) + w - 1);
         IntList states = vit.getFirstElement();
         double[] count = new double[states.length()];
         for (int i = 0; i < states.length(); i++) {
-            if (matchStates.contains(states.get(i))) {
+            if (hmm.isMatchState(states.get(i))) {
                 count[i] = i > 0 ? count[i - 1] + 1 : 1;
             } else {
                 count[i] = i > 0 && count[i - 1] > 0 ? count[i - 1] - 1 : 0;
@@ -270,13 +248,13 @@ public class NHMMerLoose {
 
         int offStart = 0;
         for (int i = 0; i < startIdx; i++) {
-            if (!silentStates.contains(states.get(i))) {
+            if (!hmm.isSilentState(states.get(i))) {
                 offStart++;
             }
         }
         int offEnd = 0;
         for (int i = states.length() - 1; i > endIdx; i--) {
-            if (!silentStates.contains(states.get(i))) {
+            if (!hmm.isSilentState(states.get(i))) {
                 offEnd++;
             }
         }
@@ -289,8 +267,13 @@ public class NHMMerLoose {
 
     }
 
-    public static LinkedList<int[]> findRepeats(Sequence seq, AbstractHMM hmm,
-          HomogeneousMMDiffSM hom, String consensus) throws Exception {
+    /**
+     * Finds regions of TALE repeats in <code>seq</code> (forward strand only). Only windows
+     * sharing enough fragments with <code>consensus</code> are scored, each stretch of them by one
+     * Forward pass with free start.
+     */
+    public static LinkedList<int[]> findRepeats(Sequence seq, HMMerModel hmm, String consensus)
+          throws Exception {
 
         int totalLength = seq.getLength();
 
@@ -300,52 +283,31 @@ public class NHMMerLoose {
         int w = numLay;
 
         int frag = 10;
-        HashSet<String> parts = new HashSet<String>();
-        for (int i = 0; i < consensus.length() / frag; i++) {
-            parts.add(consensus.substring(i * frag, (i + 1) * frag).toUpperCase());
-        }
+        SeedFilter seeds = new SeedFilter(consensus, frag);
 
         double t = consensus.length() * Math.log(1.1);
 
         LinkedList<int[]> found = new LinkedList<int[]>();
 
-        double l = 0;
-
-        double[] vals = new double[seq.getLength() - w + 1];
-
-        int num = -1;
-
-        for (int j = 0; j < seq.getLength() - w + 1; j++, l++) {
+        double[] vals = new double[Math.max(0, seq.getLength() - w + 1)];
 
-            Sequence sub = seq.getSubSequence(j, w);
+        if (vals.length == 0) {
+            return found;
+        }
 
-            if (num == -1) {
-                num = 0;
-                String substr = sub.toString();
-                String[] parts2 = parts.toArray(new String[0]);
-                for (int k = 0; k < parts2.length; k++) {
-                    if (substr.indexOf(parts2[k]) > -1) {
-                        num++;
-                    }
-                }
-            }
+        int[] num = seeds.countSeeds(seq, 0, vals.length, w);
 
-            if (num > parts.size() / 4) {
-                double fg = hmm.getLogProbFor(sub);
-                double bg = hom.getLogProbFor(sub);
-                double rat = fg - bg;
-                vals[j] = rat;
-            }
+        int minSeeds = seeds.getNumberOfSeeds() / 4;
+        for (int j = 0; j < vals.length; j++) {
 
-            if (j < seq.getLength() - w) {
-                String substr1 = seq.toString(j, j + frag);
-                String substr2 = seq.toString(j + w - frag + 1, j + w + 1);
-                if (parts.contains(substr1)) {
-                    num--;
-                }
-                if (parts.contains(substr2)) {
-                    num++;
+            if (num[j] > minSeeds) {
+                int last = j;
+                while (last + 1 < vals.length && num[last + 1] > minSeeds) {
+                    last++;
                 }
+                double[] scores = NHMMer.getWindowScores(hmm, seq, j, last, consensus.length());
+                System.arraycopy(scores, 0, vals, j, scores.length);
+                j = last;
             }
         }
         //System.out.println("scan finished");
@@ -0,0 +1,506 @@
+package annotale;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import de.jstacs.data.AlphabetContainer;
+import de.jstacs.data.WrongAlphabetException;
+import de.jstacs.data.sequences.Sequence;
+import de.jstacs.utils.IntList;
+import de.jstacs.utils.Pair;
+
+
+/**
+ * Profile HMM for DNA read from a HMMer3 file, with the parameters of all nodes in flat arrays.
+ * The model is the glocal core model of HMMer: the begin state enters the first match, delete or
+ * insert state, and the end state is reached from the last node. This is the model that
+ * <code>HMMFactory.parseProfileHMMFromHMMer</code> builds from the same file, but Forward and
+ * Viterbi run on primitive arrays instead of the state and transition objects of a Jstacs HMM,
+ * and yield the same scores and paths. As for the Jstacs HMM, only A, C, G, and T can be scored.
+ * <br>
+ * Instances are immutable and may be used by several threads at once.
+ */
+public class ProfileHMM {
+
+    private static final int MM = 0, MI = 1, MD = 2, IM = 3, II = 4, DM = 5, DD = 6;
+    private static final byte MATCH = 0, INSERT = 1, DELETE = 2, BEGIN = 3;
+    //codes of the characters, indexed by their value
+    private static final byte[] CODES = new byte[128];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        String symbols = "ACGT";
+        for (int i = 0; i < symbols.length(); i++) {
+            CODES[symbols.charAt(i)] = (byte) i;
+            CODES[Character.toLowerCase(symbols.charAt(i))] = (byte) i;
+        }
+    }
+
+    private final int m;
+    private final double[] matchEm;
+    private final double[] insertEm;
+    private final double[] trans;
+    //log-probabilities of the paths from the begin state to each delete state
+    private final double[] beginDeletes;
+    private final boolean[] isMatch;
+    private final boolean[] isSilent;
+
+    private ProfileHMM(int m, double[] matchEm, double[] insertEm, double[] trans) {
+        this.m = m;
+        this.matchEm = matchEm;
+        this.insertEm = insertEm;
+        this.trans = trans;
+        this.beginDeletes = new double[m + 1];
+        beginDeletes[0] = Double.NEGATIVE_INFINITY;
+        beginDeletes[1] = trans[MD];
+        for (int k = 2; k <= m; k++) {
+            beginDeletes[k] = beginDeletes[k - 1] + trans[(k - 1) * 7 + DD];
+        }
+        this.isMatch = new boolean[3 * (m + 1)];
+        this.isSilent = new boolean[3 * (m + 1)];
+        for (int k = 1; k <= m; k++) {
+            isMatch[3 * k + MATCH] = true;
+            isSilent[3 * k + DELETE] = true;
+        }
+    }
+
+    /**
+     * Parses the first model of a HMMer3 file.
+     *
+     * @param hmmer the contents of the file
+     * @return the model
+     * @throws IOException if the file could not be read or has no DNA model
+     */
+    public static ProfileHMM parse(Reader hmmer) throws IOException {
+        BufferedReader br = new BufferedReader(hmmer);
+        String str = null;
+        int m = -1;
+        while ((str = br.readLine()) != null && !str.startsWith("HMM ")) {
+            if (str.startsWith("LENG")) {
+                m = Integer.parseInt(str.substring(4).trim());
+            } else if (str.startsWith("ALPH") && !"DNA".equalsIgnoreCase(
+                  str.substring(4).trim())) {
+                throw new IOException("Expected a DNA model.");
+            }
+        }
+        if (str == null || m < 1) {
+            throw new IOException("Not a HMMer3 file.");
+        }
+        double[] matchEm = new double[(m + 1) * 4];
+        double[] insertEm = new double[(m + 1) * 4];
+        double[] trans = new double[(m + 1) * 7];
+
+        br.readLine();
+        str = br.readLine();
+        if (str.trim().startsWith("COMPO")) {
+            str = br.readLine();
+        }
+        parseValues(str, 0, insertEm, 0, 4);
+        parseValues(br.readLine(), 0, trans, 0, 7);
+        for (int k = 1; k <= m; k++) {
+            parseValues(br.readLine(), 1, matchEm, k * 4, 4);
+            parseValues(br.readLine(), 0, insertEm, k * 4, 4);
+            parseValues(br.readLine(), 0, trans, k * 7, 7);
+        }
+        return new ProfileHMM(m, matchEm, insertEm, trans);
+    }
+
+    private static void parseValues(String line, int skip, double[] values, int off, int num)
+          throws IOException {
+        if (line == null) {
+            throw new IOException("Unexpected end of HMMer3 file.");
+        }
+        String[] parts = line.trim().split("\\s+");
+        for (int i = 0; i < num; i++) {
+            String part = parts[skip + i];
+            values[off + i] = "*".equals(part) ? Double.NEGATIVE_INFINITY : -Double.parseDouble(part);
+        }
+    }
+
+    /**
+     * Returns the number of match states.
+     *
+     * @return the model length
+     */
+    public int getLength() {
+        return m;
+    }
+
+    /**
+     * Returns the number of states of the paths returned by {@link #getViterbiPath(Sequence, int,
+     * int)}, i.e. the number of match, insert and delete states.
+     *
+     * @return the number of states
+     */
+    public int getNumberOfStates() {
+        return 3 * (m + 1);
+    }
+
+    /**
+     * Returns <code>true</code> if <code>state</code> is a match state.
+     *
+     * @param state the state index
+     * @return if the state is a match state
+     */
+    public boolean isMatchState(int state) {
+        return isMatch[state];
+    }
+
+    /**
+     * Returns <code>true</code> if <code>state</code> is a silent (delete) state.
+     *
+     * @param state the state index
+     * @return if the state is silent
+     */
+    public boolean isSilentState(int state) {
+        return isSilent[state];
+    }
+
+    /**
+     * Returns the log-probability of positions <code>start</code> to <code>end</code> (inclusive)
+     * of <code>seq</code> under the glocal model (Forward algorithm).
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the log-probability
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public double getLogProb(Sequence seq, int start, int end) throws WrongAlphabetException {
+        byte[] codes = encode(seq, start, end);
+        checkCodes(codes, 0, codes.length - 1);
+        return forward(codes, 0, codes.length - 1, null, false, null, new Workspace(m));
+    }
+
+    /**
+     * Returns the log-probability of positions <code>start</code> to <code>end</code> (inclusive)
+     * of the encoded sequence <code>codes</code> (see {@link #encode(CharSequence, boolean,
+     * byte[])}) under the glocal model, using the buffers of <code>ws</code> instead of allocating
+     * new ones.
+     *
+     * @param codes the encoded sequence
+     * @param start the first position
+     * @param end the last position
+     * @param ws the buffers of the calling thread, created by {@link #createWorkspace()}
+     * @return the log-probability
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public double getLogProb(byte[] codes, int start, int end, Workspace ws)
+          throws WrongAlphabetException {
+        checkCodes(codes, start, end);
+        return forward(codes, start, end, null, false, null, ws);
+    }
+
+    /**
+     * Stores, for each end position <code>e</code> from <code>start</code> to <code>end</code>,
+     * the log-odds of all sub-sequences of the encoded sequence <code>codes</code> starting at or
+     * after <code>start</code> and ending at <code>e</code> in <code>scores[e - start]</code>, i.e.
+     * the Forward score of the glocal model with free start, where each emission at position
+     * <code>i</code> is divided by the background probability <code>background[i - start]</code>.
+     * This is the sum of the log-odds of the windows from any <code>s</code> to <code>e</code>,
+     * each as scored by {@link #getLogProb(byte[], int, int, Workspace)} minus the background of
+     * its positions. One pass over the region suffices, so the runtime is linear in its length,
+     * while scoring each window on its own is quadratic.
+     *
+     * @param codes the encoded sequence
+     * @param start the first position
+     * @param end the last position
+     * @param background the log-probabilities of positions <code>start</code> to <code>end</code>
+     *        under the background model
+     * @param scores the array for the scores, at least <code>end - start + 1</code> long
+     * @param ws the buffers of the calling thread, created by {@link #createWorkspace()}
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public void getLogOddsScores(byte[] codes, int start, int end, double[] background,
+          double[] scores, Workspace ws) throws WrongAlphabetException {
+        checkCodes(codes, start, end);
+        forward(codes, start, end, background, true, scores, ws);
+    }
+
+    /**
+     * Creates the buffers for {@link #getLogProb(byte[], int, int, Workspace)}.
+     *
+     * @return the buffers, to be used by one thread at a time
+     */
+    public Workspace createWorkspace() {
+        return new Workspace(m);
+    }
+
+    /**
+     * Forward algorithm from the begin state before <code>start</code>, or before every position
+     * if <code>freeStart</code>, to the end state after each position. Emissions are divided by the
+     * <code>background</code> probabilities if given. The scores of all end positions are stored in
+     * <code>scores</code> if given, and the score of the last one is returned.
+     */
+    private double forward(byte[] codes, int start, int end, double[] background,
+          boolean freeStart, double[] scores, Workspace ws) {
+        int n = end - start + 1;
+        double last = Double.NEGATIVE_INFINITY;
+
+        double[] pM = ws.pM, pI = ws.pI, pD = ws.pD;
+        double[] cM = ws.cM, cI = ws.cI, cD = ws.cD;
+        Arrays.fill(pM, Double.NEGATIVE_INFINITY);
+        Arrays.fill(pI, Double.NEGATIVE_INFINITY);
+        Arrays.fill(pD, Double.NEGATIVE_INFINITY);
+
+        for (int t = 1; t <= n; t++) {
+            int c = codes[start + t - 1];
+            double odds = background == null ? 0 : -background[t - 1];
+            //begin state at t-1
+            double b = freeStart || t == 1 ? 0 : Double.NEGATIVE_INFINITY;
+
+            cI[0] = emission(insertEm, 0, c) + odds + logAdd(b + trans[MI], pI[0] + trans[II]);
+            cM[1] = emission(matchEm, 1, c) + odds + logAdd(b + trans[MM], pI[0] + trans[IM]);
+            cI[1] = emission(insertEm, 1, c) + odds + logAdd(pM[1] + trans[7 + MI],
+                  pI[1] + trans[7 + II]);
+            for (int k = 2; k <= m; k++) {
+                int o = (k - 1) * 7;
+                cM[k] = emission(matchEm, k, c) + odds + logAdd(
+                      logAdd(pM[k - 1] + trans[o + MM], pI[k - 1] + trans[o + IM]),
+                      logAdd(pD[k - 1], b + beginDeletes[k - 1]) + trans[o + DM]);
+                cI[k] = emission(insertEm, k, c) + odds + logAdd(pM[k] + trans[o + 7 + MI],
+                      pI[k] + trans[o + 7 + II]);
+            }
+            cD[0] = Double.NEGATIVE_INFINITY;
+            cD[1] = Double.NEGATIVE_INFINITY;
+            for (int k = 2; k <= m; k++) {
+                int o = (k - 1) * 7;
+                cD[k] = logAdd(cM[k - 1] + trans[o + MD], cD[k - 1] + trans[o + DD]);
+            }
+
+            int o = m * 7;
+            last = logAdd(logAdd(cM[m] + trans[o + MM], cI[m] + trans[o + IM]),
+                  cD[m] + trans[o + DM]);
+            if (scores != null) {
+                scores[t - 1] = last;
+            }
+
+            double[] temp = pM;
+            pM = cM;
+            cM = temp;
+            temp = pI;
+            pI = cI;
+            cI = temp;
+            temp = pD;
+            pD = cD;
+            cD = temp;
+        }
+        return last;
+    }
+
+    /**
+     * Returns the Viterbi path of positions <code>start</code> to <code>end</code> (inclusive) of
+     * <code>seq</code> under the glocal model, including the silent delete states. State
+     * <code>3*k</code> is match state <code>k</code>, <code>3*k+1</code> insert state
+     * <code>k</code> and <code>3*k+2</code> delete state <code>k</code>.
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the states of the path and its log-probability
+     * @throws WrongAlphabetException if the positions contain other symbols than A, C, G, and T
+     */
+    public Pair<IntList, Double> getViterbiPath(Sequence seq, int start, int end)
+          throws WrongAlphabetException {
+        byte[] codes = encode(seq, start, end);
+        checkCodes(codes, 0, codes.length - 1);
+        int n = end - start + 1;
+
+        double[] pM = new double[m + 1], pI = new double[m + 1], pD = new double[m + 1];
+        double[] cM = new double[m + 1], cI = new double[m + 1], cD = new double[m + 1];
+        //predecessor types of M, I and D at each position and node
+        byte[][] back = new byte[3][(n + 1) * (m + 1)];
+
+        Arrays.fill(pM, Double.NEGATIVE_INFINITY);
+        Arrays.fill(pI, Double.NEGATIVE_INFINITY);
+        pD[0] = Double.NEGATIVE_INFINITY;
+        for (int k = 1; k <= m; k++) {
+            pD[k] = beginDeletes[k];
+            back[DELETE][k] = k == 1 ? BEGIN : DELETE;
+        }
+
+        for (int t = 1; t <= n; t++) {
+            int c = codes[t - 1];
+            int row = t * (m + 1);
+            double b = t == 1 ? 0 : Double.NEGATIVE_INFINITY;
+
+            cI[0] = emission(insertEm, 0, c) + max(back[INSERT], row, BEGIN, b + trans[MI],
+                  INSERT, pI[0] + trans[II], DELETE, Double.NEGATIVE_INFINITY);
+            cM[0] = Double.NEGATIVE_INFINITY;
+            for (int k = 1; k <= m; k++) {
+                int o = (k - 1) * 7;
+                if (k == 1) {
+                    cM[k] = emission(matchEm, k, c) + max(back[MATCH], row + k, BEGIN,
+                          b + trans[MM], INSERT, pI[0] + trans[IM], DELETE,
+                          Double.NEGATIVE_INFINITY);
+                } else {
+                    cM[k] = emission(matchEm, k, c) + max(back[MATCH], row + k, MATCH,
+                          pM[k - 1] + trans[o + MM], INSERT, pI[k - 1] + trans[o + IM], DELETE,
+                          pD[k - 1] + trans[o + DM]);
+                }
+                cI[k] = emission(insertEm, k, c) + max(back[INSERT], row + k, MATCH,
+                      pM[k] + trans[o + 7 + MI], INSERT, pI[k] + trans[o + 7 + II], DELETE,
+                      Double.NEGATIVE_INFINITY);
+            }
+            cD[0] = Double.NEGATIVE_INFINITY;
+            cD[1] = Double.NEGATIVE_INFINITY;
+            for (int k = 2; k <= m; k++) {
+                int o = (k - 1) * 7;
+                cD[k] = max(back[DELETE], row + k, MATCH, cM[k - 1] + trans[o + MD], DELETE,
+                      cD[k - 1] + trans[o + DD], INSERT, Double.NEGATIVE_INFINITY);
+            }
+
+            double[] temp = pM;
+            pM = cM;
+            cM = temp;
+            temp = pI;
+            pI = cI;
+            cI = temp;
+            temp = pD;
+            pD = cD;
+            cD = temp;
+        }
+
+        int o = m * 7;
+        byte[] last = new byte[1];
+        double score = max(last, 0, MATCH, pM[m] + trans[o + MM], INSERT, pI[m] + trans[o + IM],
+              DELETE, pD[m] + trans[o + DM]);
+
+        IntList reversed = new IntList();
+        int type = last[0];
+        int t = n;
+        int k = m;
+        while (type != BEGIN) {
+            reversed.add(3 * k + type);
+            int from = back[type][t * (m + 1) + k];
+            if (type == MATCH) {
+                t--;
+                k--;
+            } else if (type == INSERT) {
+                t--;
+            } else {
+                k--;
+            }
+            type = from;
+        }
+        IntList path = new IntList();
+        for (int i = reversed.length() - 1; i >= 0; i--) {
+            path.add(reversed.get(i));
+        }
+
+        return new Pair<IntList, Double>(path, score);
+    }
+
+    /**
+     * Returns the maximum of three predecessor scores and stores its type in
+     * <code>back[idx]</code>.
+     */
+    private static double max(byte[] back, int idx, byte type1, double val1, byte type2,
+          double val2, byte type3, double val3) {
+        if (val1 >= val2 && val1 >= val3) {
+            back[idx] = type1;
+            return val1;
+        } else if (val2 >= val3) {
+            back[idx] = type2;
+            return val2;
+        } else {
+            back[idx] = type3;
+            return val3;
+        }
+    }
+
+    private static double emission(double[] em, int k, int c) {
+        return em[k * 4 + c];
+    }
+
+    private static void checkCodes(byte[] codes, int start, int end)
+          throws WrongAlphabetException {
+        for (int i = start; i <= end; i++) {
+            if (codes[i] < 0) {
+                throw new WrongAlphabetException(
+                      "Only A, C, G, and T can be scored, found other symbol at " + i + ".");
+            }
+        }
+    }
+
+    private static double logAdd(double a, double b) {
+        if (a < b) {
+            double temp = a;
+            a = b;
+            b = temp;
+        }
+        if (b == Double.NEGATIVE_INFINITY) {
+            return a;
+        }
+        return a + Math.log1p(Math.exp(b - a));
+    }
+
+    /**
+     * Encodes positions <code>start</code> to <code>end</code> (inclusive) of <code>seq</code> as
+     * <code>0</code> to <code>3</code> for A, C, G, and T, and <code>-1</code> for other symbols.
+     *
+     * @param seq the sequence
+     * @param start the first position
+     * @param end the last position
+     * @return the codes
+     */
+    public static byte[] encode(Sequence seq, int start, int end) {
+        int[] code = getCodes(seq.getAlphabetContainer());
+        byte[] codes = new byte[end - start + 1];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = (byte) code[seq.discreteVal(start + i)];
+        }
+        return codes;
+    }
+
+    /**
+     * Encodes <code>str</code>, or its reverse complement, into the first positions of
+     * <code>codes</code> as <code>0</code> to <code>3</code> for A, C, G, and T (in either case),
+     * and <code>-1</code> for other symbols.
+     *
+     * @param str the sequence
+     * @param reverseComplement if the reverse complement shall be encoded
+     * @param codes the array for the codes, at least as long as <code>str</code>
+     */
+    public static void encode(CharSequence str, boolean reverseComplement, byte[] codes) {
+        int n = str.length();
+        for (int i = 0; i < n; i++) {
+            char ch = str.charAt(i);
+            int c = ch < CODES.length ? CODES[ch] : -1;
+            if (reverseComplement) {
+                codes[n - 1 - i] = (byte) (c < 0 ? -1 : 3 - c);
+            } else {
+                codes[i] = (byte) c;
+            }
+        }
+    }
+
+    private static int[] getCodes(AlphabetContainer con) {
+        int[] code = new int[(int) con.getAlphabetLengthAt(0)];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = "ACGT".indexOf(con.getSymbol(0, i).toUpperCase());
+        }
+        return code;
+    }
+
+    /**
+     * Buffers of the Forward algorithm for one thread.
+     */
+    public static class Workspace {
+
+        private final double[] pM, pI, pD, cM, cI, cD;
+
+        private Workspace(int m) {
+            pM = new double[m + 1];
+            pI = new double[m + 1];
+            pD = new double[m + 1];
+            cM = new double[m + 1];
+            cI = new double[m + 1];
+            cD = new double[m + 1];
+        }
+
+    }
+
+}
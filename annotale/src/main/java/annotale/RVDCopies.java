@@ -2,16 +2,28 @@ package annotale;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.sequences.Sequence;
 import de.jstacs.io.FileManager;
+import de.jstacs.utils.IntList;
 import annotale.TALEFamilyBuilder.TALEFamily;
 
 public class RVDCopies {
 
+    /**
+     * Number of permutations evaluated by one task of the permutation test.
+     */
+    private static final int ROUNDS_PER_TASK = 50;
+
+    private static final int GAP = -1;
+
     private static class Match {
 
         private int start1, start2;
@@ -60,92 +72,162 @@ public class RVDCopies {
 
         printCounts(allSeqs, names, "real", strains);
 
-        System.exit(1);
-
-        for (int r = 0; r < 1000; r++) {
-            Sequence[][] allSeqs2 = new Sequence[allSeqs.length][];
-            for (int i = 0; i < fams.length; i++) {
-                String[] al = fams[i].getInducedMultipleAlignment().getSecondElement();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+              : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
 
-                String[][] split = new String[al.length][];
-                for (int k = 0; k < al.length; k++) {
-                    split[k] = al[k].trim().split(" ");
-                }
-                int[] part = new int[split[0].length];
-                int curr = 0;
-                for (int j = 1; j < part.length; j++) {
-                    innerloop:
-                    for (int k = 0; k < split.length; k++) {
-                        if ((split[k][j].equals("--") && !split[k][j - 1].equals("--")) ||
-                              (!split[k][j].equals("--") && split[k][j - 1].equals("--"))) {
-                            curr++;
-                            break innerloop;
-                        }
-                    }
-                    part[j] = curr;
-                }
-                //	System.out.println(Arrays.toString(part));
-                int[] ends = new int[part[part.length - 1] + 1];
-                int j = -1, k = 0;
-                while (j < part.length) {
-                    j++;
-                    while (j < part.length && (j == 0 || part[j] == part[j - 1])) {
-                        j++;
-                    }
-                    //System.out.println(k+" "+j);
-                    ends[k] = j;
-                    k++;
+        //RVDs are decoded once into codes shared by the RVD sequences and the alignments
+        HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        int[][][] real = new int[fams.length][][];
+        Alignment[] alignments = new Alignment[fams.length];
+        for (int i = 0; i < fams.length; i++) {
+            LinkedList<int[]> unique = new LinkedList<int[]>();
+            for (int j = 0; j < allSeqs[i].length; j++) {
+                int[] rvds = new int[allSeqs[i][j].getLength()];
+                for (int k = 0; k < rvds.length; k++) {
+                    rvds[k] = getCode(codes, rvdAlph.getSymbol(0, allSeqs[i][j].discreteVal(k)));
                 }
-                //System.out.println(Arrays.toString(ends));
-                int start = 0;
-                int[] perms = new int[part.length];
-
-                for (j = 0; j < ends.length; j++) {
-                    int end = ends[j];
-                    int[] perm = new int[end - start];
-                    for (int l = 0; l < perm.length; l++) {
-                        perm[l] = start + l;
-                    }
-                    permute(perm);
+                addIfAbsent(unique, rvds, rvds.length);
+            }
+            real[i] = unique.toArray(new int[0][]);
 
-                    System.arraycopy(perm, 0, perms, start, perm.length);
+            alignments[i] = new Alignment(fams[i].getInducedMultipleAlignment().getSecondElement(),
+                  codes);
+            if (alignments[i].rvds.length != allSeqs[i].length) {
+                throw new RuntimeException();
+            }
+        }
 
-                    start = ends[j];
-                }
-                //System.out.println(Arrays.toString(perms));
+        int[] realCounts = new int[fams.length * fams.length];
+        countMatches(real, realCounts, minlen);
 
-                if (split.length != allSeqs[i].length) {
-                    throw new RuntimeException();
+        Summary summary = permutationTest(alignments, realCounts, rounds, threads, seed, minlen);
+
+        int total = 0;
+        for (int i = 0; i < realCounts.length; i++) {
+            total += realCounts[i];
+        }
+        System.out.println("total\t" + total + "\t" + summary.totalSum / rounds + "\t"
+              + Math.sqrt(Math.max(0, summary.totalSumSq / rounds
+              - (summary.totalSum / rounds) * (summary.totalSum / rounds))) + "\t"
+              + (summary.totalExceed + 1) / (double) (rounds + 1));
+        for (int i = 0; i < fams.length; i++) {
+            for (int k = i + 1; k < fams.length; k++) {
+                int p = i * fams.length + k;
+                if (realCounts[p] > 0) {
+                    System.out.println(names[i] + "\t" + names[k] + "\t" + realCounts[p] + "\t"
+                          + summary.sum[p] / (double) rounds + "\t"
+                          + (summary.exceed[p] + 1) / (double) (rounds + 1) + "\t" + strains[i]
+                          + "\t" + strains[k]);
                 }
+            }
+        }
 
-                allSeqs2[i] = new Sequence[split.length];
+    }
 
-                for (j = 0; j < split.length; j++) {
-                    String[] temp = split[j].clone();
-                    for (k = 0; k < temp.length; k++) {
-                        temp[k] = split[j][perms[k]];
-                    }
-                    StringBuffer strb = new StringBuffer();
-                    for (k = 0; k < temp.length; k++) {
-                        if (strb.length() > 0) {
-                            strb.append(" ");
-                        }
-                        if (!temp[k].equals("--")) {
-                            strb.append(temp[k]);
+    /**
+     * Runs <code>rounds</code> permutations of the columns within the blocks of all
+     * <code>alignments</code> on <code>threads</code> threads and counts the matches between
+     * families of each. Permutation <code>r</code> draws from its own random generator seeded by
+     * <code>seed</code> and <code>r</code>, so the results are the same for any number of threads.
+     */
+    private static Summary permutationTest(Alignment[] alignments, int[] realCounts, int rounds,
+          int threads, long seed, int minlen) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            LinkedList<Future<Summary>> tasks = new LinkedList<Future<Summary>>();
+            for (int from = 0; from < rounds; from += ROUNDS_PER_TASK) {
+                int a = from;
+                int to = Math.min(rounds, from + ROUNDS_PER_TASK);
+                tasks.add(pool.submit(() -> {
+                    Summary summary = new Summary(realCounts.length);
+                    int[][][] rvds = new int[alignments.length][][];
+                    int[] counts = new int[realCounts.length];
+                    for (int r = a; r < to; r++) {
+                        Random random = new Random(seed + r * 0x9E3779B97F4A7C15L);
+                        for (int i = 0; i < alignments.length; i++) {
+                            rvds[i] = alignments[i].permute(random);
                         }
+                        countMatches(rvds, counts, minlen);
+                        summary.add(counts, realCounts);
                     }
-                    Sequence rvds = Sequence.create(rvdAlph, strb.toString(), " ");
-                    allSeqs2[i][j] = rvds;
-                    //System.out.println(allSeqs[i][j]+" <-> "+allSeqs2[i][j]);
-                }
-
+                    return summary;
+                }));
             }
+            Summary summary = new Summary(realCounts.length);
+            for (Future<Summary> task : tasks) {
+                summary.add(task.get());
+            }
+            return summary;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            printCounts(allSeqs2, names, "rand" + r, strains);
+    /**
+     * Counts the matches between the distinct RVD sequences of each pair of families
+     * <code>i &lt; k</code> into <code>counts[i*rvds.length+k]</code>.
+     */
+    private static void countMatches(int[][][] rvds, int[] counts, int minlen) {
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < rvds.length; i++) {
+            for (int k = i + 1; k < rvds.length; k++) {
+                int n = 0;
+                for (int[] rvds1 : rvds[i]) {
+                    for (int[] rvds2 : rvds[k]) {
+                        n += countMatches(rvds1, rvds2, minlen);
+                    }
+                }
+                counts[i * rvds.length + k] = n;
+            }
+        }
+    }
 
+    /**
+     * Primitive version of {@link #findMatches(Sequence, Sequence, ArrayList, int)}, which only
+     * counts the matches.
+     */
+    private static int countMatches(int[] rvds1, int[] rvds2, int minlen) {
+        int len1 = rvds1.length;
+        int len2 = rvds2.length;
+        int n = 0;
+        for (int i = 0; i < len1 - minlen + 1; i++) {
+            for (int j = 0; j < len2 - minlen + 1; j++) {
+                if (i == 0 || j == 0 || rvds1[i - 1] != rvds2[j - 1]) {
+                    int k = 0;
+                    while (i + k < len1 && j + k < len2 && rvds1[i + k] == rvds2[j + k]) {
+                        k++;
+                    }
+                    if (k > minlen) {
+                        n++;
+                    }
+                }
+            }
         }
+        return n;
+    }
 
+    private static int getCode(HashMap<String, Integer> codes, String rvd) {
+        Integer code = codes.get(rvd);
+        if (code == null) {
+            code = codes.size();
+            codes.put(rvd, code);
+        }
+        return code;
+    }
 
+    /**
+     * Adds the first <code>len</code> codes of <code>rvds</code> to <code>unique</code> unless
+     * already present.
+     */
+    private static void addIfAbsent(LinkedList<int[]> unique, int[] rvds, int len) {
+        for (int[] other : unique) {
+            if (Arrays.equals(other, 0, other.length, rvds, 0, len)) {
+                return;
+            }
+        }
+        unique.add(Arrays.copyOf(rvds, len));
     }
 
 
@@ -198,10 +280,9 @@ public class RVDCopies {
     }
 
 
-    private static void permute(int[] perm) {
-        Random r = new Random();
-        for (int i = 0; i < perm.length; i++) {
-            int swap = i + r.nextInt(perm.length - i);
+    private static void permute(int[] perm, int start, int end, Random r) {
+        for (int i = start; i < end; i++) {
+            int swap = i + r.nextInt(end - i);
             int temp = perm[swap];
             perm[swap] = perm[i];
             perm[i] = temp;
@@ -234,4 +315,111 @@ public class RVDCopies {
 
     }
 
+    /**
+     * The induced multiple alignment of a family as codes, with {@link #GAP} for gaps, split into
+     * blocks of columns between which the gap pattern of some row changes.
+     */
+    private static class Alignment {
+
+        private final int[][] rvds;
+        private final int[] ends;
+
+        private Alignment(String[] al, HashMap<String, Integer> codes) {
+            String[][] split = new String[al.length][];
+            for (int k = 0; k < al.length; k++) {
+                split[k] = al[k].trim().split(" ");
+            }
+            rvds = new int[split.length][split[0].length];
+            for (int k = 0; k < split.length; k++) {
+                for (int j = 0; j < split[k].length; j++) {
+                    rvds[k][j] = split[k][j].equals("--") ? GAP : getCode(codes, split[k][j]);
+                }
+            }
+            IntList ends = new IntList();
+            for (int j = 1; j < rvds[0].length; j++) {
+                for (int k = 0; k < rvds.length; k++) {
+                    if ((rvds[k][j] == GAP) != (rvds[k][j - 1] == GAP)) {
+                        ends.add(j);
+                        break;
+                    }
+                }
+            }
+            ends.add(rvds[0].length);
+            this.ends = ends.toArray();
+        }
+
+        /**
+         * Permutes the columns within each block and returns the distinct rows without gaps.
+         */
+        private int[][] permute(Random r) {
+            int[] perm = new int[rvds[0].length];
+            for (int j = 0; j < perm.length; j++) {
+                perm[j] = j;
+            }
+            int start = 0;
+            for (int j = 0; j < ends.length; j++) {
+                RVDCopies.permute(perm, start, ends[j], r);
+                start = ends[j];
+            }
+            LinkedList<int[]> unique = new LinkedList<int[]>();
+            int[] row = new int[perm.length];
+            for (int k = 0; k < rvds.length; k++) {
+                int len = 0;
+                for (int j = 0; j < perm.length; j++) {
+                    if (rvds[k][perm[j]] != GAP) {
+                        row[len++] = rvds[k][perm[j]];
+                    }
+                }
+                addIfAbsent(unique, row, len);
+            }
+            return unique.toArray(new int[0][]);
+        }
+
+    }
+
+    /**
+     * Summary statistics of the match counts of several permutations.
+     */
+    private static class Summary {
+
+        private final long[] exceed;
+        private final long[] sum;
+        private long totalExceed;
+        private double totalSum;
+        private double totalSumSq;
+
+        private Summary(int numPairs) {
+            this.exceed = new long[numPairs];
+            this.sum = new long[numPairs];
+        }
+
+        private void add(int[] counts, int[] realCounts) {
+            long total = 0, realTotal = 0;
+            for (int p = 0; p < counts.length; p++) {
+                if (counts[p] >= realCounts[p]) {
+                    exceed[p]++;
+                }
+                sum[p] += counts[p];
+                total += counts[p];
+                realTotal += realCounts[p];
+            }
+            if (total >= realTotal) {
+                totalExceed++;
+            }
+            totalSum += total;
+            totalSumSq += (double) total * total;
+        }
+
+        private void add(Summary other) {
+            for (int p = 0; p < exceed.length; p++) {
+                exceed[p] += other.exceed[p];
+                sum[p] += other.sum[p];
+            }
+            totalExceed += other.totalExceed;
+            totalSum += other.totalSum;
+            totalSumSq += other.totalSumSq;
+        }
+
+    }
+
 }
@@ -0,0 +1,168 @@
+package annotale;
+
+import java.util.Arrays;
+
+import de.jstacs.data.sequences.Sequence;
+
+
+/**
+ * Prefilter for the profile HMM scans of {@link NHMMer}, {@link NHMMerLoose} and
+ * {@link FilterPacBioReads}: counts for each window of a sequence how many of its
+ * <code>frag</code>-mers are consecutive, non-overlapping fragments of the repeat consensus.
+ * <br>
+ * The <code>frag</code>-mers are rolled over the sequence as 2-bit encoded <code>long</code> keys
+ * and looked up in a primitive open-addressing hash set, so each base costs constant time and
+ * no objects. Fragments and windows containing other symbols than A, C, G, and T do not match.
+ */
+public class SeedFilter {
+
+    private static final long EMPTY = -1L;
+
+    private final int frag;
+    private final long[] table;
+    private final int numSeeds;
+
+    /**
+     * Creates a new filter for the fragments <code>consensus[i*frag..(i+1)*frag)</code>.
+     *
+     * @param consensus the consensus of the repeat HMM
+     * @param frag the fragment length, at most 31
+     */
+    public SeedFilter(String consensus, int frag) {
+        if (frag < 1 || frag > 31) {
+            throw new IllegalArgumentException("Fragment length must be between 1 and 31.");
+        }
+        this.frag = frag;
+        int n = consensus.length() / frag;
+        this.table = new long[Integer.highestOneBit(Math.max(1, 4 * n)) * 2];
+        Arrays.fill(table, EMPTY);
+        int num = 0;
+        String upper = consensus.toUpperCase();
+        for (int i = 0; i < n; i++) {
+            long key = 0;
+            for (int j = i * frag; j < (i + 1) * frag && key != EMPTY; j++) {
+                int c = "ACGT".indexOf(upper.charAt(j));
+                key = c < 0 ? EMPTY : (key << 2) | c;
+            }
+            if (key != EMPTY && add(key)) {
+                num++;
+            }
+        }
+        this.numSeeds = num;
+    }
+
+    /**
+     * Returns the number of distinct fragments of the consensus.
+     *
+     * @return the number of fragments
+     */
+    public int getNumberOfSeeds() {
+        return numSeeds;
+    }
+
+    /**
+     * Returns the number of fragment occurrences within each window of width <code>w</code> of
+     * <code>seq</code> starting at positions <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive).
+     *
+     * @param seq the sequence
+     * @param from the first window start
+     * @param to the window start after the last one
+     * @param w the window width
+     * @return the counts, indexed by window start minus <code>from</code>
+     */
+    public int[] countSeeds(Sequence seq, int from, int to, int w) {
+        int n = Math.max(0, to - from);
+        if (n == 0 || w < frag) {
+            return new int[n];
+        }
+        byte[] codes = ProfileHMM.encode(seq, from, to - 1 + w - 1);
+        int[] counts = new int[n + w];
+        countSeeds(codes, 0, n, w, counts);
+        return Arrays.copyOf(counts, n);
+    }
+
+    /**
+     * Stores the number of fragment occurrences within each window of width <code>w</code> of the
+     * encoded sequence <code>codes</code> (see {@link ProfileHMM#encode(CharSequence, boolean,
+     * byte[])}) starting at positions <code>from</code> (inclusive) to <code>to</code> (exclusive)
+     * in <code>counts</code>, indexed by window start minus <code>from</code>. The remaining
+     * entries of <code>counts</code> are used as buffer, so no memory is allocated.
+     *
+     * @param codes the encoded sequence
+     * @param from the first window start
+     * @param to the window start after the last one
+     * @param w the window width
+     * @param counts the array for the counts, at least <code>to - from + w</code> long
+     */
+    public void countSeeds(byte[] codes, int from, int to, int w, int[] counts) {
+        int n = to - from;
+        if (n <= 0) {
+            return;
+        }
+        if (w < frag) {
+            Arrays.fill(counts, 0, n, 0);
+            return;
+        }
+        long mask = (1L << (2 * frag)) - 1L;
+        //first, counts[p-from] is 1 if the fragment starting at p is a seed
+        int lastStart = to - 1 + w - frag;
+        Arrays.fill(counts, 0, lastStart - from + 1, 0);
+        long key = 0;
+        int valid = 0;
+        for (int i = from; i < lastStart + frag; i++) {
+            int c = codes[i];
+            if (c < 0) {
+                valid = 0;
+                key = 0;
+            } else {
+                key = ((key << 2) | c) & mask;
+                valid++;
+            }
+            if (valid >= frag && contains(key)) {
+                counts[i - frag + 1 - from] = 1;
+            }
+        }
+        //then the hits are summed over the windows in place
+        int num = 0;
+        for (int p = 0; p <= w - frag; p++) {
+            num += counts[p];
+        }
+        int previous = counts[0];
+        counts[0] = num;
+        for (int j = 1; j < n; j++) {
+            num += counts[j + w - frag] - previous;
+            previous = counts[j];
+            counts[j] = num;
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (table.length - 1);
+    }
+
+    private boolean add(long key) {
+        int i = slot(key);
+        while (table[i] != EMPTY) {
+            if (table[i] == key) {
+                return false;
+            }
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = key;
+        return true;
+    }
+
+    private boolean contains(long key) {
+        int i = slot(key);
+        while (table[i] != EMPTY) {
+            if (table[i] == key) {
+                return true;
+            }
+            i = (i + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+}
@@ -2,6 +2,7 @@ package annotale;
 
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 import de.jstacs.algorithms.alignment.Alignment;
 import de.jstacs.algorithms.alignment.Alignment.AlignmentType;
@@ -15,6 +16,7 @@ import de.jstacs.data.alphabets.DNAAlphabetContainer;
 import de.jstacs.data.sequences.Sequence;
 import de.jstacs.data.sequences.annotation.SimpleSequenceAnnotationParser;
 import de.jstacs.tools.Protocol;
+import de.jstacs.utils.IntList;
 import annotale.TALE.Repeat;
 import annotale.Tools.Aligner;
 import annotale.Tools.ProteinAlphabetContainer;
@@ -24,9 +26,13 @@ import annotale.Tools.Translator;
 public class SplitTALEs {
 
 
+    private static final double GAP_OPENING = 3;
+    private static final double GAP_EXTENSION = 2;
+
+    private static final byte FROM_M = 0, FROM_X = 1, FROM_Y = 2;
+
+
     public static TALE[] split(String id, Sequence tale, Protocol protocol) throws Exception {
-        Costs costs = new AffineCosts(3, new MatrixCosts(Aligner.DEFAULT.getMatrix(), 2));
-        Alignment align = new Alignment(costs);
 
         AlphabetContainer protAlph = ProteinAlphabetContainer.SINGLETON;
         Sequence prot = null;
@@ -36,86 +42,23 @@ public class SplitTALEs {
             prot = Tools.Translator.DEFAULT.translate(tale, 0);
         }
 
-        int talelen = prot.getLength();
-
-        Sequence repeat = TALEConsensus.repeat;
-        Sequence lastRepeat = TALEConsensus.lastRepeat;
-        Sequence start = TALEConsensus.start;
-        Sequence end = TALEConsensus.end;
-
-        int nreps = 0;
-
-        StringBuffer first = new StringBuffer();
-        first.append(start);
-		/*for(int j=0;j<nreps;j++){
-			first.append( repeat );
-		}*/
-        String last = lastRepeat.toString() + end.toString();
-
-        Sequence template = Sequence.create(protAlph, first.toString() + last);
-        PairwiseStringAlignment bestAl = align.getAlignment(AlignmentType.GLOBAL, template, prot);
-        Double best = bestAl.getCost();
-
-        while (true) {
-
-            template = Sequence.create(protAlph, first.toString() + repeat.toString() + last);
-
-            PairwiseStringAlignment psa = align.getAlignment(AlignmentType.GLOBAL, template, prot);
-            if (psa.getCost() > best) {
-                break;
-            } else {
-                best = psa.getCost();
-                bestAl = psa;
-                nreps++;
-                first.append(repeat);
-            }
-
-        }
-
-        //System.out.println(bestAl);
+        int[] lengths = getSegmentLengths(prot, Aligner.DEFAULT.getMatrix(), GAP_OPENING,
+              GAP_EXTENSION);
 
-        String al1 = bestAl.getAlignedString(0);
-        String al2 = bestAl.getAlignedString(1);
-        int alignmentIndex = 0;
-        int index = 0;
-        while (index < start.getLength()) {
-            if (al1.charAt(alignmentIndex) != '-') {
-                index++;
-            }
-            alignmentIndex++;
-        }
+        int nreps = lengths.length - 3;
 
-        Sequence foundStart = prot.getSubSequence(0,
-              al2.substring(0, alignmentIndex).replaceAll("-", "").length());
+        Sequence foundStart = prot.getSubSequence(0, lengths[0]);
 
-        int off = alignmentIndex;
         int origOff = foundStart.getLength();
 
         Repeat[] foundRepeats = new Repeat[nreps + 1];
         for (int j = 0; j < nreps; j++) {
-            index = 0;
-            while (index < repeat.getLength()) {
-                if (al1.charAt(alignmentIndex) != '-') {
-                    index++;
-                }
-                alignmentIndex++;
-            }
-
-            int currL = al2.substring(off, alignmentIndex).replaceAll("-", "").length();
+            int currL = lengths[j + 1];
             foundRepeats[j] = new Repeat(prot.getSubSequence(origOff, currL));
             origOff += currL;
-            off = alignmentIndex;
-        }
-
-        index = 0;
-        while (index < lastRepeat.getLength()) {
-            if (al1.charAt(alignmentIndex) != '-') {
-                index++;
-            }
-            alignmentIndex++;
         }
 
-        int currL = al2.substring(off, alignmentIndex).replaceAll("-", "").length();
+        int currL = lengths[nreps + 1];
         if (currL == 0) {
             Repeat[] reps2 = new Repeat[nreps];
             System.arraycopy(foundRepeats, 0, reps2, 0, reps2.length);
@@ -123,17 +66,9 @@ public class SplitTALEs {
         } else {
             foundRepeats[foundRepeats.length - 1] = new Repeat(prot.getSubSequence(origOff, currL));
         }
-        off = alignmentIndex;
         origOff += currL;
 
-        index = 0;
-        while (index < end.getLength()) {
-            if (al1.charAt(alignmentIndex) != '-') {
-                index++;
-            }
-            alignmentIndex++;
-        }
-        currL = al2.substring(off, alignmentIndex).replaceAll("-", "").length();
+        currL = lengths[nreps + 2];
         Sequence foundEnd = prot.getSubSequence(origOff, currL);
 
         //TALE protTALE = new TALE( id, foundStart, foundRepeats, foundEnd, true );
@@ -141,7 +76,7 @@ public class SplitTALEs {
 
         if (tale.getAlphabetContainer().checkConsistency(DNAAlphabetContainer.SINGLETON)) {
             Sequence dnaStart = tale.getSubSequence(0, foundStart.getLength() * 3);
-            off = foundStart.getLength();
+            int off = foundStart.getLength();
             Repeat[] dnaRepeat = new Repeat[foundRepeats.length];
             for (int j = 0; j < dnaRepeat.length; j++) {
                 dnaRepeat[j] = new Repeat(
@@ -176,6 +111,213 @@ public class SplitTALEs {
         return new TALE[]{dnaTALE, transl};
     }
 
+    /**
+     * Segments a TALE protein into N-terminus, repeats, last repeat and C-terminus by a single
+     * global alignment against the wrap-around template start (repeat)* lastRepeat end, where the
+     * repeat consensus may be visited any number of times. Affine gaps cost
+     * <code>gapOpening + k*gapExtension</code> for a gap of length <code>k</code>. The
+     * alignment takes time linear in the length of the protein.
+     *
+     * @return the lengths of the N-terminus, all repeats, the last repeat and the C-terminus in
+     * the protein. As for the linear template, residues inserted behind the last position of a
+     * part are assigned to the following part and residues behind the C-terminus are dropped.
+     */
+    static int[] getSegmentLengths(Sequence prot, double[][] matrix, double gapOpening,
+          double gapExtension) {
+
+        Sequence[] cons = new Sequence[]{TALEConsensus.start, TALEConsensus.repeat,
+              TALEConsensus.lastRepeat, TALEConsensus.end};
+        int[][] parts = new int[cons.length][];
+        for (int i = 0; i < cons.length; i++) {
+            parts[i] = new int[cons[i].getLength()];
+            for (int j = 0; j < parts[i].length; j++) {
+                parts[i][j] = cons[i].discreteVal(j);
+            }
+        }
+        int[] seq = new int[prot.getLength()];
+        for (int j = 0; j < seq.length; j++) {
+            seq[j] = prot.discreteVal(j);
+        }
+        return getSegmentLengths(parts, seq, matrix, gapOpening, gapExtension);
+    }
+
+    private static int[] getSegmentLengths(int[][] parts, int[] prot, double[][] matrix,
+          double gapOpening, double gapExtension) {
+
+        int numT = 0;
+        for (int i = 0; i < parts.length; i++) {
+            numT += parts[i].length;
+        }
+        // template positions 1..numT, 0 is the state before the first template position
+        int[] tmpl = new int[numT + 1];
+        boolean[] partStart = new boolean[numT + 1];
+        boolean[] partEnd = new boolean[numT + 1];
+        for (int i = 0, t = 1; i < parts.length; i++) {
+            for (int j = 0; j < parts[i].length; j++, t++) {
+                tmpl[t] = parts[i][j];
+                partStart[t] = j == 0;
+                partEnd[t] = j == parts[i].length - 1;
+            }
+        }
+
+        int lastStart = parts[0].length;
+        int repeatEnd = lastStart + parts[1].length;
+
+        // predecessors of template positions, first repeat and last repeat may also follow a repeat
+        int[][] pred = new int[numT + 1][];
+        for (int t = 1; t <= numT; t++) {
+            if (t == lastStart + 1 || t == repeatEnd + 1) {
+                pred[t] = new int[]{lastStart, repeatEnd};
+            } else {
+                pred[t] = new int[]{t - 1};
+            }
+        }
+
+        int n = prot.length;
+        int[] seq = new int[n + 1];
+        System.arraycopy(prot, 0, seq, 1, n);
+
+        double open = gapOpening + gapExtension;
+
+        double[][] mPrev = new double[3][numT + 1];
+        double[][] mCurr = new double[3][numT + 1];
+        // traceback: state of predecessor times 2 plus index of its template position in pred
+        byte[][][] back = new byte[3][n + 1][numT + 1];
+
+        for (int j = 0; j <= n; j++) {
+            double[] m = mCurr[FROM_M], x = mCurr[FROM_X], y = mCurr[FROM_Y];
+            Arrays.fill(m, Double.POSITIVE_INFINITY);
+            Arrays.fill(x, Double.POSITIVE_INFINITY);
+            Arrays.fill(y, Double.POSITIVE_INFINITY);
+            for (int t = 0; t <= numT; t++) {
+                if (j == 0 && t == 0) {
+                    m[t] = 0;
+                }
+                if (j > 0) {
+                    double[][] prev = mPrev;
+                    if (t > 0) {
+                        double sub = matrix[tmpl[t]][seq[j]];
+                        for (int k = 0; k < pred[t].length; k++) {
+                            int p = pred[t][k];
+                            for (byte s = 0; s < 3; s++) {
+                                double v = prev[s][p] + sub;
+                                if (v < m[t]) {
+                                    m[t] = v;
+                                    back[FROM_M][j][t] = (byte) (s * 2 + k);
+                                }
+                            }
+                        }
+                    }
+                    double v = prev[FROM_M][t] + open;
+                    if (v < y[t]) {
+                        y[t] = v;
+                        back[FROM_Y][j][t] = FROM_M * 2;
+                    }
+                    v = prev[FROM_X][t] + open;
+                    if (v < y[t]) {
+                        y[t] = v;
+                        back[FROM_Y][j][t] = FROM_X * 2;
+                    }
+                    v = prev[FROM_Y][t] + gapExtension;
+                    if (v < y[t]) {
+                        y[t] = v;
+                        back[FROM_Y][j][t] = FROM_Y * 2;
+                    }
+                }
+                if (t > 0) {
+                    updateDeletion(mCurr, back[FROM_X][j], pred[t], t, open, gapExtension);
+                }
+            }
+            // second pass for deletions wrapping around from the end of the repeat
+            for (int t = lastStart + 1; t <= numT; t++) {
+                updateDeletion(mCurr, back[FROM_X][j], pred[t], t, open, gapExtension);
+            }
+            double[][] temp = mPrev;
+            mPrev = mCurr;
+            mCurr = temp;
+        }
+
+        // traceback from the end of template and protein
+        byte state = FROM_M;
+        for (byte s = 1; s < 3; s++) {
+            if (mPrev[s][numT] < mPrev[state][numT]) {
+                state = s;
+            }
+        }
+        IntList stepTemplate = new IntList();
+        IntList stepState = new IntList();
+        int j = n, t = numT;
+        while (j > 0 || t > 0) {
+            stepTemplate.add(t);
+            stepState.add(state);
+            byte b = back[state][j][t];
+            if (state == FROM_M) {
+                t = pred[t][b % 2];
+                j--;
+            } else if (state == FROM_X) {
+                t = pred[t][b % 2];
+            } else {
+                j--;
+            }
+            state = (byte) (b / 2);
+        }
+
+        IntList lengths = new IntList();
+        int pending = 0;
+        int curr = -1;
+        boolean atEnd = true;
+        for (int i = stepTemplate.length() - 1; i >= 0; i--) {
+            int st = stepState.get(i);
+            int tp = stepTemplate.get(i);
+            if (st == FROM_Y) {
+                if (atEnd) {
+                    pending++;
+                } else {
+                    curr++;
+                }
+            } else {
+                if (partStart[tp]) {
+                    if (curr >= 0) {
+                        lengths.add(curr);
+                    }
+                    curr = pending;
+                    pending = 0;
+                }
+                if (st == FROM_M) {
+                    curr++;
+                }
+                atEnd = partEnd[tp];
+            }
+        }
+        lengths.add(curr);
+
+        return lengths.toArray();
+    }
+
+    private static void updateDeletion(double[][] curr, byte[] back, int[] pred, int t,
+          double open, double gapExtension) {
+        double[] x = curr[FROM_X];
+        for (int k = 0; k < pred.length; k++) {
+            int p = pred[k];
+            double v = curr[FROM_M][p] + open;
+            if (v < x[t]) {
+                x[t] = v;
+                back[t] = (byte) (FROM_M * 2 + k);
+            }
+            v = curr[FROM_Y][p] + open;
+            if (v < x[t]) {
+                x[t] = v;
+                back[t] = (byte) (FROM_Y * 2 + k);
+            }
+            v = curr[FROM_X][p] + gapExtension;
+            if (v < x[t]) {
+                x[t] = v;
+                back[t] = (byte) (FROM_X * 2 + k);
+            }
+        }
+    }
+
+
     public static void main(String[] args) throws Exception {
 
         AlphabetContainer protAlph = Tools.Translator.DEFAULT.getProteinAlphabet();
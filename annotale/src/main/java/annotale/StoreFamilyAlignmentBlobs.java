@@ -3,6 +3,8 @@ package annotale;
 import de.jstacs.io.NonParsableException;
 import de.jstacs.io.XMLParser;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Connection;
@@ -10,26 +12,52 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 public class StoreFamilyAlignmentBlobs {
 
+    private static final int BATCH_SIZE = 500;
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: StoreFamilyAlignmentBlobs <class_definitions.xml> <sqlite.db>");
+            System.err.println(
+                  "Usage: StoreFamilyAlignmentBlobs <class_definitions.xml> <sqlite.db> [--threads <n>] [--compress]");
             System.exit(1);
         }
 
         String xmlPath = args[0];
         String dbPath = args[1];
 
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean compress = false;
+        for (int i = 2; i < args.length; i++) {
+            if ("--compress".equals(args[i])) {
+                compress = true;
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.exit(1);
+            }
+        }
+
         TALEFamilyBuilder builder = loadBuilder(xmlPath);
 
         try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
             conn.setAutoCommit(false);
-            ensureBlobColumn(conn);
-            int updated = storeBlobs(conn, builder);
-            conn.commit();
-            System.out.println("Updated " + updated + " families with alignment blobs.");
+            try {
+                ensureBlobColumn(conn);
+                int updated = storeBlobs(conn, builder, threads, compress);
+                conn.commit();
+                System.out.println("Updated " + updated + " families with alignment blobs.");
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            }
         }
     }
 
@@ -64,24 +92,74 @@ public class StoreFamilyAlignmentBlobs {
         return false;
     }
 
-    private static int storeBlobs(Connection conn, TALEFamilyBuilder builder) throws Exception {
+    /**
+     * Renders the alignments of all families on a thread pool and writes them in family order
+     * with one prepared statement, executed in batches of {@link #BATCH_SIZE} updates. If
+     * <code>compress</code> is set, the blobs are stored as gzipped bytes instead of text.
+     */
+    private static int storeBlobs(Connection conn, TALEFamilyBuilder builder, int threads,
+          boolean compress) throws Exception {
+        TALEFamilyBuilder.TALEFamily[] families = builder.getFamilies();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
         int updated = 0;
         try (PreparedStatement ps = conn.prepareStatement(
               "UPDATE tale_family SET alignments_blob=? WHERE name=?")) {
-            for (TALEFamilyBuilder.TALEFamily family : builder.getFamilies()) {
-                String blob = extractAlignmentsXml(family);
-                ps.setString(1, blob);
+            LinkedList<Future<Object>> blobs = new LinkedList<Future<Object>>();
+            for (TALEFamilyBuilder.TALEFamily family : families) {
+                blobs.add(pool.submit(() -> {
+                    String blob = extractAlignmentsXml(family);
+                    return compress && blob != null ? gzip(blob) : blob;
+                }));
+            }
+
+            int inBatch = 0;
+            for (TALEFamilyBuilder.TALEFamily family : families) {
+                Object blob = blobs.removeFirst().get();
+                if (blob instanceof byte[]) {
+                    ps.setBytes(1, (byte[]) blob);
+                } else {
+                    ps.setString(1, (String) blob);
+                }
                 ps.setString(2, family.getFamilyId());
-                updated += ps.executeUpdate();
+                ps.addBatch();
+                inBatch++;
+                if (inBatch == BATCH_SIZE) {
+                    updated += sum(ps.executeBatch());
+                    inBatch = 0;
+                }
+            }
+            if (inBatch > 0) {
+                updated += sum(ps.executeBatch());
             }
+        } finally {
+            pool.shutdownNow();
         }
         return updated;
     }
 
+    private static int sum(int[] counts) {
+        int sum = 0;
+        for (int c : counts) {
+            if (c > 0) {
+                sum += c;
+            }
+        }
+        return sum;
+    }
+
+    private static byte[] gzip(String blob) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(blob.length() / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(blob.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
     private static String extractAlignmentsXml(TALEFamilyBuilder.TALEFamily family) {
         try {
-            StringBuffer full = family.toXML();
-            StringBuffer extracted = XMLParser.extractForTag(new StringBuffer(full), "alignments");
+            StringBuffer extracted = XMLParser.extractForTag(family.alignmentsToXML(),
+                  "alignments");
             return extracted == null ? null : extracted.toString();
         } catch (Exception e) {
             return null;
@@ -8,6 +8,8 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
 
@@ -96,6 +98,8 @@ public class TALEFamilyBuilder implements Storable {
         private String id;
         private StringAlignment[][] alignments;
         private ClusterTree<TALE> tree;
+        //the members of a family never change, so the induced alignment is computed at most once
+        private Pair<TALE[], String[]> inducedAlignment;
 
 
         private TALEFamily(String familyId, ClusterTree<TALE> tree, TALEFamilyBuilder builder) {
@@ -134,15 +138,54 @@ public class TALEFamilyBuilder implements Storable {
             id = (String) XMLParser.extractObjectForTags(xml, "id");
             //linkage = (Linkage)XMLParser.extractObjectForTags( xml, "linkage" );
             tree = (ClusterTree<TALE>) XMLParser.extractObjectForTags(xml, "tree");
+            StringBuffer induced = XMLParser.extractForTag(xml, "inducedAlignment");
+            if (induced != null) {
+                inducedAlignment = parseInducedAlignment(induced);
+            }
 
         }
 
+        /**
+         * Parses an induced multiple alignment stored by {@link #toXML(boolean)}, or returns
+         * <code>null</code> if its TALE IDs do not match the members of this family.
+         */
+        private Pair<TALE[], String[]> parseInducedAlignment(StringBuffer xml)
+              throws NonParsableException {
+            String[] ids = (String[]) XMLParser.extractObjectForTags(xml, "ids");
+            String[] rows = (String[]) XMLParser.extractObjectForTags(xml, "rows");
+            TALE[] members = tree.getClusterElements();
+            if (ids.length != members.length || rows.length != members.length) {
+                return null;
+            }
+            HashMap<String, TALE> byId = new HashMap<String, TALE>();
+            for (int i = 0; i < members.length; i++) {
+                byId.put(members[i].getId(), members[i]);
+            }
+            TALE[] tales = new TALE[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                tales[i] = byId.remove(ids[i]);
+                if (tales[i] == null) {
+                    return null;
+                }
+            }
+            return new Pair<TALE[], String[]>(tales, rows);
+        }
+
 
         public int compareTo(TALEFamily tf2) {
             return id.compareTo(tf2.getFamilyId());
         }
 
         public StringBuffer toXML() {
+            return toXML(false);
+        }
+
+        /**
+         * Returns the XML representation of this family, which includes its induced multiple
+         * alignment if <code>withInducedAlignment</code>. A family parsed from that representation
+         * does not need to compute the alignment again.
+         */
+        public StringBuffer toXML(boolean withInducedAlignment) {
             StringBuffer xml = new StringBuffer();
             XMLParser.appendObjectWithTags(xml, alignments, "alignments");
 /*			XMLParser.appendObjectWithTags( xml, at, "at" );
@@ -153,11 +196,34 @@ public class TALEFamilyBuilder implements Storable {
             XMLParser.appendObjectWithTags(xml, id, "id");
             //XMLParser.appendObjectWithTags( xml, linkage, "linkage" );
             XMLParser.appendObjectWithTags(xml, tree, "tree");
+            if (withInducedAlignment) {
+                Pair<TALE[], String[]> al = getInducedMultipleAlignment();
+                String[] ids = new String[al.getFirstElement().length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = al.getFirstElement()[i].getId();
+                }
+                StringBuffer induced = new StringBuffer();
+                XMLParser.appendObjectWithTags(induced, ids, "ids");
+                XMLParser.appendObjectWithTags(induced, al.getSecondElement(), "rows");
+                XMLParser.addTags(induced, "inducedAlignment");
+                xml.append(induced);
+            }
             XMLParser.addTags(xml, "TALEClass");
             return xml;
         }
 
 
+        /**
+         * Returns the XML representation of the pairwise alignments of the class members, as
+         * contained in {@link #toXML()}.
+         */
+        public StringBuffer alignmentsToXML() {
+            StringBuffer xml = new StringBuffer();
+            XMLParser.appendObjectWithTags(xml, alignments, "alignments");
+            return xml;
+        }
+
+
         public String getSpecificityConsensus(TALgetterDiffSM model)
               throws IllegalArgumentException, WrongAlphabetException {
             double[][] spec = getSpecificityProfile(model);
@@ -288,13 +354,7 @@ public class TALEFamilyBuilder implements Storable {
                 dist = getDist(builder);
             }
             if (pv == null) {
-                if (builder.costs instanceof AffineCosts) {
-                    Costs c2 = ((AffineCosts) builder.costs).getInternalCosts();
-                    if (c2 instanceof RVDCosts) {
-                        RVDCosts c3 = (RVDCosts) c2;
-                        pv = new AlignmentPValues(builder.getAllTALEs(), c3);
-                    }
-                }
+                pv = builder.getAlignmentPValues();
             }
             TALE[] members = getFamilyMembers();
             double[] ds = new double[members.length];
@@ -324,13 +384,7 @@ public class TALEFamilyBuilder implements Storable {
         public double getFamilySignificance(AlignmentPValues pv, TALEFamilyBuilder builder) {
 
             if (pv == null) {
-                if (builder.costs instanceof AffineCosts) {
-                    Costs c2 = ((AffineCosts) builder.costs).getInternalCosts();
-                    if (c2 instanceof RVDCosts) {
-                        RVDCosts c3 = (RVDCosts) c2;
-                        pv = new AlignmentPValues(builder.getAllTALEs(), c3);
-                    }
-                }
+                pv = builder.getAlignmentPValues();
             }
 
             if (pv == null) {
@@ -379,14 +433,10 @@ public class TALEFamilyBuilder implements Storable {
                   + builder.cut + ", " + builder.at + ")\n");
             sb.append("distance: " + format.format(tree.getDistance()) + "\n");
 
-            if (builder.costs instanceof AffineCosts) {
-                Costs c2 = ((AffineCosts) builder.costs).getInternalCosts();
-                if (c2 instanceof RVDCosts) {
-                    RVDCosts c3 = (RVDCosts) c2;
-                    double p = this.getFamilySignificance(
-                          new AlignmentPValues(builder.getAllTALEs(), c3), builder);
-                    sb.append("significance: p=" + formatE.format(Math.pow(10, p)) + "\n");
-                }
+            AlignmentPValues pv = builder.getAlignmentPValues();
+            if (pv != null) {
+                double p = this.getFamilySignificance(pv, builder);
+                sb.append("significance: p=" + formatE.format(Math.pow(10, p)) + "\n");
             }
             sb.append("\n" + this.inducedMultipleAlignmentToString() + "\n");
             if (model != null) {
@@ -529,8 +579,18 @@ public class TALEFamilyBuilder implements Storable {
             return sb.toString();
         }
 
-        public Pair<TALE[], String[]> getInducedMultipleAlignment() {
-            return getInducedMultipleAlignment(getTree(), this);
+        /**
+         * Returns the members of this family and their rows in the multiple alignment induced by
+         * the pairwise alignments along the family tree. The alignment is computed on the first
+         * call and re-used afterwards. Adding, removing or splitting classes in the builder
+         * creates new families, which compute their alignments anew.
+         */
+        public synchronized Pair<TALE[], String[]> getInducedMultipleAlignment() {
+            if (inducedAlignment == null) {
+                inducedAlignment = getInducedMultipleAlignment(getTree(), this);
+            }
+            return new Pair<TALE[], String[]>(inducedAlignment.getFirstElement().clone(),
+                  inducedAlignment.getSecondElement().clone());
         }
 
 
@@ -908,6 +968,9 @@ public class TALEFamilyBuilder implements Storable {
     private double pval;
     private String[] reservedNames;
 
+    private AlignmentPValues pValues;
+    private IdentityHashMap<TALE, Integer> taleIndexes;
+
     public TALEFamilyBuilder(TALE[] tales)
           throws IllegalArgumentException, IOException, WrongAlphabetException {
         this(tales, new AffineCosts(5.0, new RVDCosts(1.0, 0.2, 0.8, 0.0)), Linkage.AVERAGE,
@@ -1035,7 +1098,31 @@ public class TALEFamilyBuilder implements Storable {
         return extraGapExtension;
     }
 
+    /**
+     * Returns the background for computing alignment p-values of this builder, or
+     * <code>null</code> if the costs are not based on {@link RVDCosts}. The background is computed
+     * once and re-used until the members of the classes change.
+     */
+    public synchronized AlignmentPValues getAlignmentPValues() {
+        if (pValues == null && costs instanceof AffineCosts) {
+            Costs c2 = ((AffineCosts) costs).getInternalCosts();
+            if (c2 instanceof RVDCosts) {
+                pValues = new AlignmentPValues(getAllTALEs(), (RVDCosts) c2);
+            }
+        }
+        return pValues;
+    }
+
     public StringBuffer toXML() {
+        return toXML(false);
+    }
+
+    /**
+     * Returns the XML representation of this builder, which includes the induced multiple
+     * alignments of all classes if <code>withInducedAlignments</code>, so that tools loading the
+     * builder do not compute them again.
+     */
+    public StringBuffer toXML(boolean withInducedAlignments) {
         StringBuffer xml = new StringBuffer();
         XMLParser.appendObjectWithTags(xml, at, "at");
         XMLParser.appendObjectWithTags(xml, costs, "costs");
@@ -1046,11 +1133,16 @@ public class TALEFamilyBuilder implements Storable {
         xml.append(dmat2);
         XMLParser.appendObjectWithTags(xml, extraGapOpening, "extraGapOpening");
         XMLParser.appendObjectWithTags(xml, extraGapExtension, "extraGapExtension");
-		/*String[] temp = new String[families.length];
-		for(int i=0;i<temp.length;i++){
-			temp[i] = families[i].toXML().toString();
-		}*/
-        XMLParser.appendObjectWithTags(xml, families, "families");
+        if (withInducedAlignments) {
+            //stored as strings, which the constructor parses as fallback
+            String[] temp = new String[families.length];
+            for (int i = 0; i < temp.length; i++) {
+                temp[i] = families[i].toXML(true).toString();
+            }
+            XMLParser.appendObjectWithTags(xml, temp, "families");
+        } else {
+            XMLParser.appendObjectWithTags(xml, families, "families");
+        }
         XMLParser.appendObjectWithTags(xml, linkage, "linkage");
         XMLParser.appendObjectWithTags(xml, reservedNames, "reservedNames");
         XMLParser.appendObjectWithTags(xml, pval, "pval");
@@ -1418,6 +1510,8 @@ public class TALEFamilyBuilder implements Storable {
         }
 
         this.families = famList.toArray(new TALEFamily[0]);
+        this.pValues = null;
+        this.taleIndexes = null;
 
         LinkedList<TALE> allTALEs = new LinkedList<>();
         for (TALEFamily fam : famList) {
@@ -1515,6 +1609,8 @@ public class TALEFamilyBuilder implements Storable {
 
         this.families = famList.toArray(new TALEFamily[0]);
         this.dmat = newDmat;
+        this.pValues = null;
+        this.taleIndexes = null;
 
     }
 
@@ -1661,6 +1757,8 @@ public class TALEFamilyBuilder implements Storable {
 
         this.dmat = newDmat;
         this.families = allFams;
+        this.pValues = null;
+        this.taleIndexes = null;
 
 
     }
@@ -1743,6 +1841,40 @@ public class TALEFamilyBuilder implements Storable {
         return costs;
     }
 
+    /**
+     * Returns the alignment cost of the two TALEs. For TALEs contained in this builder, the cost
+     * is taken from the distance matrix, otherwise the TALEs are aligned using the costs of this
+     * builder.
+     */
+    public double getDistance(TALE tale1, TALE tale2) {
+        IdentityHashMap<TALE, Integer> indexes = getTALEIndexes();
+        Integer i1 = indexes.get(tale1);
+        Integer i2 = indexes.get(tale2);
+        if (i1 != null && i2 != null) {
+            return dmat[i1][i2];
+        } else {
+            return TALEAligner.align(tale1, tale2, costs, at, extraGapOpening, extraGapExtension)
+                  .getCost();
+        }
+    }
+
+    private synchronized IdentityHashMap<TALE, Integer> getTALEIndexes() {
+        if (taleIndexes == null) {
+            IdentityHashMap<TALE, Integer> indexes = new IdentityHashMap<TALE, Integer>();
+            for (int i = 0; i < families.length; i++) {
+                ClusterTree<TALE>[] leaves = families[i].getTree().getLeaves();
+                for (int j = 0; j < leaves.length; j++) {
+                    int idx = leaves[j].getOriginalIndex();
+                    if (idx >= 0 && idx < dmat.length) {
+                        indexes.put(leaves[j].getClusterElements()[0], idx);
+                    }
+                }
+            }
+            taleIndexes = indexes;
+        }
+        return taleIndexes;
+    }
+
     public double getPVal() {
         return pval;
     }
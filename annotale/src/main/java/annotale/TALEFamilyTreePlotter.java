@@ -3,11 +3,14 @@ package annotale;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
+import java.util.LinkedList;
 
 import de.jstacs.clustering.hierachical.ClusterTree;
+import de.jstacs.utils.IntList;
 import de.jstacs.utils.NiceScale;
 import de.jstacs.utils.Pair;
 import annotale.TALE.Type;
@@ -18,6 +21,8 @@ public class TALEFamilyTreePlotter {
 
     protected static DecimalFormat format = new DecimalFormat();
     protected int lineHeight;
+    //layout of the last family or group measured by getDimension, re-used by plot
+    protected Layout layout;
 
     public TALEFamilyTreePlotter(int lineHeight) {
         this.lineHeight = lineHeight;
@@ -55,6 +60,37 @@ public class TALEFamilyTreePlotter {
 
     protected void plotTree(Graphics2D graphics, int treeDim, ClusterTree tree, int xoff,
           int yoff) {
+        plotTree(graphics, treeDim, tree, getEdges(tree, treeDim, xoff));
+    }
+
+    /**
+     * Returns the lines of the edges of <code>tree</code> as <code>x1, y1, x2, y2</code> for each
+     * line, in one pass over the tree. The first line is the one to the root.
+     */
+    protected int[] getEdges(ClusterTree tree, int treeDim, int xoff) {
+        double minDist = tree.getMinimumDistance();
+        double maxDist = tree.getMaximumDistance();
+
+        treeDim -= lineHeight / 2;
+        double rat = (treeDim - lineHeight * 2) / (maxDist - minDist);
+
+        //	System.out.println("max: "+maxDist+" min: "+minDist+" rat: "+rat+" dim: "+treeDim);
+
+        IntList edges = new IntList();
+        edges.add(0);
+        edges.add(0);
+        edges.add(lineHeight);
+        edges.add(0);
+
+        int loc = layoutEdges(edges, tree, xoff + lineHeight, lineHeight / 4, treeDim, maxDist,
+              rat);
+        int[] res = edges.toArray();
+        res[1] = loc;
+        res[3] = loc;
+        return res;
+    }
+
+    protected void plotTree(Graphics2D graphics, int treeDim, ClusterTree tree, int[] edges) {
 
         graphics = (Graphics2D) graphics.create();
         graphics.setStroke(new BasicStroke(lineHeight / 15f));
@@ -69,12 +105,9 @@ public class TALEFamilyTreePlotter {
         treeDim -= lineHeight / 2;
         double rat = (treeDim - lineHeight * 2) / (maxDist - minDist);
 
-        //	System.out.println("max: "+maxDist+" min: "+minDist+" rat: "+rat+" dim: "+treeDim);
-
-        int loc = plotEdges(graphics, tree, xoff + lineHeight, lineHeight / 4, 0, treeDim, maxDist,
-              rat);
-
-        graphics.drawLine(0, loc, lineHeight, loc);
+        for (int i = 0; i < edges.length; i += 4) {
+            graphics.drawLine(edges[i], edges[i + 1], edges[i + 2], edges[i + 3]);
+        }
 
         //System.out.println("family size: "+family.getFamilySize());
 
@@ -121,40 +154,52 @@ public class TALEFamilyTreePlotter {
 
     }
 
-    private int plotEdges(Graphics2D graphics, ClusterTree tree, int xoff, int yoff, int numAtop,
-          int treeWidth, double maxDist, double rat) {
-
-        if (tree.getNumberOfElements() == 1) {
-            graphics.drawLine(xoff, yoff + (numAtop) * lineHeight * 2 + lineHeight, treeWidth,
-                  yoff + (numAtop) * lineHeight * 2 + lineHeight);
-
-            return yoff + (numAtop) * lineHeight * 2 + lineHeight;
-        } else {
-
-            ClusterTree[] subs = tree.getSubTrees();
-
-            int minPrev = Integer.MAX_VALUE;
-            int maxPrev = 0;
-            int newXoff = lineHeight + (int) Math.round((maxDist - tree.getDistance()) * rat);
-            for (int i = 0; i < subs.length; i++) {
-                int prev = plotEdges(graphics, subs[i], newXoff, yoff, numAtop, treeWidth, maxDist,
-                      rat);
-                if (prev < minPrev) {
-                    minPrev = prev;
+    /**
+     * Appends the lines of the edges of <code>tree</code> to <code>edges</code> and returns the
+     * vertical position of its root. The tree is traversed with an explicit stack, so deep trees
+     * do not overflow the call stack; the lines are in the same order as drawn recursively.
+     */
+    private int layoutEdges(IntList edges, ClusterTree tree, int xoff, int yoff, int treeWidth,
+          double maxDist, double rat) {
+        LinkedList<Node> stack = new LinkedList<Node>();
+        stack.push(new Node(tree, xoff));
+        int numAtop = 0;
+        int last = 0;
+        while (!stack.isEmpty()) {
+            Node node = stack.peek();
+            if (node.tree.getNumberOfElements() == 1) {
+                last = yoff + numAtop * lineHeight * 2 + lineHeight;
+                addLine(edges, node.xoff, last, treeWidth, last);
+                numAtop++;
+                stack.pop();
+            } else {
+                ClusterTree[] subs = node.tree.getSubTrees();
+                int newXoff = lineHeight
+                      + (int) Math.round((maxDist - node.tree.getDistance()) * rat);
+                if (node.next > 0) {
+                    node.minPrev = Math.min(node.minPrev, last);
+                    node.maxPrev = Math.max(node.maxPrev, last);
                 }
-                if (prev > maxPrev) {
-                    maxPrev = prev;
+                if (node.next < subs.length) {
+                    stack.push(new Node(subs[node.next], newXoff));
+                    node.next++;
+                } else {
+                    int mid = node.minPrev + (node.maxPrev - node.minPrev) / 2;
+                    addLine(edges, node.xoff, mid, newXoff, mid);
+                    addLine(edges, newXoff, node.minPrev, newXoff, node.maxPrev);
+                    last = mid;
+                    stack.pop();
                 }
-                numAtop += subs[i].getNumberOfElements();
             }
-
-            graphics.drawLine(xoff, minPrev + (maxPrev - minPrev) / 2, newXoff,
-                  minPrev + (maxPrev - minPrev) / 2);
-            graphics.drawLine(newXoff, minPrev, newXoff, maxPrev);
-
-            return minPrev + (maxPrev - minPrev) / 2;
-
         }
+        return last;
+    }
+
+    private static void addLine(IntList edges, int x1, int y1, int x2, int y2) {
+        edges.add(x1);
+        edges.add(y1);
+        edges.add(x2);
+        edges.add(y2);
     }
 
     private void plotIDs(Graphics2D graphics, TALE[] members, int xoff, int yoff) {
@@ -176,14 +221,23 @@ public class TALEFamilyTreePlotter {
         String[] als = pair.getSecondElement();
         TALE[] members = pair.getFirstElement();
 
+        //each row is split only once, and the font metrics are looked up only once
+        String[][] tokens = new String[als.length][];
+        for (int i = 0; i < als.length; i++) {
+            tokens[i] = als[i].trim().split(" ");
+        }
+        FontMetrics metrics = graphics.getFontMetrics();
+
         String space = " ";
-        int spacew = graphics.getFontMetrics().stringWidth(space);
+        int spacew = metrics.stringWidth(space);
+        int barw = metrics.stringWidth("|");
+        int colonw = metrics.stringWidth(":");
         for (int i = 0; i < als.length; i++) {
             if (members[i].isNew()) {
                 graphics.setColor(Color.BLUE);
             }
             //graphics.drawString( als[i], xoff, yoff );
-            String[] al = als[i].trim().split(" ");
+            String[] al = tokens[i];
             int currOff = xoff + spacew;
             for (int j = 0, r = 0; j < al.length; j++) {
                 Color bef = graphics.getColor();
@@ -199,7 +253,7 @@ public class TALEFamilyTreePlotter {
                     r++;
                 }
                 graphics.drawString(al[j], currOff, yoff);
-                int w = graphics.getFontMetrics().stringWidth(al[j]);
+                int w = metrics.stringWidth(al[j]);
                 currOff += w + spacew;
                 graphics.setColor(bef);
             }
@@ -219,8 +273,8 @@ public class TALEFamilyTreePlotter {
 					}
 				}
 				graphics.drawString( comp.toString(), xoff, yoff );*/
-                String[] s1 = als[i].trim().split(" ");
-                String[] s2 = als[i + 1].trim().split(" ");
+                String[] s1 = tokens[i];
+                String[] s2 = tokens[i + 1];
                 currOff = xoff + spacew;
                 for (int j = 0, r1 = 0, r2 = 0; j < s1.length; j++) {
                     for (int k = 0; k < 2; k++) {
@@ -234,11 +288,11 @@ public class TALEFamilyTreePlotter {
                                 graphics.setColor(Color.RED);
                             }
                             graphics.drawString("|", currOff, yoff);
-                            currOff += graphics.getFontMetrics().stringWidth("|");
+                            currOff += barw;
                         } else {
                             //graphics.setColor(Color.RED);
                             graphics.drawString(":", currOff, yoff);
-                            currOff += graphics.getFontMetrics().stringWidth(":");
+                            currOff += colonw;
                         }
                         graphics.setColor(bef);
                     }
@@ -260,6 +314,19 @@ public class TALEFamilyTreePlotter {
 
         graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, graphics.getFont().getSize()));
 
+        return getLayout(graphics, family).dimension.clone();
+    }
+
+    /**
+     * Measures the plot of <code>family</code> and lays out its tree, or returns the layout of the
+     * previous call for the same family and font size.
+     */
+    private Layout getLayout(Graphics2D graphics, TALEFamily family) {
+        int fontSize = graphics.getFont().getSize();
+        if (layout != null && layout.source == family && layout.fontSize == fontSize) {
+            return layout;
+        }
+
         int height = getHeight(family.getFamilySize());
         int treeWidth = height;
         double[] idDim = getIDFontDimensions(graphics, family.getFamilyMembers());
@@ -270,8 +337,13 @@ public class TALEFamilyTreePlotter {
 
         double[] alDim = getAlignmentFontDimensions(graphics, family);
 
-        return new int[]{treeWidth + idWidth + (int) Math.ceil(alDim[0] * rat) + 2 * lineHeight,
+        int[] dimension = new int[]{
+              treeWidth + idWidth + (int) Math.ceil(alDim[0] * rat) + 2 * lineHeight,
               height + (family.getFamilySize() > 1 ? 2 * lineHeight : 0)};
+
+        layout = new Layout(family, fontSize, rat, idWidth, dimension,
+              getEdges(family.getTree(), treeWidth, 0));
+        return layout;
     }
 
     public void plot(Graphics2D graphics, TALEFamily family) {
@@ -280,6 +352,8 @@ public class TALEFamilyTreePlotter {
 
         graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, graphics.getFont().getSize()));
 
+        Layout layout = getLayout(graphics, family);
+
         ClusterTree<TALE> tree = family.getTree();
 
         TALE[] members = tree.getClusterElements();
@@ -293,25 +367,63 @@ public class TALEFamilyTreePlotter {
         int xoff = treeWidth;
         int yoff = (int) Math.ceil(lineHeight * 1.5);
 
-        double[] idDim = getIDFontDimensions(graphics, members);
-
-        double rat = lineHeight / idDim[1];
-
-        int idWidth = (int) Math.ceil(idDim[0] * rat);
-
         graphics.setFont(new Font(graphics.getFont().getFontName(), graphics.getFont().getStyle(),
-              (int) Math.floor(graphics.getFont().getSize() * rat)));
+              (int) Math.floor(graphics.getFont().getSize() * layout.rat)));
 
-        plotTree(graphics, treeWidth, family.getTree(), 0, 0);
+        plotTree(graphics, treeWidth, tree, layout.edges);
 
         plotIDs(graphics, members, xoff, yoff);
 
-        xoff += idWidth;
+        xoff += layout.idWidth;
 
         plotTALEAlignment(graphics, family, xoff, yoff);
 
 
     }
 
+    /**
+     * Position in a tree during {@link TALEFamilyTreePlotter#layoutEdges(IntList, ClusterTree,
+     * int, int, int, double, double)}.
+     */
+    private static class Node {
+
+        private final ClusterTree tree;
+        private final int xoff;
+        //index of the next sub-tree and the range of the positions of the sub-trees done
+        private int next;
+        private int minPrev = Integer.MAX_VALUE;
+        private int maxPrev = 0;
+
+        private Node(ClusterTree tree, int xoff) {
+            this.tree = tree;
+            this.xoff = xoff;
+        }
+
+    }
+
+    /**
+     * Font scaling, column widths, dimension and tree edges of a plot, measured once for both
+     * <code>getDimension</code> and <code>plot</code>.
+     */
+    protected static class Layout {
+
+        protected final Object source;
+        protected final int fontSize;
+        protected final double rat;
+        protected final int idWidth;
+        protected final int[] dimension;
+        protected final int[] edges;
+
+        protected Layout(Object source, int fontSize, double rat, int idWidth, int[] dimension,
+              int[] edges) {
+            this.source = source;
+            this.fontSize = fontSize;
+            this.rat = rat;
+            this.idWidth = idWidth;
+            this.dimension = dimension;
+            this.edges = edges;
+        }
+
+    }
 
 }
@@ -444,7 +444,7 @@ public class ClassAssignmentTool implements JstacsTool {
         if (notAssigned.size() > 0) {
             protocol.append("Creating new classes...\n");
             FamilyResult[] res2 = BuildFamilies.getFamilyResults(newFams, builder.getPVal(),
-                  builder, added.length);
+                  builder, added.length, threads);
             Arrays.sort(res2);
             protocol.append("... found " + res2.length + " new classes.\n");
             for (int i = 0; i < res2.length; i++) {
@@ -527,7 +527,7 @@ public class ClassAssignmentTool implements JstacsTool {
 
         topLevel.add(
               new TextResult("Augmented class builder" + oss, "TALE class builder definition",
-                    new FileRepresentation("", builder.toXML().toString()), "xml",
+                    new FileRepresentation("", builder.toXML(true).toString()), "xml",
                     "TALE Class Builder", TALEFamilyBuilder.class.getName(), true));
 
         StringBuffer dna = new StringBuffer();
@@ -179,7 +179,7 @@ public class ClassBuilderTool implements JstacsTool {
 
         protocol.append("Building classes.\n");
 
-        Pair<TALEFamilyBuilder, FamilyResult[]> res = BuildFamilies.build(ttales, cut, pval);
+        Pair<TALEFamilyBuilder, FamilyResult[]> res = BuildFamilies.build(ttales, cut, pval, threads);
 
         progress.setCurrent(0.7);
 
@@ -197,7 +197,7 @@ public class ClassBuilderTool implements JstacsTool {
         Result[] ress = new Result[famRes.length + 2];
 
         ress[0] = new TextResult("Class builder", "TALE class builder definition",
-              new FileRepresentation("", res.getFirstElement().toXML().toString()), "xml",
+              new FileRepresentation("", res.getFirstElement().toXML(true).toString()), "xml",
               "TALE Class Builder", TALEFamilyBuilder.class.getName(), true);
         ress[1] = new PlotGeneratorResult("Tree of classes", "The tree of class similarities",
               new FamilyGroupPlotter.FamilyGroupPlotGenerator(famTree), true);
@@ -14,6 +14,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.jstacs.DataType;
 import de.jstacs.clustering.distances.DistanceMetric;
@@ -46,7 +49,6 @@ import de.jstacs.tools.ToolResult;
 import de.jstacs.utils.NiceScale;
 import de.jstacs.utils.graphics.GraphicsAdaptor;
 import annotale.TALE;
-import annotale.TALEAligner;
 import annotale.TALEFamilyBuilder;
 import annotale.TALEFamilyBuilder.TALEFamily;
 
@@ -262,9 +264,7 @@ public class ClassPresenceTool implements JstacsTool {
                                 //System.out.println("f2");
                             }
                             if (tal1 != null && tal2 != null) {
-                                contrib = TALEAligner.align(tal1, tal2, builder.getCosts(),
-                                      builder.getAlignmentType(), builder.getExtraGapOpening(),
-                                      builder.getExtraGapExtension()).getCost();
+                                contrib = builder.getDistance(tal1, tal2);
                             } else if (tal1 == null && tal2 == null) {
                                 contrib = 0;
                             }
@@ -299,12 +299,10 @@ public class ClassPresenceTool implements JstacsTool {
                             int k1 = tempMap.get(o1);
                             //TALEs from o1 without a match in o2
                             if (presTALEs[i][j][k1] != null && presTALEs[i][j][k2] == null) {
-                                double temp = TALEAligner.align(origin, presTALEs[i][j][k1],
-                                            builder.getCosts(), builder.getAlignmentType(),
-                                            builder.getExtraGapOpening(), builder.getExtraGapExtension())
-                                      .getCost();
+                                double temp = builder.getDistance(origin,
+                                      presTALEs[i][j][k1]);
                                 if (temp < minDist) {
-                                    temp = minDist;
+                                    minDist = temp;
                                     bestMatch = presTALEs[i][j][k1];
                                 }
                             }
@@ -318,7 +316,7 @@ public class ClassPresenceTool implements JstacsTool {
 
         Hclust<String> clus = new Hclust<String>(metric, Linkage.AVERAGE);
 
-        double[][] distMat = DistanceMetric.getPairwiseDistanceMatrix(metric, strains);
+        double[][] distMat = getPairwiseDistanceMatrix(metric, strains, threads);
 
         ListResult lr2 = getList(distMat, strains);
 
@@ -377,6 +375,37 @@ public class ClassPresenceTool implements JstacsTool {
 
     }
 
+    /**
+     * Computes the lower triangular matrix of pairwise distances between the strains, distributing
+     * the rows of the matrix over <code>threads</code> threads.
+     */
+    private static double[][] getPairwiseDistanceMatrix(DistanceMetric<String> metric,
+          String[] strains, int threads) throws Exception {
+        double[][] distMat = new double[strains.length][];
+        for (int i = 0; i < strains.length; i++) {
+            distMat[i] = new double[i];
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
+            for (int i = strains.length - 1; i > 0; i--) {
+                final int fi = i;
+                futures.add(pool.submit(() -> {
+                    for (int j = 0; j < fi; j++) {
+                        distMat[fi][j] = metric.getDistance(strains[fi], strains[j]);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return distMat;
+    }
+
     private ListResult getList(double[][] distMat, String[] strains) {
         LinkedList<ResultSet> ress = new LinkedList<ResultSet>();
 
@@ -2,13 +2,14 @@ package annotale.tools;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,10 +36,10 @@ import de.jstacs.data.alphabets.DNAAlphabetContainer;
 import de.jstacs.data.alphabets.DiscreteAlphabet;
 import de.jstacs.data.bioJava.BioJavaAdapter;
 import de.jstacs.data.sequences.Sequence;
+import de.jstacs.data.sequences.WrongSequenceTypeException;
 import de.jstacs.data.sequences.annotation.SequenceAnnotation;
 import de.jstacs.data.sequences.annotation.SimpleSequenceAnnotationParser;
 import de.jstacs.io.FileManager;
-import de.jstacs.io.SparseStringExtractor;
 import de.jstacs.parameters.FileParameter;
 import de.jstacs.parameters.FileParameter.FileRepresentation;
 import de.jstacs.parameters.ParameterSet;
@@ -52,7 +53,7 @@ import de.jstacs.tools.ProgressUpdater;
 import de.jstacs.tools.Protocol;
 import de.jstacs.tools.ToolParameterSet;
 import de.jstacs.tools.ToolResult;
-import de.jstacs.utils.Pair;
+import annotale.HMMerModel;
 import annotale.NHMMer;
 import annotale.Tools;
 import annotale.Tools.Translator;
@@ -60,6 +61,15 @@ import annotale.Tools.Translator;
 
 public class TALEPredictionTool implements JstacsTool {
 
+    private static final Pattern AMBIGUOUS = Pattern.compile("[^ACGTacgt]");
+    private static final Pattern INVALID = Pattern.compile("[^ACGTNWSMKRYBDHVacgtnwsmkrybdhv]");
+
+    /**
+     * Minimum number of bases of the contigs scanned together. Smaller genomes are scanned at once,
+     * while larger inputs, e.g., sets of reads, are scanned with bounded memory.
+     */
+    private static final long SCAN_BATCH_LENGTH = 20000000L;
+
     public TALEPredictionTool() {
     }
 
@@ -106,90 +116,38 @@ public class TALEPredictionTool implements JstacsTool {
 
         boolean sensitive = (boolean) parameters.getParameterAt(2).getValue();
 
-        DataSet ds = null;
-
-        String content = fr.getContent();
-
-        RichSequence[] seqs = null;
-        SimpleNamespace ns = new SimpleNamespace("biojava");
-
-        protocol.append("Loading input genome...\n");
+        protocol.append("Loading input genome and scanning for TALEs...\n");
 
         AlphabetContainer con = new AlphabetContainer(
               new DiscreteAlphabet(true, "A", "C", "G", "T", "N", "W", "S", "M", "K", "R", "Y", "B",
                     "D", "H", "V"));
 
-        boolean fasta = content.trim().startsWith(">");
-
-        if (!fasta) {
-            try {
-                BufferedReader br = new BufferedReader(new StringReader(content));
-
-                RichSequenceIterator it = RichSequence.IOTools.readGenbankDNA(br, ns);
-                ds = BioJavaAdapter.sequenceIteratorToDataSet(it, null, con);
-                br.close();
-
-                br = new BufferedReader(new StringReader(content));
-                it = RichSequence.IOTools.readGenbankDNA(br, ns);
-                LinkedList<RichSequence> li = new LinkedList<RichSequence>();
-                while (it.hasNext()) {
-                    RichSequence seq = it.nextRichSequence();
-                    li.add(seq);
-
-                }
-                seqs = li.toArray(new RichSequence[0]);
-            } catch (Exception e) {
-                protocol.appendWarning("... loading failed.\n\n");
-                protocol.appendThrowable(e);
-                throw new Exception("Input not in expected format");
-            }
-        } else {
-            //e.printStackTrace( );
-            try {
-                BufferedReader br = new BufferedReader(new StringReader(content));
-
-                ds = new DataSet(con,
-                      new SparseStringExtractor(br, '>', "", new SimpleSequenceAnnotationParser()));
-
-                SequenceIterator it = BioJavaAdapter.dataSetToSequenceIterator(ds, false, true);
-                seqs = new RichSequence[ds.getNumberOfElements()];
-                for (int i = 0; i < seqs.length; i++) {
-                    seqs[i] = (RichSequence) it.nextSequence();
-                }
+        SimpleNamespace ns = new SimpleNamespace("biojava");
 
-            } catch (Exception ex) {
-                protocol.appendWarning("... loading failed.\n\n");
-                protocol.appendThrowable(ex);
-                throw new Exception("Input not in expected format");
+        //first pass: contigs are read, preprocessed and scanned in batches, only the loci are kept
+        LocusScan scan = new LocusScan(sensitive, threads, progress, getInputLength(fr));
+        boolean fasta = false;
+        ContigReader reader = new ContigReader(fr, ns);
+        try {
+            fasta = reader.isFastA();
+            Contig contig = null;
+            while ((contig = next(reader, protocol)) != null) {
+                scan.add(contig);
             }
+        } finally {
+            reader.close();
         }
-
-        Pair<DataSet, ArrayList<Integer>[]> pair = preprocess(ds);
-        ds = pair.getFirstElement();
-        ArrayList<Integer>[] poss = pair.getSecondElement();
-
-        protocol.append("Scanning genome for TALEs...\n");
-        int[][] regions = NHMMer.run(new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/repeats.hmm")),
-              new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/starts.hmm")),
-              new InputStreamReader(TALEPredictionTool.class.getClassLoader()
-                    .getResourceAsStream("annotale/data/ends.hmm")), ds, progress, sensitive);
+        if (scan.getIds().length == 0) {
+            throw loadingFailed(protocol, new EmptyDataSetException());
+        }
+        scan.flush();
         protocol.append("...finished.\n\n");
 
+        int[][] regions = scan.getRegions();
+        String[] ids = scan.getIds();
+
         for (int i = 0; i < regions.length; i++) {
-            int seqIdx = regions[i][0];
-            int start = regions[i][1];
-            int end = regions[i][2];
-            boolean contN = false;
-            for (int j = 0; j < poss[seqIdx].size(); j++) {
-                int idx = poss[seqIdx].get(j);
-                //System.out.println(idx+" "+start+" "+end);
-                if (idx >= start && idx <= end) {
-                    contN = true;
-                }
-            }
-            if (contN) {
+            if (scan.containsReplaced(i)) {
                 protocol.appendWarning(strainstr + "tempTALE" + (i + 1)
                       + " contained \"N\"s in predicted CDS, which have been replaced. Please use with care.\n");
             }
@@ -198,27 +156,7 @@ public class TALEPredictionTool implements JstacsTool {
         protocol.append("Writing GFF output.\n");
         StringBuffer sb = new StringBuffer();
         for (int i = 0; i < regions.length; i++) {
-            Sequence seq = ds.getElementAt(regions[i][0]);
-
-            String id = null;
-            SequenceAnnotation ann = seq.getSequenceAnnotationByType("unparsed comment line", 0);
-
-            if (ann != null) {
-                id = ann.getResultAt(0).getValue().toString().trim();
-				/*if(id.indexOf( " " ) > 0){
-					id = id.substring( 0, id.indexOf( " " ) );
-				}*/
-            } else {
-                SequenceAnnotation ann2 = seq.getSequenceAnnotationByTypeAndIdentifier(
-                      "BioJava RichSequence Annotation", BioJavaAdapter.ANNOTATION_ID);
-
-                if (ann2 != null) {
-                    Result res = ann2.getResultForName("Name");
-                    if (res != null) {
-                        id = res.getValue().toString();
-                    }
-                }
-            }
+            String id = ids[regions[i][0]];
 
             sb.append(id + "\tTALE-prediction\tmRNA\t" + (regions[i][4] + 1) + "\t" + regions[i][5]
                   + "\t.\t" + (regions[i][3] < 0 ? "-" : "+") + "\t.\tId=" + strainstr + "tempTALE"
@@ -233,50 +171,37 @@ public class TALEPredictionTool implements JstacsTool {
               "TALE predictions in GFF format", new FileRepresentation("", sb.toString()), "gff3",
               "TALE Prediction", null, true);
 
-        protocol.append("Writing Genbank output.\n");
-        for (int i = 0; i < regions.length; i++) {
-            RichFeature.Template temp = new RichFeature.Template();
-            temp.location = new SimpleRichLocation(new SimplePosition(regions[i][1] + 1),
-                  new SimplePosition(regions[i][2]), i,
-                  regions[i][3] < 0 ? RichLocation.Strand.NEGATIVE_STRAND
-                        : RichLocation.Strand.POSITIVE_STRAND);
-            temp.source = "TALE-prediction";
-            temp.type = "CDS";
-            temp.annotation = new SimpleAnnotation();
-            temp.featureRelationshipSet = new HashSet();
-            temp.rankedCrossRefs = new HashSet();
-            SimpleRichFeature feat = new SimpleRichFeature(seqs[regions[i][0]], temp);
-
-            feat.getNoteSet().add(new SimpleNote(
-                  RichObjectFactory.getDefaultOntology().getOrCreateTerm("gene"),
-                  strainstr + "tempTALE" + (i + 1), 1));
-
-            seqs[regions[i][0]].getFeatureSet().add(feat);
-
-            temp.type = "mRNA";
-            temp.location = new SimpleRichLocation(new SimplePosition(regions[i][4] + 1),
-                  new SimplePosition(regions[i][5]), i,
-                  regions[i][3] < 0 ? RichLocation.Strand.NEGATIVE_STRAND
-                        : RichLocation.Strand.POSITIVE_STRAND);
-            feat = new SimpleRichFeature(seqs[regions[i][0]], temp);
-            feat.getNoteSet().add(new SimpleNote(
-                  RichObjectFactory.getDefaultOntology().getOrCreateTerm("gene"),
-                  strainstr + "tempTALE" + (i + 1), 1));
-            if (regions[i][6] == 1) {
-                feat.getNoteSet().add(new SimpleNote(
-                      RichObjectFactory.getDefaultOntology().getOrCreateTerm("note"),
-                      "putative pseudo gene", 2));
-            }
-
-            seqs[regions[i][0]].getFeatureSet().add(feat);
-        }
-
+        protocol.append("Writing Genbank and FastA outputs.\n");
         ByteArrayOutputStream os = new ByteArrayOutputStream();
+        String[] dnas = new String[regions.length];
+        String[] prots = new String[regions.length];
+        String[] pseudos = new String[regions.length];
 
-        for (int i = 0; i < seqs.length; i++) {
-            IOTools.writeGenbank(os, seqs[i], ns);
+        //second pass: the input is read again, one contig at a time, to write the outputs
+        reader = new ContigReader(fr, ns);
+        try {
+            Contig contig = null;
+            for (int c = 0; (contig = next(reader, protocol)) != null; c++) {
+                //for FastA input, contigs are converted one at a time, with their original symbols
+                RichSequence rs = fasta ? toRichSequence(contig, con) : contig.rs;
+
+                for (int i = 0; i < regions.length; i++) {
+                    if (regions[i][0] != c) {
+                        continue;
+                    }
+                    String name = strainstr + "tempTALE" + (i + 1);
+                    addFeatures(rs, regions[i], name, i);
+                    dnas[i] = getDNA(contig.seq, regions[i], name);
+                    prots[i] = getProtein(contig.seq, regions[i], name);
+                    pseudos[i] = getPseudoGene(contig.seq, regions[i], name);
+                }
 
+                IOTools.writeGenbank(os, rs, ns);
+            }
+        } finally {
+            reader.close();
         }
+        progress.setCurrent(1.0);
 
         String cont = os.toString("UTF-8");
 
@@ -287,41 +212,11 @@ public class TALEPredictionTool implements JstacsTool {
         StringBuffer pseudo = new StringBuffer();
         StringBuffer dna = new StringBuffer();
         StringBuffer prot = new StringBuffer();
-        protocol.append("Writing FastA outputs.\n");
         for (int i = 0; i < regions.length; i++) {
-            //System.out.println(i+" "+regions[i][1]+" "+regions[i][2]);
-            Sequence seq = ds.getElementAt(regions[i][0])
-                  .getSubSequence(regions[i][1], regions[i][2] - regions[i][1]);
-            if (regions[i][3] < 0) {
-                seq = seq.reverseComplement();
-            }
-            String posString =
-                  "[" + regions[i][1] + "-" + regions[i][2] + ":" + regions[i][3] + "]";
-            dna.append(
-                  ">" + strainstr + "tempTALE" + (i + 1) + (regions[i][6] == 1 ? " (Pseudo)" : "")
-                        + " " + posString + "\n" + seq + "\n");
-            Sequence seq2 = Translator.DEFAULT.translate(seq, 0);
-            prot.append(
-                  ">" + strainstr + "tempTALE" + (i + 1) + (regions[i][6] == 1 ? " (Pseudo)" : "")
-                        + " " + posString + "\n" + seq2 + "\n");
-
-            if (regions[i][6] == 1) {
-                Sequence pseudoDNA = ds.getElementAt(regions[i][0])
-                      .getSubSequence(regions[i][4], regions[i][5] - regions[i][4]);
-                if (regions[i][3] < 0) {
-                    pseudoDNA = pseudoDNA.reverseComplement();
-                }
-                posString = "[" + regions[i][4] + "-" + regions[i][5] + ":" + regions[i][3] + "]";
-                pseudo.append(
-                      ">" + strainstr + "tempTALE" + (i + 1) + (regions[i][6] == 1 ? " (Pseudo)"
-                            : "") + " " + posString + "\n" + pseudoDNA + "\n");
-                for (int j = 0; j < 3; j++) {
-                    Sequence pseudoProt = Tools.Translator.DEFAULT.translate(pseudoDNA, j);
-                    pseudo.append(
-                          ">" + strainstr + "tempTALE" + (i + 1) + (regions[i][6] == 1 ? " (Pseudo)"
-                                : "") + " frame: " + j + " " + posString + "\n" + pseudoProt
-                                + "\n");
-                }
+            dna.append(dnas[i]);
+            prot.append(prots[i]);
+            if (pseudos[i] != null) {
+                pseudo.append(pseudos[i]);
             }
         }
 
@@ -353,24 +248,379 @@ public class TALEPredictionTool implements JstacsTool {
 
     }
 
-    private Pair<DataSet, ArrayList<Integer>[]> preprocess(DataSet ds)
-          throws IllegalArgumentException, WrongAlphabetException, EmptyDataSetException {
-        Sequence[] seqs = ds.getAllElements();
-        Pattern pat = Pattern.compile("[^ACGTacgt]");
-        ArrayList<Integer>[] poss = new ArrayList[ds.getNumberOfElements()];
-        for (int i = 0; i < seqs.length; i++) {
-            poss[i] = new ArrayList<Integer>();
-            String seqstr = seqs[i].toString();
-            SequenceAnnotation[] anns = seqs[i].getAnnotation();
-            Matcher m = pat.matcher(seqstr);
+    private static BufferedReader getReader(FileRepresentation fr) throws IOException {
+        if (fr.getFilename() != null && new File(fr.getFilename()).isFile()) {
+            return new BufferedReader(new FileReader(fr.getFilename()));
+        } else {
+            return new BufferedReader(new StringReader(fr.getContent()));
+        }
+    }
+
+    private static boolean isFastA(BufferedReader br) throws IOException {
+        br.mark(8192);
+        int c = 0;
+        while ((c = br.read()) != -1 && Character.isWhitespace(c))
+            ;
+        br.reset();
+        return c == '>';
+    }
+
+    private static long getInputLength(FileRepresentation fr) {
+        if (fr.getFilename() != null && new File(fr.getFilename()).isFile()) {
+            return new File(fr.getFilename()).length();
+        } else {
+            return fr.getContent().length();
+        }
+    }
+
+    /**
+     * Returns the next contig of <code>reader</code>, or reports that the input could not be read.
+     */
+    private static Contig next(ContigReader reader, Protocol protocol) throws Exception {
+        try {
+            return reader.next();
+        } catch (Exception e) {
+            throw loadingFailed(protocol, e);
+        }
+    }
+
+    private static Exception loadingFailed(Protocol protocol, Exception e) {
+        protocol.appendWarning("... loading failed.\n\n");
+        protocol.appendThrowable(e);
+        return new Exception("Input not in expected format");
+    }
+
+    private static void addFeatures(RichSequence rs, int[] region, String name, int rank)
+          throws Exception {
+        RichFeature.Template temp = new RichFeature.Template();
+        temp.location = new SimpleRichLocation(new SimplePosition(region[1] + 1),
+              new SimplePosition(region[2]), rank,
+              region[3] < 0 ? RichLocation.Strand.NEGATIVE_STRAND
+                    : RichLocation.Strand.POSITIVE_STRAND);
+        temp.source = "TALE-prediction";
+        temp.type = "CDS";
+        temp.annotation = new SimpleAnnotation();
+        temp.featureRelationshipSet = new HashSet();
+        temp.rankedCrossRefs = new HashSet();
+        SimpleRichFeature feat = new SimpleRichFeature(rs, temp);
+
+        feat.getNoteSet().add(new SimpleNote(
+              RichObjectFactory.getDefaultOntology().getOrCreateTerm("gene"), name, 1));
+
+        rs.getFeatureSet().add(feat);
+
+        temp.type = "mRNA";
+        temp.location = new SimpleRichLocation(new SimplePosition(region[4] + 1),
+              new SimplePosition(region[5]), rank,
+              region[3] < 0 ? RichLocation.Strand.NEGATIVE_STRAND
+                    : RichLocation.Strand.POSITIVE_STRAND);
+        feat = new SimpleRichFeature(rs, temp);
+        feat.getNoteSet().add(new SimpleNote(
+              RichObjectFactory.getDefaultOntology().getOrCreateTerm("gene"), name, 1));
+        if (region[6] == 1) {
+            feat.getNoteSet().add(new SimpleNote(
+                  RichObjectFactory.getDefaultOntology().getOrCreateTerm("note"),
+                  "putative pseudo gene", 2));
+        }
+
+        rs.getFeatureSet().add(feat);
+    }
+
+    private static Sequence getCDS(Sequence contig, int[] region) throws Exception {
+        Sequence seq = contig.getSubSequence(region[1], region[2] - region[1]);
+        if (region[3] < 0) {
+            seq = seq.reverseComplement();
+        }
+        return seq;
+    }
+
+    private static String getHeader(int[] region, String name) {
+        return ">" + name + (region[6] == 1 ? " (Pseudo)" : "");
+    }
+
+    private static String getDNA(Sequence contig, int[] region, String name) throws Exception {
+        String posString = "[" + region[1] + "-" + region[2] + ":" + region[3] + "]";
+        return getHeader(region, name) + " " + posString + "\n" + getCDS(contig, region) + "\n";
+    }
+
+    private static String getProtein(Sequence contig, int[] region, String name)
+          throws Exception {
+        String posString = "[" + region[1] + "-" + region[2] + ":" + region[3] + "]";
+        Sequence seq2 = Translator.DEFAULT.translate(getCDS(contig, region), 0);
+        return getHeader(region, name) + " " + posString + "\n" + seq2 + "\n";
+    }
+
+    /**
+     * Returns the complete match of a putative pseudo gene as DNA and translated in all three
+     * reading frames, or <code>null</code> if <code>region</code> is no pseudo gene.
+     */
+    private static String getPseudoGene(Sequence contig, int[] region, String name)
+          throws Exception {
+        if (region[6] != 1) {
+            return null;
+        }
+        Sequence pseudoDNA = contig.getSubSequence(region[4], region[5] - region[4]);
+        if (region[3] < 0) {
+            pseudoDNA = pseudoDNA.reverseComplement();
+        }
+        String posString = "[" + region[4] + "-" + region[5] + ":" + region[3] + "]";
+        StringBuffer pseudo = new StringBuffer();
+        pseudo.append(getHeader(region, name) + " " + posString + "\n" + pseudoDNA + "\n");
+        for (int j = 0; j < 3; j++) {
+            Sequence pseudoProt = Tools.Translator.DEFAULT.translate(pseudoDNA, j);
+            pseudo.append(getHeader(region, name) + " frame: " + j + " " + posString + "\n"
+                  + pseudoProt + "\n");
+        }
+        return pseudo.toString();
+    }
+
+    /**
+     * Converts a preprocessed contig back to its original symbols as a BioJava sequence.
+     */
+    private static RichSequence toRichSequence(Contig contig, AlphabetContainer con)
+          throws Exception {
+        char[] chars = contig.seq.toString().toCharArray();
+        for (int j = 0; j < contig.poss.size(); j++) {
+            chars[contig.poss.get(j)] = contig.replaced.charAt(j);
+        }
+        Sequence original = Sequence.create(con, contig.seq.getAnnotation(), new String(chars), "");
+        SequenceIterator it = BioJavaAdapter.dataSetToSequenceIterator(
+              new DataSet("", original), false, true);
+        return (RichSequence) it.nextSequence();
+    }
+
+    /**
+     * A contig of the input, where all symbols other than A, C, G, and T have been replaced by A.
+     */
+    private static class Contig {
+
+        private final String id;
+        private final Sequence seq;
+        //positions of the replaced symbols and the replaced symbols themselves
+        private final ArrayList<Integer> poss;
+        private final String replaced;
+        //the GenBank entry of the contig, null for FastA input
+        private final RichSequence rs;
+
+        private Contig(String id, SequenceAnnotation[] anns, String seqstr, RichSequence rs)
+              throws IllegalArgumentException, WrongAlphabetException, WrongSequenceTypeException {
+            if (INVALID.matcher(seqstr).find()) {
+                throw new WrongAlphabetException("Unexpected symbol in sequence " + id);
+            }
+            this.poss = new ArrayList<Integer>();
+            StringBuffer rep = new StringBuffer();
+            Matcher m = AMBIGUOUS.matcher(seqstr);
             while (m.find()) {
-                int pos = m.start();
-                poss[i].add(pos);
+                poss.add(m.start());
+                rep.append(m.group());
             }
-            seqstr = m.replaceAll("A");
-            seqs[i] = Sequence.create(DNAAlphabetContainer.SINGLETON, anns, seqstr, "");
+            this.id = id;
+            this.seq = Sequence.create(DNAAlphabetContainer.SINGLETON, anns, m.replaceAll("A"), "");
+            this.replaced = rep.toString();
+            this.rs = rs;
+        }
+
+    }
+
+    /**
+     * Reads the FastA records or GenBank entries of the input one at a time.
+     */
+    private static class ContigReader {
+
+        private final BufferedReader br;
+        private final boolean fasta;
+        private final RichSequenceIterator it;
+        private final SimpleSequenceAnnotationParser parser = new SimpleSequenceAnnotationParser();
+        //header of the FastA record whose sequence is read next
+        private String header;
+
+        private ContigReader(FileRepresentation fr, SimpleNamespace ns) throws IOException {
+            this.br = getReader(fr);
+            this.fasta = TALEPredictionTool.isFastA(br);
+            this.it = fasta ? null : RichSequence.IOTools.readGenbankDNA(br, ns);
         }
-        return new Pair<DataSet, ArrayList<Integer>[]>(new DataSet(ds.getAnnotation(), seqs), poss);
+
+        private boolean isFastA() {
+            return fasta;
+        }
+
+        /**
+         * Returns the next contig, or <code>null</code> at the end of the input.
+         */
+        private Contig next() throws Exception {
+            if (!fasta) {
+                if (!it.hasNext()) {
+                    return null;
+                }
+                RichSequence rs = it.nextRichSequence();
+                return new Contig(rs.getName(), null, rs.seqString(), rs);
+            }
+            StringBuffer seq = new StringBuffer();
+            String str = null;
+            while ((str = br.readLine()) != null) {
+                if (str.startsWith(">")) {
+                    String last = header;
+                    header = str.substring(1);
+                    if (last != null) {
+                        return new Contig(last.trim(), parser.parseAnnotation(last),
+                              seq.toString(), null);
+                    }
+                } else if (header != null) {
+                    seq.append(str.trim());
+                }
+            }
+            if (header != null) {
+                String last = header;
+                header = null;
+                return new Contig(last.trim(), parser.parseAnnotation(last), seq.toString(), null);
+            }
+            return null;
+        }
+
+        private void close() throws IOException {
+            br.close();
+        }
+
+    }
+
+    /**
+     * Reports the progress of scanning one batch as part of the progress of the whole input,
+     * scaled to its share of the input and offset by the batches scanned before.
+     */
+    private static class BatchProgress extends ProgressUpdater {
+
+        private final ProgressUpdater progress;
+        private final double offset;
+        private final double share;
+        private double last;
+
+        private BatchProgress(ProgressUpdater progress, double offset, double share) {
+            this.progress = progress;
+            this.offset = offset;
+            this.share = share;
+            this.last = 1.0;
+        }
+
+        @Override
+        public void setLast(double last) {
+            this.last = last;
+        }
+
+        @Override
+        public void setCurrent(double current) {
+            progress.setCurrent(offset + share * Math.min(1.0, current / last));
+        }
+
+    }
+
+    /**
+     * Scans contigs for TALEs in batches of at least {@link #SCAN_BATCH_LENGTH} bases, so only the
+     * contigs of the current batch are held in memory. The loci of all batches are numbered as if
+     * all contigs had been scanned at once: first all on the forward strand, then all on the reverse
+     * strand, each by contig and position.
+     */
+    private static class LocusScan {
+
+        private final HMMerModel repeats;
+        private final HMMerModel starts;
+        private final HMMerModel ends;
+        private final boolean sensitive;
+        private final int threads;
+        private final ProgressUpdater progress;
+        private final long inputLength;
+
+        private final ArrayList<Contig> batch = new ArrayList<Contig>();
+        private long batchLength;
+        private long scanned;
+
+        private final ArrayList<String> ids = new ArrayList<String>();
+        private final ArrayList<int[]> fwd = new ArrayList<int[]>();
+        private final ArrayList<int[]> rev = new ArrayList<int[]>();
+        //if a CDS contains replaced symbols, in the order of fwd and rev
+        private final ArrayList<Boolean> fwdReplaced = new ArrayList<Boolean>();
+        private final ArrayList<Boolean> revReplaced = new ArrayList<Boolean>();
+
+        private LocusScan(boolean sensitive, int threads, ProgressUpdater progress,
+              long inputLength) throws Exception {
+            ClassLoader loader = TALEPredictionTool.class.getClassLoader();
+            this.repeats = new HMMerModel(
+                  new InputStreamReader(loader.getResourceAsStream("annotale/data/repeats.hmm")));
+            this.starts = new HMMerModel(
+                  new InputStreamReader(loader.getResourceAsStream("annotale/data/starts.hmm")));
+            this.ends = new HMMerModel(
+                  new InputStreamReader(loader.getResourceAsStream("annotale/data/ends.hmm")));
+            this.sensitive = sensitive;
+            this.threads = threads;
+            this.progress = progress;
+            this.inputLength = Math.max(1, inputLength);
+        }
+
+        private void add(Contig contig) throws Exception {
+            ids.add(contig.id);
+            batch.add(contig);
+            batchLength += contig.seq.getLength();
+            if (batchLength >= SCAN_BATCH_LENGTH) {
+                flush();
+            }
+        }
+
+        /**
+         * Scans the contigs of the current batch and releases them.
+         */
+        private void flush() throws Exception {
+            if (batch.isEmpty()) {
+                return;
+            }
+            Sequence[] seqs = new Sequence[batch.size()];
+            for (int j = 0; j < seqs.length; j++) {
+                seqs[j] = batch.get(j).seq;
+            }
+            //the input length includes headers and annotations, so this is a lower bound
+            double from = 0.9 * Math.min(1.0, scanned / (double) inputLength);
+            double to = 0.9 * Math.min(1.0, (scanned + batchLength) / (double) inputLength);
+            int[][] regions = NHMMer.run(repeats, starts, ends, new DataSet("", seqs),
+                  new BatchProgress(progress, from, to - from), sensitive, threads);
+
+            int offset = ids.size() - batch.size();
+            for (int[] region : regions) {
+                boolean contN = false;
+                for (int idx : batch.get(region[0]).poss) {
+                    if (idx >= region[1] && idx <= region[2]) {
+                        contN = true;
+                    }
+                }
+                region[0] += offset;
+                if (region[3] > 0) {
+                    fwd.add(region);
+                    fwdReplaced.add(contN);
+                } else {
+                    rev.add(region);
+                    revReplaced.add(contN);
+                }
+            }
+
+            scanned += batchLength;
+            batch.clear();
+            batchLength = 0;
+            progress.setCurrent(to);
+        }
+
+        private int[][] getRegions() {
+            int[][] regions = new int[fwd.size() + rev.size()][];
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = i < fwd.size() ? fwd.get(i) : rev.get(i - fwd.size());
+            }
+            return regions;
+        }
+
+        private boolean containsReplaced(int i) {
+            return i < fwd.size() ? fwdReplaced.get(i) : revReplaced.get(i - fwd.size());
+        }
+
+        private String[] getIds() {
+            return ids.toArray(new String[0]);
+        }
+
     }
 
     @Override
@@ -0,0 +1,209 @@
+package annotale;
+
+import de.jstacs.data.alphabets.DNAAlphabetContainer;
+import de.jstacs.data.sequences.Sequence;
+import de.jstacs.sequenceScores.statisticalModels.differentiable.homogeneous.HomogeneousMMDiffSM;
+import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.AbstractHMM;
+import de.jstacs.sequenceScores.statisticalModels.trainable.hmm.HMMFactory;
+import de.jstacs.utils.IntList;
+import de.jstacs.utils.Pair;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ProfileHMMTest {
+
+    @Test
+    public void repeatModelMatchesJstacs() throws Exception {
+        compareOnTALE("repeats");
+    }
+
+    @Test
+    public void startModelMatchesJstacs() throws Exception {
+        compareOnTALE("starts");
+    }
+
+    @Test
+    public void endModelMatchesJstacs() throws Exception {
+        compareOnTALE("ends");
+    }
+
+    /**
+     * Checks the Forward pass with free start, as used by {@link NHMMer}, against the windows
+     * scored on their own: the score at each end position must be the sum of the odds of all
+     * windows from the first position or later to that end, each divided by the background
+     * probabilities of its positions conditional on their preceding context.
+     */
+    @Test
+    public void freeStartScoresSumWindowScores() throws Exception {
+        HMMerModel hmm = new HMMerModel(new StringReader(read("annotale/data/repeats.hmm")));
+        HomogeneousMMDiffSM hom = hmm.getBackground();
+        int order = hom.getMaximalMarkovOrder();
+
+        Sequence tale = getTALE(new Random(11));
+        //across the end of the N-terminus into the first repeat
+        int first = 150 + getConsensus("starts").length() - 30;
+        int last = first + 119;
+
+        double[] bg = new double[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            int c = Math.max(0, i - order);
+            bg[i - first] = hom.getLogProbFor(tale, c, i);
+            if (c < i) {
+                bg[i - first] -= hom.getLogProbFor(tale, c, i - 1);
+            }
+        }
+
+        double[] observed = hmm.getLogOddsScores(tale, first, last);
+        assertEquals(bg.length, observed.length);
+        for (int e = first; e <= last; e++) {
+            double expected = Double.NEGATIVE_INFINITY;
+            double back = 0;
+            for (int s = e; s >= first; s--) {
+                back += bg[s - first];
+                expected = logAdd(expected, hmm.getLogProb(tale, s, e) - back);
+            }
+            assertClose("free start at " + e, expected, observed[e - first]);
+        }
+    }
+
+    private static double logAdd(double a, double b) {
+        double max = Math.max(a, b);
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+    }
+
+    /**
+     * Scores windows of the width used by {@link NHMMer} along a TALE assembled from the
+     * consensus sequences of the three models, with point mutations and random flanks, by
+     * {@link ProfileHMM} and by the Jstacs HMM parsed from the same file.
+     */
+    private static void compareOnTALE(String name) throws Exception {
+        String model = read("annotale/data/" + name + ".hmm");
+        ProfileHMM profile = ProfileHMM.parse(new StringReader(model));
+        StringBuffer consensus = new StringBuffer();
+        LinkedList<Integer> matchStates = new LinkedList<Integer>();
+        LinkedList<Integer> silentStates = new LinkedList<Integer>();
+        Pair<AbstractHMM, HomogeneousMMDiffSM> jstacs = HMMFactory.parseProfileHMMFromHMMer(
+              new StringReader(model), consensus, matchStates, silentStates);
+        AbstractHMM hmm = jstacs.getFirstElement();
+
+        Sequence tale = getTALE(new Random(11));
+        int w = (int) Math.round(consensus.length() * 1.1);
+        int step = Math.max(1, (tale.getLength() - w) / 15);
+        for (int s = 0; s + w <= tale.getLength(); s += step) {
+            int e = s + w - 1;
+            assertClose(name + " forward at " + s, hmm.getLogProbFor(tale, s, e),
+                  profile.getLogProb(tale, s, e));
+
+            Pair<IntList, Double> expected = hmm.getViterbiPathFor(s, e, tale);
+            Pair<IntList, Double> observed = profile.getViterbiPath(tale, s, e);
+            assertClose(name + " Viterbi at " + s, expected.getSecondElement(),
+                  observed.getSecondElement());
+            assertArrayEquals(name + " match positions at " + s,
+                  getMatchedPositions(expected.getFirstElement(), matchStates, silentStates),
+                  getMatchedPositions(observed.getFirstElement(), profile));
+        }
+    }
+
+    private static void assertClose(String message, double expected, double observed) {
+        assertEquals(message, expected, observed, 1E-9 * Math.max(1, Math.abs(expected)));
+    }
+
+    /**
+     * Returns the positions of the window emitted by match states along a Viterbi path, as the
+     * state indexes of both implementations differ.
+     */
+    private static int[] getMatchedPositions(IntList states, LinkedList<Integer> matchStates,
+          LinkedList<Integer> silentStates) {
+        boolean[] match = new boolean[states.length()];
+        boolean[] silent = new boolean[states.length()];
+        for (int i = 0; i < states.length(); i++) {
+            match[i] = matchStates.contains(states.get(i));
+            silent[i] = silentStates.contains(states.get(i));
+        }
+        return toPositions(match, silent);
+    }
+
+    private static int[] getMatchedPositions(IntList states, ProfileHMM hmm) {
+        boolean[] match = new boolean[states.length()];
+        boolean[] silent = new boolean[states.length()];
+        for (int i = 0; i < states.length(); i++) {
+            match[i] = hmm.isMatchState(states.get(i));
+            silent[i] = hmm.isSilentState(states.get(i));
+        }
+        return toPositions(match, silent);
+    }
+
+    private static int[] toPositions(boolean[] match, boolean[] silent) {
+        IntList positions = new IntList();
+        int pos = 0;
+        for (int i = 0; i < match.length; i++) {
+            if (match[i]) {
+                positions.add(pos);
+            }
+            if (!silent[i]) {
+                pos++;
+            }
+        }
+        return positions.toArray();
+    }
+
+    private static Sequence getTALE(Random r) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(random(r, 150));
+        sb.append(mutate(r, getConsensus("starts")));
+        String repeat = getConsensus("repeats");
+        for (int i = 0; i < 6; i++) {
+            sb.append(mutate(r, repeat));
+        }
+        sb.append(mutate(r, getConsensus("ends")));
+        sb.append(random(r, 150));
+        return Sequence.create(DNAAlphabetContainer.SINGLETON, sb.toString());
+    }
+
+    private static String getConsensus(String name) throws Exception {
+        return new HMMerModel(new StringReader(read("annotale/data/" + name + ".hmm")))
+              .getConsensus().toUpperCase();
+    }
+
+    private static String mutate(Random r, String seq) {
+        char[] chars = seq.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (r.nextDouble() < 0.03) {
+                chars[i] = "ACGT".charAt(r.nextInt(4));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String random(Random r, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(r.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static String read(String resource) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+              ProfileHMMTest.class.getClassLoader().getResourceAsStream(resource)));
+        StringBuilder sb = new StringBuilder();
+        String str = null;
+        while ((str = br.readLine()) != null) {
+            sb.append(str).append('\n');
+        }
+        br.close();
+        return sb.toString();
+    }
+
+}
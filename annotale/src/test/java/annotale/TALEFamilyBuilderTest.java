@@ -0,0 +1,66 @@
+package annotale;
+
+import annotale.TALEFamilyBuilder.TALEFamily;
+import de.jstacs.data.sequences.Sequence;
+import de.jstacs.utils.Pair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TALEFamilyBuilderTest {
+
+    @Test
+    public void storesAndParsesInducedAlignments() throws Exception {
+        TALEFamilyBuilder builder = new TALEFamilyBuilder(new TALE[]{
+              tale("TalA1", "HD-NI-NG-NN-HD-HD-NI-NG-NG-HD-NS-NG"),
+              tale("TalA2", "HD-NI-NG-NN-HD-NI-NG-NG-HD-NS-NG"),
+              tale("TalA3", "HD-NI-NG-NN-HD-HD-NI-NG-NG-HD-NI-NG"),
+              tale("TalB1", "NI-NI-HD-NN-NG-NG-NI-NN-HD-NI-HD-NN-NG"),
+              tale("TalB2", "NI-NI-HD-NN-NG-NG-NI-NN-HD-NI-HD-NG")});
+
+        StringBuffer xml = builder.toXML(true);
+        assertTrue("induced alignments should be stored",
+              xml.indexOf("inducedAlignment") >= 0);
+
+        TALEFamilyBuilder parsed = new TALEFamilyBuilder(xml);
+        assertEquals(builder.getFamilies().length, parsed.getFamilies().length);
+        for (int i = 0; i < builder.getFamilies().length; i++) {
+            TALEFamily expected = builder.getFamily(i);
+            TALEFamily observed = parsed.getFamily(i);
+            assertEquals(expected.getFamilyId(), observed.getFamilyId());
+
+            Pair<TALE[], String[]> al1 = expected.getInducedMultipleAlignment();
+            Pair<TALE[], String[]> al2 = observed.getInducedMultipleAlignment();
+            assertArrayEquals(ids(al1.getFirstElement()), ids(al2.getFirstElement()));
+            assertArrayEquals(al1.getSecondElement(), al2.getSecondElement());
+        }
+    }
+
+    @Test
+    public void parsesBuilderWithoutInducedAlignments() throws Exception {
+        TALEFamilyBuilder builder = new TALEFamilyBuilder(new TALE[]{
+              tale("TalA1", "HD-NI-NG-NN-HD-HD-NI-NG-NG-HD-NS-NG"),
+              tale("TalA2", "HD-NI-NG-NN-HD-NI-NG-NG-HD-NS-NG")});
+
+        TALEFamilyBuilder parsed = new TALEFamilyBuilder(builder.toXML());
+        assertEquals(builder.getFamilies().length, parsed.getFamilies().length);
+        assertArrayEquals(builder.getFamily(0).getInducedMultipleAlignment().getSecondElement(),
+              parsed.getFamily(0).getInducedMultipleAlignment().getSecondElement());
+    }
+
+    private static TALE tale(String id, String rvds) throws Exception {
+        return new TALE(id, Sequence.create(RVDAlphabetContainer.SINGLETON, rvds, "-"), false,
+              false);
+    }
+
+    private static String[] ids(TALE[] tales) {
+        String[] ids = new String[tales.length];
+        for (int i = 0; i < tales.length; i++) {
+            ids[i] = tales[i].getId();
+        }
+        return ids;
+    }
+
+}
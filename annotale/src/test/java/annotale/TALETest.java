@@ -5,7 +5,9 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.util.Arrays;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNotNull;
@@ -204,4 +206,64 @@ public class TALETest {
         assertEquals("TalB", tales[1].getId());
     }
 
+    @Test
+    public void segmentsKnownNumbersOfRepeats() throws Exception {
+        for (int n : new int[]{1, 5, 17}) {
+            String[] reps = new String[n];
+            Arrays.fill(reps, repeatWithRvd("HD"));
+            int[] lengths = segment(reps, lastRepeatWithRvd("NG"));
+
+            int[] expected = new int[n + 3];
+            Arrays.fill(expected, TALEConsensus.repeat.getLength());
+            expected[0] = TALEConsensus.start.getLength();
+            expected[n + 1] = TALEConsensus.lastRepeat.getLength();
+            expected[n + 2] = TALEConsensus.end.getLength();
+            assertArrayEquals("repeats: " + n, expected, lengths);
+        }
+    }
+
+    @Test
+    public void segmentsTruncatedLastRepeat() throws Exception {
+        String last = lastRepeatWithRvd("NN").substring(0, 14);
+        int[] lengths = segment(
+              new String[]{repeatWithRvd("HD"), repeatWithRvd("NI"), repeatWithRvd("NG")}, last);
+
+        assertArrayEquals(new int[]{TALEConsensus.start.getLength(), 34, 34, 34, 14,
+              TALEConsensus.end.getLength()}, lengths);
+    }
+
+    @Test
+    public void segmentsDeletionSpanningRepeatBoundary() throws Exception {
+        String[] reps = new String[]{repeatWithRvd("HD"), repeatWithRvd("NI"),
+              repeatWithRvd("NG"), repeatWithRvd("NN")};
+        // the last five residues of the second and the first five of the third repeat are missing
+        reps[1] = reps[1].substring(0, 29);
+        reps[2] = reps[2].substring(5);
+        int[] lengths = segment(reps, lastRepeatWithRvd("NG"));
+
+        assertArrayEquals(new int[]{TALEConsensus.start.getLength(), 34, 29, 29, 34, 20,
+              TALEConsensus.end.getLength()}, lengths);
+    }
+
+    private static String repeatWithRvd(String rvd) {
+        String cons = TALEConsensus.repeat.toString();
+        return cons.substring(0, 11) + rvd + cons.substring(13);
+    }
+
+    private static String lastRepeatWithRvd(String rvd) {
+        String cons = TALEConsensus.lastRepeat.toString();
+        return cons.substring(0, 11) + rvd + cons.substring(13);
+    }
+
+    private static int[] segment(String[] repeats, String lastRepeat) throws Exception {
+        StringBuilder sb = new StringBuilder(TALEConsensus.start.toString());
+        for (String rep : repeats) {
+            sb.append(rep);
+        }
+        sb.append(lastRepeat).append(TALEConsensus.end.toString());
+        Sequence prot = Sequence.create(Tools.Translator.DEFAULT.getProteinAlphabet(),
+              sb.toString());
+        return SplitTALEs.getSegmentLengths(prot, Tools.Aligner.DEFAULT.getMatrix(), 3, 2);
+    }
+
 }
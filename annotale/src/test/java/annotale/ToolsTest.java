@@ -4,10 +4,20 @@ import de.jstacs.algorithms.alignment.Alignment.AlignmentType;
 import de.jstacs.algorithms.alignment.PairwiseStringAlignment;
 import de.jstacs.data.AlphabetContainer;
 import de.jstacs.data.DataSet;
+import de.jstacs.data.alphabets.DiscreteAlphabet;
 import de.jstacs.data.alphabets.DNAAlphabetContainer;
 import de.jstacs.data.sequences.Sequence;
+import de.jstacs.utils.Normalisation;
+import de.jstacs.utils.ToolBox;
+import annotale.alignmentCosts.RVDCosts;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeSet;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -261,4 +271,224 @@ public class ToolsTest {
         assertTrue(aligned0.contains("-") || aligned1.contains("-"));
     }
 
+    @Test
+    public void familyResultsDoNotDependOnThreads() throws Exception {
+        String[] rvds = new String[]{
+              "HD-NI-NG-NN-HD-NS-NI-NG-HD-NN",
+              "HD-NI-NG-NN-HD-NS-NI-NG-HD-NG",
+              "NI-NG-HD-HD-NN-NI-NG-NI-HD",
+              "NI-NG-HD-HD-NN-NI-NG-NI-NG",
+              "NG-NG-NI-HD-NN-NN-HD-NI",
+              "NG-NG-NI-HD-NN-NN-HD-NG-NI"
+        };
+        TALE[] tales = new TALE[rvds.length];
+        for (int i = 0; i < tales.length; i++) {
+            tales[i] = new TALE("Tal" + i, Sequence.create(RVDAlphabetContainer.SINGLETON, rvds[i], "-"), true, false);
+        }
+        TALEFamilyBuilder builder = BuildFamilies.build(tales, 5.0, 1.1).getFirstElement();
+        TALEFamilyBuilder.TALEFamily[] fams = builder.getFamilies();
+
+        BuildFamilies.FamilyResult[] serial = BuildFamilies.getFamilyResults(fams, 1.1, builder, 0, 1);
+        BuildFamilies.FamilyResult[] parallel = BuildFamilies.getFamilyResults(fams, 1.1, builder, 0, 4);
+
+        assertEquals(serial.length, parallel.length);
+        for (int i = 0; i < serial.length; i++) {
+            assertEquals(serial[i].getFamily().getFamilyId(), parallel[i].getFamily().getFamilyId());
+            assertEquals(serial[i].getRelatedFams().length, parallel[i].getRelatedFams().length);
+            for (int j = 0; j < serial[i].getRelatedFams().length; j++) {
+                assertEquals(serial[i].getRelatedFams()[j].getFamilyId(), parallel[i].getRelatedFams()[j].getFamilyId());
+                assertEquals(serial[i].getRelatedTALEs()[j].length, parallel[i].getRelatedTALEs()[j].length);
+                for (int k = 0; k < serial[i].getRelatedTALEs()[j].length; k++) {
+                    assertEquals(serial[i].getRelatedTALEs()[j][k].getId(), parallel[i].getRelatedTALEs()[j][k].getId());
+                    assertEquals(serial[i].getAlignments()[j][k].getCost(), parallel[i].getAlignments()[j][k].getCost(), 0.0);
+                    assertEquals(serial[i].getAlignments()[j][k].toString(), parallel[i].getAlignments()[j][k].toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convolvedPValuesMatchEnumeration() throws Exception {
+        TALE[] tales = new TALE[]{
+              new TALE("TalA", Sequence.create(RVDAlphabetContainer.SINGLETON, "HD-NI-NG-NN-HD-NS", "-"), true, false),
+              new TALE("TalB", Sequence.create(RVDAlphabetContainer.SINGLETON, "NI-NG-HD-HD-NN", "-"), true, false),
+              new TALE("TalC", Sequence.create(RVDAlphabetContainer.SINGLETON, "NG-NG-NI-HD", "-"), true, false)
+        };
+        // costs on a common grid of 0.2, and on no grid coarser than 1E-3
+        RVDCosts[] costs = new RVDCosts[]{new RVDCosts(1.0, 0.2, 0.8, 0.0), new RVDCosts(1.0, 0.201, 0.8, 0.0)};
+        String[] queries = new String[]{"NI", "HD-NG", "HD-NI-NG", "NN-HD-NI-NG-HD"};
+
+        for (RVDCosts cost : costs) {
+            AlignmentPValues pv = new AlignmentPValues(tales, cost);
+            for (String query : queries) {
+                Sequence rvds = Sequence.create(tales[0].getRvdSequence().getAlphabetContainer(), query, "-");
+                for (double base : new double[]{0.0, 0.5}) {
+                    double[][] dist = enumerateCosts(tales, cost, rvds, base);
+                    // every achievable cost is an exact tie, which does not count
+                    for (double thresh : dist[0]) {
+                        for (double t : new double[]{thresh, thresh + 1E-4, thresh - 1E-4}) {
+                            assertEquals(query + " at " + t, enumeratedLog10PValue(dist, t),
+                                  pv.getLog10PValue(rvds, t, base), 1E-9);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Distribution of the costs of <code>rvds</code> against random RVDs, enumerated like
+     * AlignmentPValues did before it convolved cost histograms.
+     */
+    private static double[][] enumerateCosts(TALE[] tales, RVDCosts costs, Sequence rvds, double baseScore) {
+        AlphabetContainer rvdAlph = tales[0].getRvdSequence().getAlphabetContainer();
+        double[] rvdProbs = new double[(int) rvdAlph.getAlphabetLengthAt(0)];
+        Arrays.fill(rvdProbs, 1.0 / rvdProbs.length);
+        for (TALE tale : tales) {
+            for (int j = 0; j < tale.getRvdSequence().getLength(); j++) {
+                rvdProbs[tale.getRvdSequence().discreteVal(j)]++;
+            }
+        }
+        Normalisation.sumNormalisation(rvdProbs);
+
+        double[] prevScores = new double[]{baseScore};
+        double[] prevProbs = new double[]{0};
+        for (int i = 0; i < rvds.getLength(); i++) {
+            TreeSet<Double> classes = new TreeSet<Double>();
+            for (int j = 0; j < rvdProbs.length; j++) {
+                classes.add(costs.getCostFor(rvdAlph, rvds.discreteVal(i), j));
+            }
+            double[] sc = new double[classes.size()];
+            double[] pr = new double[classes.size()];
+            int c = 0;
+            for (double cl : classes) {
+                double p = 0;
+                for (int j = 0; j < rvdProbs.length; j++) {
+                    if (costs.getCostFor(rvdAlph, rvds.discreteVal(i), j) == cl) {
+                        p += rvdProbs[j];
+                    }
+                }
+                sc[c] = cl;
+                pr[c] = Math.log(p);
+                c++;
+            }
+
+            double[] tempSc = new double[prevScores.length * sc.length];
+            double[] tempPr = new double[tempSc.length];
+            for (int k = 0, l = 0; k < prevScores.length; k++) {
+                for (int j = 0; j < sc.length; j++, l++) {
+                    tempSc[l] = prevScores[k] + sc[j];
+                    tempPr[l] = prevProbs[k] + pr[j];
+                }
+            }
+            ToolBox.sortAlongWith(tempSc, tempPr);
+
+            ArrayList<double[]> merged = new ArrayList<double[]>();
+            int k = 0;
+            while (k < tempSc.length) {
+                int j = k;
+                double prev = tempSc[j];
+                while (k < tempSc.length && Math.abs(tempSc[k] - prev) < 1E-3) {
+                    k++;
+                }
+                merged.add(new double[]{prev, Normalisation.getLogSum(j, k, tempPr)});
+            }
+            prevScores = new double[merged.size()];
+            prevProbs = new double[merged.size()];
+            for (int j = 0; j < merged.size(); j++) {
+                prevScores[j] = merged.get(j)[0];
+                prevProbs[j] = merged.get(j)[1];
+            }
+        }
+        return new double[][]{prevScores, prevProbs};
+    }
+
+    private static double enumeratedLog10PValue(double[][] dist, double costThresh) {
+        int i = 0;
+        while (i < dist[0].length && dist[0][i] < costThresh) {
+            i++;
+        }
+        if (i == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Normalisation.getLogSum(0, i, dist[1]) / Math.log(10);
+    }
+
+    @Test
+    public void seedCountsMatchStringSetCounts() throws Exception {
+        AlphabetContainer con = new AlphabetContainer(
+              new DiscreteAlphabet(true, "A", "C", "G", "T", "N"));
+        Random r = new Random(17);
+        String consensus = randomString(r, "ACGT", 102);
+
+        for (int frag : new int[]{5, 10}) {
+            SeedFilter seeds = new SeedFilter(consensus, frag);
+            HashSet<String> parts = new HashSet<String>();
+            for (int i = 0; i < consensus.length() / frag; i++) {
+                parts.add(consensus.substring(i * frag, (i + 1) * frag).toUpperCase());
+            }
+            assertEquals(parts.size(), seeds.getNumberOfSeeds());
+
+            for (int k = 0; k < 20; k++) {
+                // random bases and stretches of N interspersed with pieces of the consensus
+                StringBuilder sb = new StringBuilder();
+                while (sb.length() < 600) {
+                    int a = r.nextInt(consensus.length() - 20);
+                    sb.append(consensus, a, a + 5 + r.nextInt(15));
+                    sb.append(randomString(r, "ACGT", r.nextInt(8)));
+                    if (r.nextInt(4) == 0) {
+                        sb.append(randomString(r, "N", 1 + r.nextInt(3)));
+                    }
+                }
+                Sequence seq = Sequence.create(con, sb.toString());
+
+                for (int w : new int[]{frag, 60, 113}) {
+                    int n = seq.getLength() - w + 1;
+                    for (int[] range : new int[][]{{0, n}, {37, n - 11}}) {
+                        int[] expected = stringSetCounts(seq, range[0], range[1], w, parts, frag);
+                        int[] counts = seeds.countSeeds(seq, range[0], range[1], w);
+                        assertTrue("frag " + frag + ", w " + w, Arrays.equals(expected, counts));
+                    }
+                }
+            }
+        }
+    }
+
+    private static String randomString(Random r, String symbols, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(symbols.charAt(r.nextInt(symbols.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The sliding count of the former <code>String</code> based prefilter, with the first window
+     * counted by fragment occurrences as well.
+     */
+    private static int[] stringSetCounts(Sequence seq, int from, int to, int w,
+          HashSet<String> parts, int frag) throws Exception {
+        int[] counts = new int[to - from];
+        int num = 0;
+        for (int k = from; k + frag <= from + w; k++) {
+            if (parts.contains(seq.toString(k, k + frag))) {
+                num++;
+            }
+        }
+        for (int j = from; j < to; j++) {
+            counts[j - from] = num;
+            if (j < seq.getLength() - w) {
+                String substr1 = seq.toString(j, j + frag);
+                String substr2 = seq.toString(j + w - frag + 1, j + w + 1);
+                if (parts.contains(substr1)) {
+                    num--;
+                }
+                if (parts.contains(substr2)) {
+                    num++;
+                }
+            }
+        }
+        return counts;
+    }
+
 }
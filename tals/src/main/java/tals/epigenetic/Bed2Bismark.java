@@ -1,14 +1,11 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.Date;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -47,29 +44,34 @@ public class Bed2Bismark implements JstacsTool {
 		progress.setLast(1.0);
 		progress.setCurrent(0.0);
 		String bedMethylFile = parameters.getParameterAt(0).getValue().toString();
-		BufferedReader BR=null;
-		if(bedMethylFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(bedMethylFile)))));
-		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(bedMethylFile))));
-		}
+		TsvReader BR=TsvReader.open(bedMethylFile, threads>1);
 		
 		File out = File.createTempFile("bismark", ".temp.gz", new File("."));
 		out.deleteOnExit();
 
 		GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(out));
-		PrintStream os_ps=new PrintStream(os);
-		String line="";
-		String[] splitLine;
-		String sep="\t";
+		PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
+		char sep='\t';
 		
-		while ((line = BR.readLine()) != null){
-				splitLine=line.split("\t");
-				double methylation_level=Double.parseDouble(splitLine[10])/100.0;
-				os_ps.print(splitLine[0]+sep+splitLine[1]+sep+splitLine[2]+sep+splitLine[10]+sep+(int)Math.round(Double.parseDouble(splitLine[9])*methylation_level)+sep+(int)Math.round(Double.parseDouble(splitLine[9])*(1.0-methylation_level))+"\n");
+		while (BR.next()){
+				double coverage=BR.getDouble(9);
+				double methylation_level=BR.getDouble(10)/100.0;
+				//the text fields are copied as bytes
+				BR.writeField(0, os_ps);
+				os_ps.print(sep);
+				BR.writeField(1, os_ps);
+				os_ps.print(sep);
+				BR.writeField(2, os_ps);
+				os_ps.print(sep);
+				BR.writeField(10, os_ps);
+				os_ps.print(sep);
+				os_ps.print((int)Math.round(coverage*methylation_level));
+				os_ps.print(sep);
+				os_ps.print((int)Math.round(coverage*(1.0-methylation_level)));
+				os_ps.print('\n');
 		}
 		BR.close();
-		os.close();
+		os_ps.close();
 		
 		TextResult tr = new TextResult("Converted Bismark file", "Bismark file converted from bed methyl file", new FileParameter.FileRepresentation(out.getAbsolutePath()), "cov.gz", getToolName(), null, true);
 		
@@ -1,18 +1,13 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -53,114 +48,45 @@ public class BismarkConvertToPromoterSearch implements JstacsTool{
 		progress.setCurrent(0.0);
 		
 		String bismarkFile = parameters.getParameterAt(0).getValue().toString();
-		BufferedReader BR=null;
-		if(bismarkFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(bismarkFile)))));
-		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(bismarkFile))));
-		}
 		
 		String promotorFasta = parameters.getParameterAt(1).getValue().toString();
-		BufferedReader FA=new BufferedReader(new FileReader(promotorFasta));
+		PromoterJoin promoters=PromoterJoin.read(promotorFasta, false);
 		
 		File out = File.createTempFile("bimark.promoter", ".temp.cov.gz", new File("."));
 		out.deleteOnExit();
 		
 		GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(out));
-		PrintStream os_ps=new PrintStream(os);
-		
-		HashMap<String, HashMap<Integer,String>> tempBismark=new HashMap<>();
-		
-		String line="";
-		String[] splitLine;
+		PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
 		
-		while ((line = BR.readLine()) != null){
+		TsvReader BR=TsvReader.open(bismarkFile, threads>1);
+		String chrom="";
+		int startBismark=-1;
+		while (BR.next()){
 			//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
 			//chromosome02    359     359     83.3333333333333        5       1
 			//CM/(CM+CU)
-			splitLine=line.split("\t");
-			
-			HashMap <Integer,String> temp=null;
-			if(tempBismark.containsKey(splitLine[0])){
-				temp=tempBismark.get(splitLine[0]);
-			}else {
-				//System.out.println(splitLine[0]);
-				
-				temp=new HashMap<>();
+			if(!BR.fieldEquals(0, chrom)){
+				chrom=BR.getString(0);
 			}
-			temp.put(Integer.parseInt(splitLine[1]), line);
-			
-			tempBismark.put(splitLine[0], temp);
-		}
-		BR.close();
-		
-		line="";
-		
-		String gene="";
-		String chrom="";
-		int startPos=-1;
-		int endPos=-1;
-		String[] splitHeader;
-		String[] splitArea;
-		String[] splitPos;
-		String[] splitBismark;
-
-		int startBismark=-1;
-		boolean strand;
-		while ((line = FA.readLine()) != null){
-			if(line.startsWith(">")){
-				splitHeader=line.split(" ");
-				splitArea=splitHeader[2].split(":");
-
-				if(splitArea[2].equals("+")){
-					strand=true;
-				}else{
-					strand=false;
-				}
-
-				splitPos=splitArea[1].split("-");
-				gene=line.substring(1).trim();
-				int idx = gene.indexOf(" ");
-				if (idx > 0) {
-					gene = gene.substring(0, idx);
-				}
-				
-				chrom=splitArea[0];
-
-				startPos=Integer.parseInt(splitPos[0]);
-				
-				endPos=Integer.parseInt(splitPos[1]);
-				
-				int k=0;
-				int pos=-1;
-				for(int i=startPos;i<endPos;i++){
-					if(strand==true){
-						if(tempBismark.containsKey(chrom)){
-							if(tempBismark.get(chrom).containsKey(i+1)){
-								splitBismark=tempBismark.get(chrom).get(i+1).split("\t");
-								startBismark=Integer.parseInt(splitBismark[1])-startPos;
-								os_ps.print(gene+"\t"+startBismark+"\t"+startBismark+"\t"+splitBismark[3]+"\t"+splitBismark[4]+"\t"+splitBismark[5]+"\n");
-							}
-							
-						}
-					}
-					if(strand==false){
-						pos=endPos-k;
-						
-						if(tempBismark.containsKey(chrom)){
-							if(tempBismark.get(chrom).containsKey(pos)){
-								splitBismark=tempBismark.get(chrom).get(pos).split("\t");
-								startBismark=k+1;
-								os_ps.print(gene+"\t"+startBismark+"\t"+startBismark+"\t"+splitBismark[3]+"\t"+splitBismark[4]+"\t"+splitBismark[5]+"\n");
-							}
-						}
+			int pos=BR.getInt(1);
+			int n=promoters.find(chrom, pos, pos);
+			if(n>0){
+				String values=BR.getString(3)+"\t"+BR.getString(4)+"\t"+BR.getString(5);
+				for(int k=0;k<n;k++){
+					int region=promoters.getFound(k);
+					if(promoters.isForward(region)){
+						startBismark=pos-promoters.getStart(region);
+					}else{
+						startBismark=promoters.getEnd(region)-pos+1;
 					}
-					k++;
+					promoters.add(region, startBismark, promoters.getGene(region)+"\t"+startBismark+"\t"+startBismark+"\t"+values);
 				}
 			}
 		}
-		FA.close();
-		os.close();
+		BR.close();
+		
+		promoters.write(os_ps);
+		os_ps.close();
 		
 		TextResult tr = new TextResult("Bismark promoter file", "Bismark file in promoter region", new FileParameter.FileRepresentation(out.getAbsolutePath()), "cov.gz", getToolName(), null, true);
 		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
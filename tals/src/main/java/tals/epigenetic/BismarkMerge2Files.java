@@ -1,18 +1,14 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.HashSet;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -51,90 +47,214 @@ public class BismarkMerge2Files implements JstacsTool{
 		progress.setLast(1.0);
 		progress.setCurrent(0.0);
 		String bismarkFile1 = parameters.getParameterAt(0).getValue().toString();
-		BufferedReader BR=null;
-		if(bismarkFile1.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(bismarkFile1)))));
-		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(bismarkFile1))));
-		}
-		
 		String bismarkFile2 = parameters.getParameterAt(1).getValue().toString();
-		BufferedReader BR2=null;
-		if(bismarkFile2.endsWith("gz")){
-			BR2=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(bismarkFile2)))));
-		}else{
-			BR2=new BufferedReader(new InputStreamReader(new FileInputStream(new File(bismarkFile2))));
-		}
 		
 		File out = File.createTempFile("merged.bismark", ".temp.gz", new File("."));
 		out.deleteOnExit();
 		
 		GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(out));
-		PrintStream os_ps=new PrintStream(os);
+		PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
 		
-		HashMap<String, HashMap<Integer,String>> tempBismark=new HashMap<>();
-		
-		String line="";
-		String[] splitLine;
-		while ((line = BR.readLine()) != null){
-			//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
-			//chromosome02    359     359     83.3333333333333        5       1
-			//CM/(CM+CU)
-				splitLine=line.split("\t");
-				
-				HashMap <Integer,String> temp=null;
-				if(tempBismark.containsKey(splitLine[0])){
-					temp=tempBismark.get(splitLine[0]);
-				}else {
-					temp=new HashMap<>();
+		String[] files=new String[]{bismarkFile1,bismarkFile2};
+		TsvReader[] readers=new TsvReader[files.length];
+		try{
+			HashMap<String,Integer> order=getChromosomeOrder(files, threads>1);
+			for(int i=0;i<files.length;i++){
+				readers[i]=TsvReader.open(files[i], threads>1);
+			}
+			merge(readers, files, order, os_ps);
+		}finally{
+			for(TsvReader reader : readers){
+				if(reader!=null){
+					reader.close();
 				}
-				temp.put(Integer.parseInt(splitLine[1]), line);
-				
-				tempBismark.put(splitLine[0], temp);
+			}
+			os_ps.close();
+		}
+		
+		TextResult tr = new TextResult("Merged Bismark file", "Merged Bismark file", new FileParameter.FileRepresentation(out.getAbsolutePath()), "cov.gz", getToolName(), null, true);
+		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
+
+	}
 
+	/**
+	 * Merges Bismark coverage files sorted by chromosome and position by walking through all files
+	 * at once. The chromosomes are merged in the order given by <code>order</code>, see
+	 * {@link #getChromosomeOrder(String[], boolean)}. The counts of a position found in several
+	 * files are summed, positions found in only one file are copied. Of several lines at the same
+	 * position of one file, only the last one is used. Only the current line of each file is held
+	 * in memory.
+	 *
+	 * @param readers the readers of the files
+	 * @param files the names of the files for error messages
+	 * @param order the ranks of the chromosomes of all files
+	 * @param os_ps the stream the merged lines are written to
+	 */
+	static void merge(TsvReader[] readers, String[] files, HashMap<String,Integer> order, PrintStream os_ps) throws Exception {
+		//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
+		//chromosome02    359     359     83.3333333333333        5       1
+		//CM/(CM+CU)
+		String[] chroms=new String[readers.length];
+		int[] ranks=new int[readers.length];
+		int[] positions=new int[readers.length];
+		boolean[] has=new boolean[readers.length];
+		for(int i=0;i<readers.length;i++){
+			has[i]=advance(readers[i], i, chroms, ranks, positions, order, files[i]);
 		}
-		BR.close();
-
-		line="";
-		String[] splitLineF1;
-		while ((line = BR2.readLine()) != null){
-			//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
-			//chromosome02    359     359     83.3333333333333        5       1
-			//CM/(CM+CU)
-				splitLine=line.split("\t");
-				HashMap <Integer,String> temp=tempBismark.get(splitLine[0]);
-				if(!temp.containsKey(Integer.parseInt(splitLine[1]))){
-					temp.put(Integer.parseInt(splitLine[1]), line);
-				}else{
-					splitLineF1=temp.get(Integer.parseInt(splitLine[1])).split("\t");
-					double count_methyl=Integer.parseInt(splitLineF1[4])+Integer.parseInt(splitLine[4]);
-					double count_unmethyl=Integer.parseInt(splitLineF1[5])+Integer.parseInt(splitLine[5]);
-					double methylationLevel=0.0;
-					if(count_methyl>0.0){
-						methylationLevel=count_methyl/(count_methyl+count_unmethyl)*100;
+		
+		int[] group=new int[readers.length];
+		while(true){
+			int min=-1;
+			for(int i=0;i<readers.length;i++){
+				if(has[i] && (min<0 || compare(ranks[i], positions[i], ranks[min], positions[min])<0)){
+					min=i;
+				}
+			}
+			if(min<0){
+				break;
+			}
+			int n=0;
+			for(int i=min;i<readers.length;i++){
+				if(has[i] && compare(ranks[i], positions[i], ranks[min], positions[min])==0){
+					group[n++]=i;
+				}
+			}
+			
+			if(n==1){
+				readers[min].writeLine(os_ps);
+			}else{
+				double count_methyl=0;
+				double count_unmethyl=0;
+				for(int k=0;k<n;k++){
+					count_methyl+=readers[group[k]].getInt(4);
+					count_unmethyl+=readers[group[k]].getInt(5);
+				}
+				double methylationLevel=0.0;
+				if(count_methyl>0.0){
+					methylationLevel=count_methyl/(count_methyl+count_unmethyl)*100;
+				}
+				readers[min].writeField(0, os_ps);
+				os_ps.print('\t');
+				readers[min].writeField(1, os_ps);
+				os_ps.print('\t');
+				readers[min].writeField(2, os_ps);
+				os_ps.print("\t"+methylationLevel+"\t"+((int)count_methyl)+"\t"+((int)count_unmethyl));
+			}
+			os_ps.print('\n');
+			
+			for(int k=0;k<n;k++){
+				int i=group[k];
+				has[i]=advance(readers[i], i, chroms, ranks, positions, order, files[i]);
+			}
+		}
+	}
+	
+	private static int compare(int rank1, int pos1, int rank2, int pos2) {
+		int c=Integer.compare(rank1, rank2);
+		return c!=0 ? c : Integer.compare(pos1, pos2);
+	}
+	
+	/**
+	 * Moves <code>reader</code> to the last of the next lines at the same position and reads it into
+	 * <code>chroms[i]</code>, <code>ranks[i]</code> and <code>positions[i]</code>.
+	 */
+	private static boolean advance(TsvReader reader, int i, String[] chroms, int[] ranks, int[] positions, HashMap<String,Integer> order, String file) throws Exception {
+		if(!reader.next()){
+			return false;
+		}
+		read(reader, i, chroms, ranks, positions, order, file);
+		while(reader.next()){
+			if(!reader.fieldEquals(0, chroms[i]) || reader.getInt(1)!=positions[i]){
+				reader.back();
+				break;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the current line of <code>reader</code> into <code>chroms[i]</code>, <code>ranks[i]</code>
+	 * and <code>positions[i]</code> and checks that it is not before the previous line.
+	 */
+	private static void read(TsvReader reader, int i, String[] chroms, int[] ranks, int[] positions, HashMap<String,Integer> order, String file) throws Exception {
+		int pos=reader.getInt(1);
+		if(chroms[i]==null || !reader.fieldEquals(0, chroms[i])){
+			String chrom=reader.getString(0);
+			Integer rank=order.get(chrom);
+			if(rank==null || (chroms[i]!=null && rank<ranks[i])){
+				throw new Exception("Chromosome "+chrom+" in line "+reader.getLineNumber()+" of "+file+" differs from the chromosomes read before merging. Files must not change while they are merged.");
+			}
+			chroms[i]=chrom;
+			ranks[i]=rank;
+		}else if(pos<positions[i]){
+			throw new Exception("Position "+pos+" after "+positions[i]+" on "+chroms[i]+" in line "+reader.getLineNumber()+" of "+file+". Bismark files must be sorted by position and list their chromosomes in the same order.");
+		}
+		positions[i]=pos;
+	}
+	
+	/**
+	 * Reads the chromosomes of all files and ranks them in one order that agrees with the order of
+	 * each file. Chromosomes missing from some files are ranked before the next chromosome they
+	 * share with the others, e.g., the order of <code>chr1, chrC</code> and
+	 * <code>chr1, chrM, chrC</code> is <code>chr1, chrM, chrC</code>.
+	 *
+	 * @param files the names of the files
+	 * @param background if the files are decompressed on separate threads
+	 * @return the ranks of the chromosomes
+	 */
+	static HashMap<String,Integer> getChromosomeOrder(String[] files, boolean background) throws Exception {
+		ArrayList<String> order=new ArrayList<String>();
+		for(String file : files){
+			ArrayList<String> chroms=new ArrayList<String>();
+			HashSet<String> seen=new HashSet<String>();
+			TsvReader reader=TsvReader.open(file, background);
+			try{
+				String chrom=null;
+				while(reader.next()){
+					if(chrom==null || !reader.fieldEquals(0, chrom)){
+						chrom=reader.getString(0);
+						if(!seen.add(chrom)){
+							throw new Exception("Chromosome "+chrom+" in line "+reader.getLineNumber()+" of "+file+" after "+chroms.get(chroms.size()-1)+", but also before. Bismark files must be sorted by chromosome and position.");
+						}
+						chroms.add(chrom);
 					}
-					
-					String newLine=splitLineF1[0]+"\t"+splitLineF1[1]+"\t"+splitLineF1[2]+"\t"+methylationLevel+"\t"+((int)count_methyl)+"\t"+((int)count_unmethyl);
-					temp.put(Integer.parseInt(splitLine[1]), newLine);
 				}
-				
-				tempBismark.put(splitLine[0], temp);
+			}finally{
+				reader.close();
+			}
+			order=mergeOrder(order, chroms, file);
 		}
-		BR2.close();
-		
-		for(String chrom : tempBismark.keySet()){
-			HashMap <Integer,String> temp=tempBismark.get(chrom);
-			List<Integer> sortedByKey = new ArrayList<>(temp.keySet());
-			Collections.sort(sortedByKey);
-			for (Integer i : sortedByKey) {
-				os_ps.print(temp.get(i)+"\n");
-			}			
+		HashMap<String,Integer> ranks=new HashMap<String,Integer>();
+		for(String chrom : order){
+			ranks.put(chrom, ranks.size());
 		}
-		os.close();
-		
-		TextResult tr = new TextResult("Merged Bismark file", "Merged Bismark file", new FileParameter.FileRepresentation(out.getAbsolutePath()), "cov.gz", getToolName(), null, true);
-		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
-
+		return ranks;
+	}
+	
+	/**
+	 * Merges the chromosome orders <code>order</code> and <code>chroms</code>, where the
+	 * chromosomes of both must be in the same order.
+	 */
+	private static ArrayList<String> mergeOrder(ArrayList<String> order, ArrayList<String> chroms, String file) throws Exception {
+		HashSet<String> inOrder=new HashSet<String>(order);
+		HashSet<String> inChroms=new HashSet<String>(chroms);
+		ArrayList<String> merged=new ArrayList<String>();
+		int i=0;
+		int j=0;
+		while(i<order.size() || j<chroms.size()){
+			if(i<order.size() && !inChroms.contains(order.get(i))){
+				merged.add(order.get(i++));
+			}else if(j<chroms.size() && !inOrder.contains(chroms.get(j))){
+				merged.add(chroms.get(j++));
+			}else if(i<order.size() && j<chroms.size() && order.get(i).equals(chroms.get(j))){
+				merged.add(order.get(i++));
+				j++;
+			}else{
+				String chrom=j<chroms.size() ? chroms.get(j) : order.get(i);
+				throw new Exception("Chromosome "+chrom+" is in another order in "+file+" than in the files before. Bismark files must list their chromosomes in the same order.");
+			}
+		}
+		return merged;
 	}
 
 	@Override
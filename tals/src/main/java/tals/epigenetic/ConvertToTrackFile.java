@@ -0,0 +1,139 @@
+package tals.epigenetic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+
+import de.jstacs.DataType;
+import de.jstacs.io.FileManager;
+import de.jstacs.parameters.FileParameter;
+import de.jstacs.parameters.ParameterException;
+import de.jstacs.parameters.ParameterSet;
+import de.jstacs.parameters.SelectionParameter;
+import de.jstacs.parameters.SimpleParameterSet;
+import de.jstacs.results.ResultSet;
+import de.jstacs.results.TextResult;
+import de.jstacs.tools.JstacsTool;
+import de.jstacs.tools.ProgressUpdater;
+import de.jstacs.tools.Protocol;
+import de.jstacs.tools.ToolParameterSet;
+import de.jstacs.tools.ToolResult;
+import de.jstacs.tools.ui.cli.CLI;
+import htsjdk.samtools.util.RuntimeEOFException;
+
+public class ConvertToTrackFile implements JstacsTool {
+
+	public static void main(String[] args) throws Exception {
+		CLI cli = new CLI(new ConvertToTrackFile());
+		
+		cli.run(args);
+
+	}
+	
+	public ConvertToTrackFile() {
+
+	}
+	
+	@Override
+	public ToolParameterSet getToolParameters() {
+		FileParameter genome = new FileParameter("Sequences","The sequences (e.g., a genome) the track is defined on","fa,fas,fasta",true);
+		
+		FileParameter bismark = new FileParameter("Bismark file","The bedGraph output of bismark (file.cov.gz) containig <chromosome> <start position> <end position> <methylation percentage> <count methylated> <count unmethylated>","cov,cov.gz",true);
+		FileParameter narrowPeak = new FileParameter("NarrowPeak file","The output of a peak caller (all.peaks.narrowPeak)","narrowPeak,narrowPeak.gz",true);
+		FileParameter coveragePileup =new FileParameter("Normalized pileup output","The normalized output of pileup with values larger than zero (file.txt) containig <chromosome> <position> <coverage>","tsv,tsv.gz",true);
+		
+		try {
+			SelectionParameter track = new SelectionParameter(DataType.PARAMETERSET, new String[]{"methylation","peaks","coverage"}, new ParameterSet[]{
+					new SimpleParameterSet(bismark),
+					new SimpleParameterSet(narrowPeak),
+					new SimpleParameterSet(coveragePileup)
+			}, "Track", "The methylation levels from a Bismark file, the peaks from a narrowPeak file, or the coverage from a normalized pileup output", true);
+			
+			return new ToolParameterSet(this.getShortName(),genome,track);
+		} catch (ParameterException e) {
+			throw new RuntimeEOFException(e);
+		}
+	}
+
+	@Override
+	public ToolResult run(ToolParameterSet parameters, Protocol protocol,
+			ProgressUpdater progress, int threads) throws Exception {
+		progress.setLast(1.0);
+		progress.setCurrent(0.0);
+		String genomePath = parameters.getParameterAt(0).getValue().toString();
+		int selected = ((SelectionParameter)parameters.getParameterAt(1)).getSelected();
+		String trackPath = ((ParameterSet)parameters.getParameterAt(1).getValue()).getParameterAt(0).getValue().toString();
+		
+		HashMap<String,Integer> seqLengthHash=QuickTBSPredictionToolEpigenetic.getFaLengthHashMap(genomePath);
+		
+		File out = File.createTempFile("track", ".temp.track", new File("."));
+		out.deleteOnExit();
+		
+		if(selected==0){
+			//same pseudo counts as in the predictions with methylation data
+			EpigeneticTrackFile.writeMethylationTracks(out.getAbsolutePath(), seqLengthHash, MethylationprofilHashMap.readBismark(seqLengthHash, trackPath, 1.0f, 0.0f), 1.0f, 0.0f);
+		}else if(selected==1){
+			EpigeneticTrackFile.writeMasks(out.getAbsolutePath(), NarrowpeakprofilHashMap.readPeaks(seqLengthHash, trackPath, true));
+		}else{
+			EpigeneticTrackFile.writeMasks(out.getAbsolutePath(), PileupCoverageprofilHashMap.readCoverage(seqLengthHash, trackPath));
+		}
+		progress.setCurrent(1.0);
+		
+		TextResult tr = new TextResult("Track file", "Binary track file, which may be used instead of the original file in predictions", new FileParameter.FileRepresentation(out.getAbsolutePath()), "track", getToolName(), null, true);
+		
+		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
+	}
+
+	@Override
+	public String getToolName() {
+		return "ConvertToTrackFile";
+	}
+
+	@Override
+	public String getToolVersion() {
+		return "0.1";
+	}
+
+	@Override
+	public String getShortName() {
+		return "track";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Converts methylation, peak or coverage files to binary track files";
+	}
+
+
+	@Override
+	public String getHelpText() {
+		try {
+			return FileManager.readInputStream( ConvertToTrackFile.class.getClassLoader().getResourceAsStream( "projects/tals/epigenetic/toolHelpFiles/ConvertToTrackFile.txt" ) ).toString();
+		} catch ( IOException e ) {
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	@Override
+	public ResultEntry[] getDefaultResultInfos() {
+		return null;
+	}
+
+	@Override
+	public ToolResult[] getTestCases(String path) {
+		return null;
+	}
+
+	@Override
+	public void clear() {
+		
+	}
+
+	@Override
+	public String[] getReferences() {
+		return null;
+	}
+
+}
@@ -15,6 +15,7 @@ public class EpiTALEcli {
 			new NormalizePileupOutput(),
 			new PileupConvertToPromoterSearch(),
 			new NarrowPeakConvertToPromoterSearch(),
+			new ConvertToTrackFile(),
 			new QuickTBSPredictionToolEpigenetic()
 		};
 		
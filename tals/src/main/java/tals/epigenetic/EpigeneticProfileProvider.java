@@ -0,0 +1,212 @@
+package tals.epigenetic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Methylation, peak and coverage profiles of the chromosomes of a genome for a scan that walks the
+ * genome one chromosome at a time. The profiles of a chromosome are mapped from track files when
+ * the scan reaches it and released when it moves on, so only the current chromosome (and the next
+ * one, if prefetched) takes memory. Text files are converted to temporary track files once, so
+ * repeated scans of the genome do not parse them again.
+ * <br>
+ * With prefetching, the tracks of the next chromosome in genome order (or of the first one after
+ * the last one) are read into memory on a background thread while the current one is scanned.
+ */
+public class EpigeneticProfileProvider implements Closeable {
+
+	/**
+	 * The profiles of one chromosome. The peak and coverage profiles are <code>null</code> if no
+	 * such file was given.
+	 */
+	public static class Profiles {
+
+		private final Methylationprofil methylation;
+		private final Narrowpeakprofil peaks;
+		private final PileupCoverageprofil coverage;
+
+		private Profiles(Methylationprofil methylation, Narrowpeakprofil peaks, PileupCoverageprofil coverage) {
+			this.methylation = methylation;
+			this.peaks = peaks;
+			this.coverage = coverage;
+		}
+
+		public Methylationprofil getMethylationprofil() {
+			return methylation;
+		}
+
+		public Narrowpeakprofil getNarrowpeakprofil() {
+			return peaks;
+		}
+
+		public PileupCoverageprofil getPileupCoverageprofil() {
+			return coverage;
+		}
+
+	}
+
+	private final HashMap<String, Integer> chromLengthHash;
+	private final String[] chroms;
+	private final float pseudoCounts;
+	private final float probCMethylated;
+	private final int peakBefore;
+	private final int peakAfter;
+	private final int covBefore;
+	private final int covAfter;
+	private final boolean calculateAlwaysOnCompleteSeq;
+
+	private final ArrayList<File> temporary = new ArrayList<>();
+	private EpigeneticTrackFile methylation;
+	private EpigeneticTrackFile peaks;
+	private EpigeneticTrackFile coverage;
+
+	private final ExecutorService prefetch;
+	private String current;
+	private Profiles currentProfiles;
+	private String next;
+	private Future<Profiles> nextProfiles;
+
+	/**
+	 * Creates a provider for the chromosomes in <code>chromLengthHash</code>, which are scanned in the
+	 * iteration order of its keys.
+	 *
+	 * @param bismarkPath a Bismark file or methylation track file, or <code>null</code> for the
+	 * pseudo count level at all positions
+	 * @param peakPath a narrowPeak file or peak track file, or <code>null</code>
+	 * @param coveragePath a normalized pileup output or coverage track file, or <code>null</code>
+	 * @param prefetch if the next chromosome is read on a background thread
+	 */
+	public EpigeneticProfileProvider(HashMap<String, Integer> chromLengthHash, String bismarkPath, float pseudoCounts, float probCMethylated,
+			String peakPath, int peakBefore, int peakAfter,
+			String coveragePath, int covBefore, int covAfter, boolean calculateAlwaysOnCompleteSeq, boolean prefetch) throws Exception {
+		this.chromLengthHash = chromLengthHash;
+		this.chroms = chromLengthHash.keySet().toArray(new String[0]);
+		this.pseudoCounts = pseudoCounts;
+		this.probCMethylated = probCMethylated;
+		this.peakBefore = peakBefore;
+		this.peakAfter = peakAfter;
+		this.covBefore = covBefore;
+		this.covAfter = covAfter;
+		this.calculateAlwaysOnCompleteSeq = calculateAlwaysOnCompleteSeq;
+		this.prefetch = prefetch ? Executors.newSingleThreadExecutor() : null;
+		try{
+			if(bismarkPath!=null){
+				if(!EpigeneticTrackFile.isTrackFile(bismarkPath)){
+					String path=createTemporary();
+					EpigeneticTrackFile.writeMethylationTracks(path, chromLengthHash, MethylationprofilHashMap.readBismark(chromLengthHash, bismarkPath, pseudoCounts, probCMethylated), pseudoCounts, probCMethylated);
+					bismarkPath=path;
+				}
+				methylation=EpigeneticTrackFile.open(bismarkPath, EpigeneticTrackFile.METHYLATION, chromLengthHash);
+				methylation.checkPseudoCounts(pseudoCounts, probCMethylated);
+			}
+			if(peakPath!=null){
+				if(!EpigeneticTrackFile.isTrackFile(peakPath)){
+					String path=createTemporary();
+					EpigeneticTrackFile.writeMasks(path, NarrowpeakprofilHashMap.readPeaks(chromLengthHash, peakPath, true));
+					peakPath=path;
+				}
+				peaks=EpigeneticTrackFile.open(peakPath, EpigeneticTrackFile.MASK, chromLengthHash);
+			}
+			if(coveragePath!=null){
+				if(!EpigeneticTrackFile.isTrackFile(coveragePath)){
+					String path=createTemporary();
+					EpigeneticTrackFile.writeMasks(path, PileupCoverageprofilHashMap.readCoverage(chromLengthHash, coveragePath));
+					coveragePath=path;
+				}
+				coverage=EpigeneticTrackFile.open(coveragePath, EpigeneticTrackFile.MASK, chromLengthHash);
+			}
+		}catch(Exception e){
+			close();
+			throw e;
+		}
+	}
+
+	private String createTemporary() throws IOException {
+		File temp=File.createTempFile("epigenetic", ".temp.track");
+		temp.deleteOnExit();
+		temporary.add(temp);
+		return temp.getAbsolutePath();
+	}
+
+	/**
+	 * Returns the profiles of <code>chrom</code>. If <code>chrom</code> is not the chromosome of the
+	 * previous call, the profiles of that chromosome are released.
+	 */
+	public synchronized Profiles get(String chrom) throws Exception {
+		if(!chrom.equals(current)){
+			currentProfiles=null;
+			if(chrom.equals(next)){
+				currentProfiles=nextProfiles.get();
+			}else{
+				if(nextProfiles!=null){
+					nextProfiles.cancel(false);
+				}
+				currentProfiles=load(chrom, false);
+			}
+			current=chrom;
+			next=null;
+			nextProfiles=null;
+			if(prefetch!=null){
+				//after the last chromosome, the next scan starts again at the first one
+				int idx=Arrays.asList(chroms).indexOf(chrom);
+				if(idx>=0 && chroms.length>1){
+					String c=chroms[(idx+1)%chroms.length];
+					next=c;
+					nextProfiles=prefetch.submit(() -> load(c, true));
+				}
+			}
+		}
+		return currentProfiles;
+	}
+
+	private Profiles load(String chrom, boolean load) throws IOException {
+		Integer chromLength=chromLengthHash.get(chrom);
+		if(chromLength==null){
+			throw new IllegalArgumentException("Sequence "+chrom+" not in the genome");
+		}
+		MethylationTrack track=methylation!=null && methylation.contains(chrom) ? methylation.getMethylationTrack(chrom, load) : new MethylationTrack(pseudoCounts*probCMethylated);
+		Narrowpeakprofil peakProfile=null;
+		if(peaks!=null){
+			peakProfile=new Narrowpeakprofil(chrom, chromLength, getMask(peaks, chrom, chromLength, load), peakBefore, peakAfter);
+		}
+		PileupCoverageprofil coverageProfile=null;
+		if(coverage!=null){
+			coverageProfile=new PileupCoverageprofil(chrom, chromLength, getMask(coverage, chrom, chromLength, load), covBefore, covAfter, calculateAlwaysOnCompleteSeq);
+		}
+		return new Profiles(new Methylationprofil(0, chrom, chromLength, track, true, pseudoCounts, probCMethylated), peakProfile, coverageProfile);
+	}
+
+	private static PositionMask getMask(EpigeneticTrackFile file, String chrom, int chromLength, boolean load) throws IOException {
+		return file.contains(chrom) ? file.getMask(chrom, load) : new PositionMask(chromLength).build();
+	}
+
+	/**
+	 * Releases all profiles and deletes the temporary track files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(prefetch!=null){
+			prefetch.shutdownNow();
+		}
+		current=null;
+		currentProfiles=null;
+		next=null;
+		nextProfiles=null;
+		for(EpigeneticTrackFile file : new EpigeneticTrackFile[]{methylation, peaks, coverage}){
+			if(file!=null){
+				file.close();
+			}
+		}
+		for(File temp : temporary){
+			temp.delete();
+		}
+	}
+
+}
@@ -0,0 +1,521 @@
+package tals.epigenetic;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.jstacs.data.sequences.Sequence;
+import de.jstacs.results.CategoricalResult;
+import de.jstacs.results.NumericalResult;
+import de.jstacs.results.Result;
+import de.jstacs.results.ResultSet;
+import de.jstacs.sequenceScores.QuickScanningSequenceScore;
+import de.jstacs.tools.ProgressUpdater;
+import de.jstacs.utils.ComparableElement;
+import de.jstacs.utils.DoubleList;
+import de.jstacs.utils.IntList;
+import de.jstacs.utils.LargeSequenceReader;
+import de.jstacs.utils.Pair;
+import umontreal.ssj.probdist.NormalDist;
+
+/**
+ * Scan of a genome for the target sites of a TALE with a model that takes the methylation profile
+ * of the scanned sequence into account, shared by the EpiTALE and PrediTALE tools. The chunks of the
+ * genome are read on the calling thread, the profiles of their chromosome are taken from an
+ * {@link EpigeneticProfileProvider}, and the windows of each chunk and strand are scored in blocks
+ * on a pool of threads. Each block uses its own {@link Methylationprofil} and the hits are collected
+ * in the order of the chunks, strands and positions, so the result does not depend on the number of
+ * threads.
+ * <br>
+ * Each predicted site is described by the results of {@link #getSites(LinkedList, Sequence, String, List, ProgressUpdater, double, double, String, QuickScanningSequenceScore, int, int, double, NormalDist, double, int, boolean[][], int...)}
+ * followed by the results of the {@link Annotator}s, e.g., the methylation levels, peaks or
+ * coverage at the site.
+ */
+public class EpigeneticScanner implements Closeable {
+
+	/**
+	 * Adds results describing a predicted site.
+	 */
+	public interface Annotator {
+
+		/**
+		 * Adds the results for <code>site</code> to <code>results</code>.
+		 *
+		 * @param profiles the profiles of the chromosome of the site
+		 */
+		public void annotate(Site site, EpigeneticProfileProvider.Profiles profiles, ArrayList<Result> results) throws Exception;
+
+	}
+
+	/**
+	 * Adds the methylation levels of the site as computed by
+	 * {@link PFMWrapperTrainSMMethyl#getMethylProb(Sequence, int, int)}.
+	 *
+	 * @param length the number of positions after the first position of the site, i.e., the number of RVDs
+	 */
+	public static Annotator methylation(PFMWrapperTrainSMMethyl model, int length) {
+		return (site, profiles, results) -> results.add(new CategoricalResult("MethylationProp", "", model.getMethylProb(site.getSequence(), site.getStart(), site.getStart()+length)));
+	}
+
+	/**
+	 * Adds if there is a peak around the site, if a peak file was given.
+	 */
+	public static final Annotator PEAKS = (site, profiles, results) -> {
+		Narrowpeakprofil peaks=profiles.getNarrowpeakprofil();
+		if(peaks!=null){
+			results.add(new CategoricalResult("isPeakSurroundBox", "", peaks.isPeakSurroundPos(site.getPosition(), site.isForward())));
+		}
+	};
+
+	/**
+	 * Adds the number of covered positions around the site, if a coverage file was given.
+	 */
+	public static final Annotator COVERAGE = (site, profiles, results) -> {
+		PileupCoverageprofil coverage=profiles.getPileupCoverageprofil();
+		if(coverage!=null){
+			results.add(new NumericalResult("countCovPos", "", coverage.getnumberOfCoveragePositionsSurroundPos(site.getPosition(), site.isForward())));
+		}
+	};
+
+	/**
+	 * A site scoring above the threshold.
+	 */
+	public static class Site {
+
+		private final String id;
+		private final int position;
+		private final boolean forward;
+		private final double score;
+		private final Sequence sequence;
+		private final int start;
+
+		private Site(String id, int position, boolean forward, double score, Sequence sequence, int start) {
+			this.id = id;
+			this.position = position;
+			this.forward = forward;
+			this.score = score;
+			this.sequence = sequence;
+			this.start = start;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * Returns the position of the site on the forward strand of the chromosome.
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		public boolean isForward() {
+			return forward;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * Returns the chunk of the strand of the site, annotated with a {@link Methylationprofil} set to the site.
+		 */
+		public Sequence getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns the start of the site in {@link #getSequence()}.
+		 */
+		public int getStart() {
+			return start;
+		}
+
+	}
+
+	//number of windows scored by one task
+	private static final int BLOCK = 1<<17;
+
+	private final EpigeneticProfileProvider profiles;
+	private final ExecutorService pool;
+
+	/**
+	 * Creates a scanner that scores on <code>threads</code> threads.
+	 *
+	 * @param profiles the profiles of the scanned genome
+	 */
+	public EpigeneticScanner(EpigeneticProfileProvider profiles, int threads) {
+		this.profiles = profiles;
+		this.pool = threads>1 ? Executors.newFixedThreadPool(threads) : null;
+	}
+
+	/**
+	 * Scans the sequences in <code>file</code> for sites of the model scoring above
+	 * <code>threshold</code> and adds them to <code>ll</code>, sorted by their negative score.
+	 * Only windows whose <code>kmer</code>-mers at the offsets <code>offs</code> pass the filter
+	 * <code>use</code> are scored.
+	 */
+	public void getSites(LinkedList<ComparableElement<ResultSet,Double>> ll, Sequence rvds, String talName, List<Annotator> annotators, ProgressUpdater progress, double last, double fac, String file, QuickScanningSequenceScore model, int startStrand, int endStrand, double strandPenalty, NormalDist nd, double threshold, int kmer, boolean[][] use, int... offs) throws Exception {
+		BufferedReader read = new BufferedReader(new FileReader(file));
+		StringBuffer lastHeader = new StringBuffer();
+
+		long approxTotal = (new File(file)).length();
+		int ml = model.getLength();
+
+		Scan scan = new Scan(model, new CategoricalResult("RVDs", "", rvds.toString("-", 0, rvds.getLength())), new CategoricalResult("TALE", "", talName), annotators, strandPenalty, nd, threshold, kmer, use, offs);
+
+		Pair<IntList,ArrayList<Sequence>> pair = null;
+
+		double prog = 0.3;
+
+		try{
+			while( (pair = LargeSequenceReader.readNextSequences(read, lastHeader, ml) ) != null ){
+				IntList starts = pair.getFirstElement();
+				ArrayList<Sequence> seqs = pair.getSecondElement();
+
+				//the chunks of one chromosome are scanned together with its profiles
+				int i=0;
+				while(i<seqs.size()){
+					String id = seqs.get(i).getSequenceAnnotationByType("id", 0).getIdentifier().trim();
+					int j=i+1;
+					while(j<seqs.size() && seqs.get(j).getSequenceAnnotationByType("id", 0).getIdentifier().trim().equals(id)){
+						j++;
+					}
+					EpigeneticProfileProvider.Profiles p = profiles.get(id);
+
+					ArrayList<Callable<ArrayList<ComparableElement<ResultSet,Double>>>> tasks = new ArrayList<>();
+					for(int s=i;s<j;s++){
+						Chunk chunk = new Chunk(id, starts.get(s), seqs.get(s));
+						int n = chunk.forward.getLength()-ml+1;
+						for(int d=startStrand;d<endStrand;d++){
+							boolean forward = d==0;
+							for(int from=0;from<n;from+=BLOCK){
+								int f = from;
+								int t = Math.min(n, from+BLOCK);
+								tasks.add(() -> scan.getSites(chunk, p, forward, f, t));
+							}
+						}
+					}
+					for(ArrayList<ComparableElement<ResultSet,Double>> sites : run(tasks)){
+						ll.addAll(sites);
+					}
+
+					for(int s=i;s<j;s++){
+						prog += (seqs.get(s).getLength()/(double)approxTotal)*0.7;
+					}
+					progress.setCurrent(last + prog*fac);
+					i=j;
+				}
+			}
+		}finally{
+			read.close();
+		}
+	}
+
+	/**
+	 * Determines the distribution of the scores of the model on a sub-sample of the windows of the
+	 * sequences in <code>file</code>, which is drawn with a fixed seed. The sample is scored without
+	 * methylation profiles.
+	 *
+	 * @param p the fraction of windows of both strands to sample
+	 */
+	public NormalDist getThreshold(String file, QuickScanningSequenceScore model, double p, int startStrand, int endStrand, double strandPenalty) throws Exception {
+		BufferedReader read = new BufferedReader(new FileReader(file));
+		StringBuffer lastHeader = new StringBuffer();
+
+		Random r = new Random(113);
+
+		p /= 2.0;
+
+		DoubleList scores = new DoubleList();
+
+		Pair<IntList,ArrayList<Sequence>> pair = null;
+
+		int ml = model.getLength();
+
+		try{
+			while( (pair = LargeSequenceReader.readNextSequences(read, lastHeader, ml) )!= null ){
+				ArrayList<Sequence> seqs = pair.getSecondElement();
+
+				//the positions are drawn here in the order of the sequences, so the sample does not depend on the threads
+				ArrayList<Callable<DoubleList>> tasks = new ArrayList<>();
+				for(Sequence seq : seqs){
+					int n = seq.getLength()-ml+1;
+					IntList[] positions = new IntList[endStrand];
+					for(int d=startStrand;d<endStrand;d++){
+						positions[d] = new IntList();
+						if( p < 1.0){
+							double num = p*n;
+							double meanStep = n/num;
+							double sd = Math.sqrt(meanStep);
+
+							for(int j=Math.max(1, (int)Math.round( meanStep + r.nextGaussian()*sd ));j<n;j+= Math.max(1, (int)Math.round( meanStep + r.nextGaussian()*sd )) ){
+								positions[d].add(j);
+							}
+						}else{
+							for(int j=0;j<n;j++ ){
+								positions[d].add(j);
+							}
+						}
+					}
+					tasks.add(() -> {
+						DoubleList s = new DoubleList();
+						Sequence strand = seq;
+						for(int d=startStrand;d<endStrand;d++){
+							if(d == 1){
+								strand = seq.reverseComplement();
+							}
+							double sPen = d == 1 ? strandPenalty : 0.0;
+							for(int k=0;k<positions[d].length();k++){
+								s.add(model.getLogScoreFor(strand, positions[d].get(k)) + sPen);
+							}
+						}
+						return s;
+					});
+				}
+				for(DoubleList s : run(tasks)){
+					for(int i=0;i<s.length();i++){
+						scores.add(s.get(i));
+					}
+				}
+			}
+		}finally{
+			read.close();
+		}
+
+		double mean = scores.mean(0, scores.length());
+		double meansq = 0;
+		double n = 0;
+
+		for(int i=0;i<scores.length();i++){
+			double score = scores.get(i);
+			if(score>=mean){
+				meansq += score*score;
+				meansq += (2*mean-score)*(2*mean-score);
+				n += 2;
+			}
+		}
+		meansq /=n;
+
+		double sd = Math.sqrt( meansq - mean*mean );
+
+		return new NormalDist(mean, sd);
+	}
+
+	/**
+	 * Runs the tasks and returns their results in the order of the tasks.
+	 */
+	private <T> ArrayList<T> run(ArrayList<Callable<T>> tasks) throws Exception {
+		ArrayList<T> results = new ArrayList<>(tasks.size());
+		if(pool==null || tasks.size()<2){
+			for(Callable<T> task : tasks){
+				results.add(task.call());
+			}
+			return results;
+		}
+		ArrayList<Future<T>> futures = new ArrayList<>(tasks.size());
+		for(Callable<T> task : tasks){
+			futures.add(pool.submit(task));
+		}
+		try{
+			for(Future<T> future : futures){
+				results.add(future.get());
+			}
+		}catch(ExecutionException e){
+			for(Future<T> future : futures){
+				future.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			if(cause instanceof Exception){
+				throw (Exception)cause;
+			}else if(cause instanceof Error){
+				throw (Error)cause;
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		if(pool!=null){
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * A chunk of a chromosome starting at <code>off</code>. The reverse complement is only computed
+	 * if a window of the reverse strand passes the filter.
+	 */
+	private static class Chunk {
+
+		private final String id;
+		private final int off;
+		private final Sequence forward;
+		private Sequence reverse;
+
+		private Chunk(String id, int off, Sequence forward) {
+			this.id = id;
+			this.off = off;
+			this.forward = forward;
+		}
+
+		private synchronized Sequence getReverse() throws Exception {
+			if(reverse==null){
+				reverse=forward.reverseComplement();
+			}
+			return reverse;
+		}
+
+	}
+
+	/**
+	 * The model, filter and results shared by all blocks of one scan.
+	 */
+	private static class Scan {
+
+		private final QuickScanningSequenceScore model;
+		private final CategoricalResult rvdsRes;
+		private final CategoricalResult talRes;
+		private final List<Annotator> annotators;
+		private final double strandPenalty;
+		private final NormalDist nd;
+		private final double threshold;
+		private final int kmer;
+		private final boolean[][] use;
+		private final int[] offs;
+		private final int[] pow;
+		private final int c;
+
+		private Scan(QuickScanningSequenceScore model, CategoricalResult rvdsRes, CategoricalResult talRes, List<Annotator> annotators, double strandPenalty, NormalDist nd, double threshold, int kmer, boolean[][] use, int[] offs) throws Exception {
+			this.model = model;
+			this.rvdsRes = rvdsRes;
+			this.talRes = talRes;
+			this.annotators = annotators;
+			this.strandPenalty = strandPenalty;
+			this.nd = nd;
+			this.threshold = threshold;
+			this.kmer = kmer;
+			this.use = use;
+			this.offs = offs;
+			this.pow = new int[kmer];
+			int a = (int)model.getAlphabetContainer().getAlphabetLengthAt(0);
+			pow[pow.length-1]=1;
+			for( int i = pow.length-2; i >= 0; i-- ) {
+				pow[i] = pow[i+1]*a;
+			}
+			this.c = (int)model.getAlphabetContainer().getCode(0, "C");
+		}
+
+		/**
+		 * Returns the code of position <code>i</code> of the strand, where the reverse strand is read
+		 * from the forward one.
+		 */
+		private static int code(Sequence forward, int sl, boolean strand, int i) {
+			return strand ? forward.discreteVal(i) : 3-forward.discreteVal(sl-1-i);
+		}
+
+		/**
+		 * Returns the sites in the windows <code>from</code> to <code>to</code> (exclusive) of one strand of <code>chunk</code>.
+		 */
+		private ArrayList<ComparableElement<ResultSet,Double>> getSites(Chunk chunk, EpigeneticProfileProvider.Profiles profiles, boolean forward, int from, int to) throws Exception {
+			ArrayList<ComparableElement<ResultSet,Double>> sites = new ArrayList<>();
+
+			Sequence fwd = chunk.forward;
+			int sl = fwd.getLength();
+			int ml = model.getLength();
+			int off = chunk.off;
+			double sPen = forward ? 0.0 : strandPenalty;
+
+			Methylationprofil MP = profiles.getMethylationprofil().copy();
+			MP.setStrand(forward);
+			Sequence seq = null;
+
+			//codes of the strand from window from on, read once for the filter and the scores
+			byte[] codes = new byte[to-from+ml-1];
+			for(int i=0;i<codes.length;i++){
+				codes[i] = (byte)code(fwd, sl, forward, from+i);
+			}
+			//methylation levels aligned with the codes, resolved up to the last window passing the filter
+			PFMWrapperTrainSMMethyl pfm = model instanceof PFMWrapperTrainSMMethyl ? (PFMWrapperTrainSMMethyl)model : null;
+			float[] methyl = pfm == null ? null : new float[codes.length];
+			MethylationTrack.Cursor cursor = MP.getTrack().cursor();
+			int filled = 0;
+
+			int[] idxs = new int[offs.length];
+			for(int i=0;i<offs.length;i++){
+				for(int j=0;j<kmer-1;j++){
+					idxs[i] += pow[j+1]*codes[offs[i]+j];
+				}
+			}
+
+			for(int j=from;j<to;j++){
+				int l = j-from;
+				for(int i=0;i<idxs.length;i++){
+					idxs[i] = (idxs[i]%pow[0])*4 + codes[offs[i]+l+kmer-1];
+				}
+
+				boolean used = true;
+				for(int k=0;used && k<use.length;k++){
+					used &= use[k][idxs[k]];
+				}
+				if(used){
+					MP.setStartPos(forward ? off+j : off+sl-j);
+
+					double score;
+					if(pfm != null){
+						//the first position of a site is not methylation-aware
+						for(int i=Math.max(filled, l+1);i<l+ml;i++){
+							methyl[i] = codes[i] == c ? cursor.get(forward ? off+from+i : off+sl-1-from-i) : 0;
+						}
+						filled = l+ml;
+						score = pfm.getLogScoreFor(codes, methyl, l) + sPen;
+					}else{
+						if(seq == null){
+							seq = (forward ? fwd : chunk.getReverse()).annotate(true, new MethylationSequenceAnnotation( "methyl", MP ) );
+						}
+						score = model.getLogScoreFor(seq, j) + sPen;
+					}
+
+					if(score > threshold){
+						if(seq == null){
+							seq = (forward ? fwd : chunk.getReverse()).annotate(true, new MethylationSequenceAnnotation( "methyl", MP ) );
+						}
+						int position = forward ? off+j : off+sl-j-ml;
+						ArrayList<Result> rl=new ArrayList<Result>();
+
+						rl.add(new CategoricalResult("Seq-ID", "", chunk.id));
+						rl.add(new NumericalResult("Position", "", position));
+						rl.add(new CategoricalResult("Strand","",forward ? "+" : "-"));
+						rl.add(new NumericalResult("Score", "", score));
+						rl.add(new CategoricalResult("Sequence", "", seq.toString(j, j+ml)));
+						rl.add(new NumericalResult("Approx. p-value", "", (1.0-nd.cdf(score))));
+						rl.add(rvdsRes);
+						rl.add(talRes);
+						if(!annotators.isEmpty()){
+							Site site = new Site(chunk.id, position, forward, score, seq, j);
+							for(Annotator annotator : annotators){
+								annotator.annotate(site, profiles, rl);
+							}
+						}
+
+						sites.add(new ComparableElement<ResultSet, Double>(new ResultSet(rl.toArray(new Result[0])), -score));
+					}
+				}
+			}
+			return sites;
+		}
+
+	}
+
+}
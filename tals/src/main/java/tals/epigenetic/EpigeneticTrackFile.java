@@ -0,0 +1,377 @@
+package tals.epigenetic;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Binary file of the methylation levels or the peak or coverage masks of all chromosomes of a
+ * genome, which are parsed once from the text files and then opened by
+ * {@link MethylationprofilHashMap}, {@link NarrowpeakprofilHashMap} and
+ * {@link PileupCoverageprofilHashMap} without parsing.
+ * <br>
+ * The file starts with a header holding the kind of track and an index of the chromosomes with
+ * their lengths, the number of entries and the offset of their blocks. The blocks of a
+ * methylation track hold the sorted positions (<code>int</code>) and the levels
+ * (<code>float</code>) of a {@link MethylationTrack}, the blocks of a mask the words
+ * (<code>long</code>) and the rank index (<code>int</code>) of a {@link PositionMask}. Each block
+ * starts at a multiple of 8 bytes. The blocks are memory-mapped, so only the pages around looked up
+ * positions are read from disk.
+ */
+public class EpigeneticTrackFile implements Closeable {
+
+	/**
+	 * The first four bytes of a track file, "TALT".
+	 */
+	private static final int MAGIC = 0x54414C54;
+	private static final int VERSION = 1;
+
+	public static final int METHYLATION = 0;
+	public static final int MASK = 1;
+
+	private final String path;
+	private final RandomAccessFile file;
+	private final int kind;
+	private final float pseudoCounts;
+	private final float probCMethylated;
+	private final HashMap<String, long[]> index;// length, number of entries, offset
+
+	public EpigeneticTrackFile(String path) throws IOException {
+		this.path = path;
+		this.file = new RandomAccessFile(path, "r");
+		try{
+			if(file.length()<4 || file.readInt()!=MAGIC){
+				throw new IOException(path+" is no track file");
+			}
+			int version=file.readInt();
+			if(version!=VERSION){
+				throw new IOException("Unsupported version "+version+" of track file "+path);
+			}
+			this.kind = file.readInt();
+			this.pseudoCounts = file.readFloat();
+			this.probCMethylated = file.readFloat();
+			int n=file.readInt();
+			this.index = new HashMap<>();
+			for(int i=0;i<n;i++){
+				String chrom=file.readUTF();
+				index.put(chrom, new long[]{file.readInt(), file.readInt(), file.readLong()});
+			}
+		}catch(IOException e){
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if the file at <code>path</code> starts like a track file.
+	 */
+	public static boolean isTrackFile(String path) throws IOException {
+		File f=new File(path);
+		if(!f.isFile() || f.length()<4){
+			return false;
+		}
+		RandomAccessFile temp=new RandomAccessFile(f, "r");
+		try{
+			return temp.readInt()==MAGIC;
+		}finally{
+			temp.close();
+		}
+	}
+
+	public int getKind() {
+		return kind;
+	}
+
+	/**
+	 * Returns the pseudo counts the levels of a methylation track were computed with.
+	 */
+	public float getPseudoCounts() {
+		return pseudoCounts;
+	}
+
+	/**
+	 * Returns the prior probability of methylation the levels of a methylation track were computed
+	 * with.
+	 */
+	public float getProbCMethylated() {
+		return probCMethylated;
+	}
+
+	public Set<String> getChromosomes() {
+		return index.keySet();
+	}
+
+	public boolean contains(String chrom) {
+		return index.containsKey(chrom);
+	}
+
+	public int getLength(String chrom) {
+		return (int)getEntry(chrom)[0];
+	}
+
+	private long[] getEntry(String chrom) {
+		long[] entry=index.get(chrom);
+		if(entry==null){
+			throw new IllegalArgumentException("Chromosome "+chrom+" not in track file "+path);
+		}
+		return entry;
+	}
+
+	/**
+	 * Maps the methylation track of <code>chrom</code>. The track stays valid after this file is
+	 * closed.
+	 */
+	public MethylationTrack getMethylationTrack(String chrom) throws IOException {
+		return getMethylationTrack(chrom, false);
+	}
+
+	/**
+	 * Maps the methylation track of <code>chrom</code> and, if <code>load</code> is
+	 * <code>true</code>, reads it into physical memory.
+	 */
+	public MethylationTrack getMethylationTrack(String chrom, boolean load) throws IOException {
+		checkKind(METHYLATION);
+		long[] entry=getEntry(chrom);
+		int n=(int)entry[1];
+		IntBuffer positions=map(entry[2], 4L*n, load).asIntBuffer();
+		FloatBuffer levels=map(entry[2]+4L*n, 4L*n, load).asFloatBuffer();
+		return new MethylationTrack(positions, levels, pseudoCounts*probCMethylated);
+	}
+
+	/**
+	 * Maps the mask of <code>chrom</code>. The mask stays valid after this file is closed.
+	 */
+	public PositionMask getMask(String chrom) throws IOException {
+		return getMask(chrom, false);
+	}
+
+	/**
+	 * Maps the mask of <code>chrom</code> and, if <code>load</code> is <code>true</code>, reads it
+	 * into physical memory.
+	 */
+	public PositionMask getMask(String chrom, boolean load) throws IOException {
+		checkKind(MASK);
+		long[] entry=getEntry(chrom);
+		int length=(int)entry[0];
+		int words=PositionMask.getNumberOfWords(length);
+		LongBuffer w=map(entry[2], 8L*words, load).asLongBuffer();
+		IntBuffer r=map(entry[2]+8L*words, 4L*PositionMask.getNumberOfBlocks(length), load).asIntBuffer();
+		return new PositionMask(length, w, r, (int)entry[1]);
+	}
+
+	private MappedByteBuffer map(long offset, long size, boolean load) throws IOException {
+		MappedByteBuffer buffer=file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+		if(load){
+			buffer.load();
+		}
+		return buffer;
+	}
+
+	private void checkKind(int expected) throws IOException {
+		if(kind!=expected){
+			throw new IOException("Track file "+path+" holds no "+(expected==METHYLATION ? "methylation levels" : "peaks or coverage"));
+		}
+	}
+
+	/**
+	 * Checks that all chromosomes of this file are in <code>chromLengthHash</code> with the same
+	 * length.
+	 */
+	private void checkChromosomes(HashMap<String, Integer> chromLengthHash) throws IOException {
+		for(String chrom : index.keySet()){
+			Integer length=chromLengthHash.get(chrom);
+			if(length==null || length!=getLength(chrom)){
+				throw new IOException("Chromosome "+chrom+" of track file "+path+" not in the genome or of different length");
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Opens the track file at <code>path</code> and checks that it holds tracks of the given kind for
+	 * chromosomes in <code>chromLengthHash</code>.
+	 */
+	static EpigeneticTrackFile open(String path, int kind, HashMap<String, Integer> chromLengthHash) throws IOException {
+		EpigeneticTrackFile track=new EpigeneticTrackFile(path);
+		try{
+			track.checkKind(kind);
+			track.checkChromosomes(chromLengthHash);
+			return track;
+		}catch(IOException e){
+			track.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that the levels of this methylation track file were computed with
+	 * <code>pseudoCounts</code> and <code>probCMethylated</code>.
+	 */
+	void checkPseudoCounts(float pseudoCounts, float probCMethylated) throws IOException {
+		if(this.pseudoCounts!=pseudoCounts || this.probCMethylated!=probCMethylated){
+			throw new IOException("Track file "+path+" was created with pseudo counts "+this.pseudoCounts+" and probability "+this.probCMethylated+" instead of "+pseudoCounts+" and "+probCMethylated);
+		}
+	}
+
+	/**
+	 * Maps the methylation tracks of all chromosomes in <code>chromLengthHash</code> from the track
+	 * file at <code>path</code>. Chromosomes not in the file get a track with the default level.
+	 */
+	static HashMap<String, MethylationTrack> readMethylationTracks(String path, HashMap<String, Integer> chromLengthHash, float pseudoCounts, float probCMethylated) throws IOException {
+		EpigeneticTrackFile track=open(path, METHYLATION, chromLengthHash);
+		try{
+			track.checkPseudoCounts(pseudoCounts, probCMethylated);
+			HashMap<String, MethylationTrack> tracks=new HashMap<>();
+			MethylationTrack empty=new MethylationTrack(pseudoCounts*probCMethylated);
+			for(String chrom : chromLengthHash.keySet()){
+				tracks.put(chrom, track.contains(chrom) ? track.getMethylationTrack(chrom) : empty);
+			}
+			return tracks;
+		}finally{
+			track.close();
+		}
+	}
+
+	/**
+	 * Maps the masks of all chromosomes in <code>chromLengthHash</code> from the track file at
+	 * <code>path</code>. Chromosomes not in the file get an empty mask.
+	 */
+	static HashMap<String, PositionMask> readMasks(String path, HashMap<String, Integer> chromLengthHash) throws IOException {
+		EpigeneticTrackFile track=open(path, MASK, chromLengthHash);
+		try{
+			HashMap<String, PositionMask> masks=new HashMap<>();
+			for(String chrom : chromLengthHash.keySet()){
+				masks.put(chrom, track.contains(chrom) ? track.getMask(chrom) : new PositionMask(chromLengthHash.get(chrom)).build());
+			}
+			return masks;
+		}finally{
+			track.close();
+		}
+	}
+
+	/**
+	 * Writes the methylation tracks of all chromosomes in <code>tracks</code>, computed with
+	 * <code>pseudoCounts</code> and <code>probCMethylated</code>, to a track file at
+	 * <code>path</code>.
+	 */
+	public static void writeMethylationTracks(String path, HashMap<String, Integer> chromLengthHash, HashMap<String, MethylationTrack> tracks, float pseudoCounts, float probCMethylated) throws IOException {
+		String[] chroms=getSortedKeys(tracks);
+		long[][] entries=new long[chroms.length][];
+		for(int i=0;i<chroms.length;i++){
+			int n=tracks.get(chroms[i]).getNumberOfPositions();
+			entries[i]=new long[]{chromLengthHash.get(chroms[i]), n, 8L*n};
+		}
+		DataOutputStream out=create(path, METHYLATION, pseudoCounts, probCMethylated, chroms, entries);
+		try{
+			for(int i=0;i<chroms.length;i++){
+				IntBuffer positions=tracks.get(chroms[i]).getPositions();
+				while(positions.hasRemaining()){
+					out.writeInt(positions.get());
+				}
+				FloatBuffer levels=tracks.get(chroms[i]).getLevels();
+				while(levels.hasRemaining()){
+					out.writeFloat(levels.get());
+				}
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the masks of all chromosomes in <code>masks</code> to a track file at
+	 * <code>path</code>.
+	 */
+	public static void writeMasks(String path, HashMap<String, PositionMask> masks) throws IOException {
+		String[] chroms=getSortedKeys(masks);
+		long[][] entries=new long[chroms.length][];
+		for(int i=0;i<chroms.length;i++){
+			int length=masks.get(chroms[i]).getLength();
+			entries[i]=new long[]{length, masks.get(chroms[i]).count(), 8L*PositionMask.getNumberOfWords(length)+4L*PositionMask.getNumberOfBlocks(length)};
+		}
+		DataOutputStream out=create(path, MASK, 0f, 0f, chroms, entries);
+		try{
+			for(int i=0;i<chroms.length;i++){
+				LongBuffer words=masks.get(chroms[i]).getWords();
+				while(words.hasRemaining()){
+					out.writeLong(words.get());
+				}
+				IntBuffer ranks=masks.get(chroms[i]).getRanks();
+				while(ranks.hasRemaining()){
+					out.writeInt(ranks.get());
+				}
+				pad(out, entries[i][2]);
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	private static String[] getSortedKeys(HashMap<String, ?> map) {
+		String[] keys=map.keySet().toArray(new String[0]);
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Creates the track file at <code>path</code> and writes its header for the blocks with the
+	 * lengths, number of entries and sizes in <code>entries</code>.
+	 */
+	private static DataOutputStream create(String path, int kind, float pseudoCounts, float probCMethylated, String[] chroms, long[][] entries) throws IOException {
+		//the header size does not depend on the offsets
+		long[] offsets=new long[chroms.length];
+		long offset=align(writeHeader(new DataOutputStream(new ByteArrayOutputStream()), kind, pseudoCounts, probCMethylated, chroms, entries, offsets));
+		for(int i=0;i<chroms.length;i++){
+			offsets[i]=offset;
+			offset+=align(entries[i][2]);
+		}
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1<<16));
+		pad(out, writeHeader(out, kind, pseudoCounts, probCMethylated, chroms, entries, offsets));
+		return out;
+	}
+
+	private static long writeHeader(DataOutputStream out, int kind, float pseudoCounts, float probCMethylated, String[] chroms, long[][] entries, long[] offsets) throws IOException {
+		int start=out.size();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(kind);
+		out.writeFloat(pseudoCounts);
+		out.writeFloat(probCMethylated);
+		out.writeInt(chroms.length);
+		for(int i=0;i<chroms.length;i++){
+			out.writeUTF(chroms[i]);
+			out.writeInt((int)entries[i][0]);
+			out.writeInt((int)entries[i][1]);
+			out.writeLong(offsets[i]);
+		}
+		return out.size()-start;
+	}
+
+	private static long align(long size) {
+		return (size+7)&~7L;
+	}
+
+	private static void pad(DataOutputStream out, long size) throws IOException {
+		for(long i=size;i<align(size);i++){
+			out.writeByte(0);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package tals.epigenetic;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse methylation levels of one chromosome: the positions of the cytosines with a level,
+ * sorted, and their levels. All other positions have a default level.
+ * <br>
+ * The positions and levels are held in buffers, which are either arrays or mapped from an
+ * {@link EpigeneticTrackFile}, so that only the pages around looked up positions are read.
+ */
+public class MethylationTrack {
+
+	private final IntBuffer positions;
+	private final FloatBuffer levels;
+	private final float defaultLevel;
+
+	MethylationTrack(IntBuffer positions, FloatBuffer levels, float defaultLevel) {
+		if(positions.limit()!=levels.limit()){
+			throw new IllegalArgumentException("Different number of positions and levels");
+		}
+		this.positions = positions;
+		this.levels = levels;
+		this.defaultLevel = defaultLevel;
+	}
+
+	/**
+	 * Creates a track without levels, i.e. with the default level at all positions.
+	 */
+	public MethylationTrack(float defaultLevel) {
+		this(IntBuffer.allocate(0), FloatBuffer.allocate(0), defaultLevel);
+	}
+
+	/**
+	 * Creates a track from dense levels, keeping only those different from the default level.
+	 */
+	public static MethylationTrack fromDense(float[] levels, float defaultLevel) {
+		Builder builder = new Builder(defaultLevel);
+		for(int i=0;i<levels.length;i++){
+			if(levels[i]!=defaultLevel){
+				builder.add(i, levels[i]);
+			}
+		}
+		return builder.build();
+	}
+
+	public float getDefaultLevel() {
+		return defaultLevel;
+	}
+
+	public int getNumberOfPositions() {
+		return positions.limit();
+	}
+
+	IntBuffer getPositions() {
+		return positions.duplicate();
+	}
+
+	FloatBuffer getLevels() {
+		return levels.duplicate();
+	}
+
+	/**
+	 * Returns the level at the 0-based position <code>pos</code>.
+	 */
+	public float get(int pos) {
+		int idx=search(0, positions.limit(), pos);
+		return idx<0 ? defaultLevel : levels.get(idx);
+	}
+
+	/**
+	 * Binary search for <code>pos</code> in the positions <code>lo</code> (inclusive) to
+	 * <code>hi</code> (exclusive), with the result of {@link Arrays#binarySearch(int[], int, int, int)}.
+	 */
+	private int search(int lo, int hi, int pos) {
+		hi--;
+		while(lo<=hi){
+			int mid=(lo+hi)>>>1;
+			int p=positions.get(mid);
+			if(p<pos){
+				lo=mid+1;
+			}else if(p>pos){
+				hi=mid-1;
+			}else{
+				return mid;
+			}
+		}
+		return -(lo+1);
+	}
+
+	/**
+	 * Returns a cursor for lookups at nearby positions.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Lookup that starts its search at the position found last and gallops from there in either
+	 * direction, so a run of lookups at close positions takes constant time each. Not thread-safe.
+	 */
+	public class Cursor {
+
+		private int last = 0;
+
+		private Cursor() {}
+
+		public float get(int pos) {
+			int n=positions.limit();
+			if(n==0){
+				return defaultLevel;
+			}
+			if(positions.get(last)==pos){
+				return levels.get(last);
+			}
+			int lo, hi;
+			if(positions.get(last)<pos){
+				lo=last+1;
+				int step=1;
+				hi=lo;
+				while(hi<n && positions.get(hi)<pos){
+					lo=hi+1;
+					step<<=1;
+					hi=last+step;
+				}
+				hi=Math.min(hi+1, n);
+			}else{
+				hi=last;
+				int step=1;
+				lo=hi-1;
+				while(lo>=0 && positions.get(lo)>pos){
+					hi=lo;
+					step<<=1;
+					lo=last-step;
+				}
+				lo=Math.max(lo, 0);
+			}
+			int idx=search(lo, hi, pos);
+			if(idx>=0){
+				last=idx;
+				return levels.get(idx);
+			}
+			last=Math.min(-idx-1, n-1);
+			return defaultLevel;
+		}
+
+	}
+
+	/**
+	 * Collects the levels of a chromosome in any order. A later level at the same position
+	 * replaces an earlier one.
+	 */
+	public static class Builder {
+
+		private final float defaultLevel;
+		private int[] positions = new int[16];
+		private float[] levels = new float[16];
+		private int n = 0;
+		private boolean sorted = true;
+
+		public Builder(float defaultLevel) {
+			this.defaultLevel = defaultLevel;
+		}
+
+		public void add(int pos, float level) {
+			if(n==positions.length){
+				positions=Arrays.copyOf(positions, 2*n);
+				levels=Arrays.copyOf(levels, 2*n);
+			}
+			if(n>0 && positions[n-1]>=pos){
+				sorted=false;
+			}
+			positions[n]=pos;
+			levels[n]=level;
+			n++;
+		}
+
+		public MethylationTrack build() {
+			if(!sorted){
+				//sort by position, stable so that the last level of a position is kept
+				long[] keys=new long[n];
+				for(int i=0;i<n;i++){
+					keys[i]=((long)positions[i]<<32) | i;
+				}
+				Arrays.sort(keys);
+				int[] pos2=new int[n];
+				float[] lev2=new float[n];
+				int m=0;
+				for(int i=0;i<n;i++){
+					int p=(int)(keys[i]>>>32);
+					float l=levels[(int)keys[i]];
+					if(m>0 && pos2[m-1]==p){
+						lev2[m-1]=l;
+					}else{
+						pos2[m]=p;
+						lev2[m]=l;
+						m++;
+					}
+				}
+				positions=pos2;
+				levels=lev2;
+				n=m;
+			}
+			return new MethylationTrack(IntBuffer.wrap(Arrays.copyOf(positions, n)), FloatBuffer.wrap(Arrays.copyOf(levels, n)), defaultLevel);
+		}
+
+	}
+
+}
@@ -5,30 +5,44 @@ public class Methylationprofil {
 	private int startPos;
 	private String chrom;
 	int seqLength;
-	private float[] MethylationProb;
+	private MethylationTrack track;
+	private MethylationTrack.Cursor cursor;
 	private boolean origStrand;
 	private float pseudoCounts;
 	private float probCMethylated;
 	
 	public Methylationprofil(int startPos, String chrom,int chromLength,float[] MethylationProb, boolean strand, float pseudoCounts, float probCMethylated){
+		this(startPos, chrom, chromLength, MethylationTrack.fromDense(MethylationProb, pseudoCounts*probCMethylated), strand, pseudoCounts, probCMethylated);
+	}
+	
+	public Methylationprofil(int startPos, String chrom,int chromLength,MethylationTrack track, boolean strand, float pseudoCounts, float probCMethylated){
 		this.startPos = startPos;
 		this.chrom=chrom;
 		this.seqLength=chromLength;
-		this.MethylationProb=MethylationProb;
+		this.track=track;
+		this.cursor=track.cursor();
 		this.origStrand=strand;
 		this.pseudoCounts=pseudoCounts;
 		this.probCMethylated=probCMethylated;
 	}
 	
+	/**
+	 * Returns a profile of the same track with its own start position, strand and cursor, e.g., for
+	 * scanning on another thread.
+	 */
+	public Methylationprofil copy() {
+		return new Methylationprofil(startPos, chrom, seqLength, track, origStrand, pseudoCounts, probCMethylated);
+	}
+
 	public double getMethylPropAtPos() {
-		return MethylationProb[this.startPos];
+		return cursor.get(this.startPos);
 	} 
 	
 	public double getMethylPropAtPos(int offset) {
 		if(this.origStrand==false){
-			return MethylationProb[this.startPos-offset-1];
+			return cursor.get(this.startPos-offset-1);
 		}else{
-			return MethylationProb[this.startPos+offset];
+			return cursor.get(this.startPos+offset);
 		}
 		
 	} 
@@ -55,6 +69,10 @@ public class Methylationprofil {
 	public double getPseudoProb(){
 		return this.pseudoCounts*this.probCMethylated;
 	}
+	public MethylationTrack getTrack(){
+		return this.track;
+	}
+	
 	public void setSeqLength(int seqLength){
 		this.seqLength=seqLength;
 	}
@@ -1,14 +1,15 @@
 package tals.epigenetic;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
+import java.util.LinkedHashMap;
 
+/**
+ * Methylation levels of all chromosomes of a genome, stored as sparse {@link MethylationTrack}s, so
+ * that only the cytosines listed in the Bismark file take memory. Instead of a Bismark file, an
+ * {@link EpigeneticTrackFile} of the levels may be given, whose tracks are mapped from disk.
+ */
 public class MethylationprofilHashMap {
 
 	private HashMap<String, Methylationprofil> methylationProfiles=new HashMap<>();
@@ -18,24 +19,34 @@ public class MethylationprofilHashMap {
 	}
 	
 	public MethylationprofilHashMap(HashMap<String, Integer> chromLengthHash,String pathToBismarkFile, float PseudoCounts, float probCMethylated) throws Exception {
-		
-	//	methylationProfiles =new
-		BufferedReader BR=null;
-		if(pathToBismarkFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(pathToBismarkFile)))));
+		HashMap<String, MethylationTrack> tracks;
+		if(EpigeneticTrackFile.isTrackFile(pathToBismarkFile)){
+			tracks=EpigeneticTrackFile.readMethylationTracks(pathToBismarkFile, chromLengthHash, PseudoCounts, probCMethylated);
 		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(pathToBismarkFile))));
+			tracks=readBismark(chromLengthHash, pathToBismarkFile, PseudoCounts, probCMethylated);
+		}
+		for(String chrom : tracks.keySet() ){
+			methylationProfiles.put(chrom, new Methylationprofil(0, chrom, chromLengthHash.get(chrom), tracks.get(chrom), true, PseudoCounts,probCMethylated));
 		}
+	}
 	
-		String line="";
-		HashMap <String,float[]>MethylationProbHash=new HashMap<>();
-		float[] MethylationProb;
-		for(String chrom :chromLengthHash.keySet() ){
-			MethylationProb=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(MethylationProb,PseudoCounts*probCMethylated);
-			MethylationProbHash.put(chrom, MethylationProb.clone());
+	/**
+	 * Reads the methylation levels of all chromosomes in <code>chromLengthHash</code> from a Bismark
+	 * coverage file.
+	 */
+	static HashMap<String, MethylationTrack> readBismark(HashMap<String, Integer> chromLengthHash,String pathToBismarkFile, float PseudoCounts, float probCMethylated) throws Exception {
+		
+	//	methylationProfiles =new
+		TsvReader BR=TsvReader.open(pathToBismarkFile, true);
+	
+		String chrom="";
+		HashMap <String,MethylationTrack.Builder>MethylationProbHash=new HashMap<>();
+		MethylationTrack.Builder MethylationProb=null;
+		for(String c :chromLengthHash.keySet() ){
+			MethylationProbHash.put(c, new MethylationTrack.Builder(PseudoCounts*probCMethylated));
 		}
-		while ((line = BR.readLine()) != null){
+		int chromLength=-1;
+		while (BR.next()){
 			
 			//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
 			//chromosome02    359     359     83.3333333333333        5       1
@@ -43,46 +54,55 @@ public class MethylationprofilHashMap {
 			
 			float count_methylated=0f;
 			float count_unmethylated=0f;
-				String[] splitLine2=line.split("\t");
-				String chrom=splitLine2[0];
-				
-				if(!splitLine2[1].equals(splitLine2[2])){
+				//the lines of a chromosome are consecutive, so its name is only created when it changes
+				if(!BR.fieldEquals(0, chrom)){
+					chrom=BR.getString(0);
+					MethylationProb=MethylationProbHash.get(chrom);
+					chromLength=MethylationProb==null ? -1 : chromLengthHash.get(chrom);
+				}
+				int start=BR.getInt(1);
+				if(start!=BR.getInt(2)){
 					BR.close();
 					throw new Exception("Different <start position> and <end position> in "+pathToBismarkFile);
 				}
 				
-				count_methylated=Float.parseFloat(splitLine2[4])+PseudoCounts*probCMethylated;
-				count_unmethylated=Float.parseFloat(splitLine2[5])+PseudoCounts*(1-probCMethylated);
-				MethylationProb=MethylationProbHash.get(chrom);
-				MethylationProb[Integer.parseInt(splitLine2[1])-1]=count_methylated/(count_methylated+count_unmethylated);
-				MethylationProbHash.put(chrom, MethylationProb);	
+				count_methylated=BR.getFloat(4)+PseudoCounts*probCMethylated;
+				count_unmethylated=BR.getFloat(5)+PseudoCounts*(1-probCMethylated);
+				int pos=start-1;
+				if(MethylationProb==null || pos<0 || pos>=chromLength){
+					BR.close();
+					throw new Exception("Position "+start+" on "+chrom+" not in the genome in "+pathToBismarkFile);
+				}
+				MethylationProb.add(pos, count_methylated/(count_methylated+count_unmethylated));
 				
 		}
 		BR.close();
-		for(String chrom : MethylationProbHash.keySet() ){
-			methylationProfiles.put(chrom, new Methylationprofil(0, chrom, chromLengthHash.get(chrom), MethylationProbHash.get(chrom), true, PseudoCounts,probCMethylated));
+		HashMap<String, MethylationTrack> tracks=new HashMap<>();
+		for(String c : MethylationProbHash.keySet() ){
+			tracks.put(c, MethylationProbHash.get(c).build());
 		}
+		return tracks;
 	}
 	
 	//constructor without methylation level
 	public MethylationprofilHashMap(HashMap<String, Integer> chromLengthHash, float PseudoCounts, float probCMethylated) throws Exception {
 		
-		//	methylationProfiles =new
-			HashMap <String,float[]>MethylationProbHash=new HashMap<>();
-			float[] MethylationProb;
-			for(String chrom :chromLengthHash.keySet() ){
-				MethylationProb=new float[chromLengthHash.get(chrom)];
-				Arrays.fill(MethylationProb,PseudoCounts*probCMethylated);
-				MethylationProbHash.put(chrom, MethylationProb.clone());
-			}
-			
-			for(String chrom : MethylationProbHash.keySet() ){
-				methylationProfiles.put(chrom, new Methylationprofil(0, chrom, chromLengthHash.get(chrom), MethylationProbHash.get(chrom), true, PseudoCounts,probCMethylated));
+			//all chromosomes share one empty track with the pseudo count level
+			MethylationTrack empty=new MethylationTrack(PseudoCounts*probCMethylated);
+			for(String chrom : chromLengthHash.keySet() ){
+				methylationProfiles.put(chrom, new Methylationprofil(0, chrom, chromLengthHash.get(chrom), empty, true, PseudoCounts,probCMethylated));
 			}
 		}
 	
 	public MethylationprofilHashMap(String faiPath,String pathToBismarkFile, float PseudoCounts, float probCMethylated) throws Exception {
-		HashMap<String, Integer> chromLengthHash=new HashMap<>();
+		this(readFai(faiPath),pathToBismarkFile,PseudoCounts,probCMethylated);
+	}
+	
+	/**
+	 * Reads the lengths of the chromosomes from a FastA index, in the order of the genome.
+	 */
+	static HashMap<String, Integer> readFai(String faiPath) throws Exception {
+		HashMap<String, Integer> chromLengthHash=new LinkedHashMap<>();
 		
 		BufferedReader readFai = new BufferedReader(new FileReader(faiPath));
 		String line="";
@@ -96,44 +116,7 @@ public class MethylationprofilHashMap {
 			
 		}
 		readFai.close();
-	//	methylationProfiles =new
-		
-		BufferedReader BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(pathToBismarkFile)))));
-		line="";
-		HashMap <String,float[]>MethylationProbHash=new HashMap<>();
-		float[] MethylationProb;
-		for(String chrom :chromLengthHash.keySet() ){
-			MethylationProb=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(MethylationProb,PseudoCounts*probCMethylated);
-			MethylationProbHash.put(chrom, MethylationProb.clone());
-		}
-		while ((line = BR.readLine()) != null){
-			
-			//<chromosome>	<start position>	<end position>	<methylation percentage>	<count methylated>	<count unmethylated>
-			//chromosome02    359     359     83.3333333333333        5       1
-			//CM/(CM+CU)
-			
-			float count_methylated=0f;
-			float count_unmethylated=0f;
-				String[] splitLine2=line.split("\t");
-				String chrom=splitLine2[0];
-				
-				if(!splitLine2[1].equals(splitLine2[2])){
-					BR.close();
-					throw new Exception("Different <start position> and <end position> in "+pathToBismarkFile);
-				}
-				
-				count_methylated=Float.parseFloat(splitLine2[4])+PseudoCounts*probCMethylated;
-				count_unmethylated=Float.parseFloat(splitLine2[5])+PseudoCounts*(1-probCMethylated);
-				MethylationProb=MethylationProbHash.get(chrom);
-				MethylationProb[Integer.parseInt(splitLine2[1])-1]=count_methylated/(count_methylated+count_unmethylated);
-				MethylationProbHash.put(chrom, MethylationProb);	
-				
-		}
-		BR.close();
-		for(String chrom : MethylationProbHash.keySet() ){
-			methylationProfiles.put(chrom, new Methylationprofil(0, chrom, chromLengthHash.get(chrom), MethylationProbHash.get(chrom), true, PseudoCounts,probCMethylated));
-		}
+		return chromLengthHash;
 	}
 	
 	public Methylationprofil getMethylationprofil(String chrom){
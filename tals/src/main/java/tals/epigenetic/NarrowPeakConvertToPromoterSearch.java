@@ -1,18 +1,13 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -52,107 +47,43 @@ public class NarrowPeakConvertToPromoterSearch implements JstacsTool{
 		progress.setCurrent(0.0);
 		
 		String narrowPeakFile = parameters.getParameterAt(0).getValue().toString();
-		BufferedReader BR=null;
-		if(narrowPeakFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(narrowPeakFile)))));
-		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(narrowPeakFile))));
-		}
 		
 		String promotorFasta = parameters.getParameterAt(1).getValue().toString();
-		BufferedReader FA=new BufferedReader(new FileReader(promotorFasta));
+		PromoterJoin promoters=PromoterJoin.read(promotorFasta, true);
 		
 		File outF = File.createTempFile("promoter.peaks.narrowPeak", ".temp.gz", new File("."));
 		outF.deleteOnExit();
 		
 		GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(outF));
-		PrintStream os_ps=new PrintStream(os);
+		PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
 		
-		HashMap<String, HashMap<Integer,NarrowPeak>> NarrowPeakHash=new HashMap<>();
-
-		String line="";
-		String[] splitLine;
-		HashMap <Integer,NarrowPeak> temp=null;
-		while ((line = BR.readLine()) != null){
+		TsvReader BR=TsvReader.open(narrowPeakFile, threads>1);
+		String chrom="";
+		while (BR.next()){
 			//Chr3	31811403	31817656	Chr3.31811403	10000	.	542552.780333149	302.47173548983	299.811916769022	2401
 			//Chr9	14505446	14507122	Chr9.14505446	7984.24190504116	.	433187.264443252	302.47173548983	299.811916769022	248
 
-			splitLine=line.split("\t");
-			
-			String chrom=splitLine[0];
-			Integer startPos=Integer.parseInt(splitLine[1]);
-			if(NarrowPeakHash.containsKey(chrom)){
-				temp=NarrowPeakHash.get(chrom);
-			}else {
-				temp=new HashMap<Integer,NarrowPeak>();
+			if(!BR.fieldEquals(0, chrom)){
+				chrom=BR.getString(0);
+			}
+			int startPosPeak=BR.getInt(1);
+			int endPosPeak=BR.getInt(2);
+			float score=BR.getFloat(4);
+			float peakValue=BR.getFloat(6);
+			int n=promoters.find(chrom, startPosPeak, endPosPeak);
+			for(int k=0;k<n;k++){
+				int region=promoters.getFound(k);
+				int startPos=promoters.getStart(region);
+				int endPos=promoters.getEnd(region);
+				//the part of the peak within the promoter, relative to its start
+				String out=promoters.getGene(region)+"\t"+(Math.max(startPosPeak, startPos)-startPos)+"\t"+(Math.min(endPosPeak, endPos)-startPos)+"\t"+"."+"\t"+score+"\t"+"."+"\t"+peakValue;
+				promoters.add(region, startPosPeak-startPos, out);
 			}
-			temp.put(startPos, new NarrowPeak(splitLine[0], startPos, Integer.parseInt(splitLine[2]), Float.parseFloat(splitLine[4]), Float.parseFloat(splitLine[6])));
-			
-			NarrowPeakHash.put(chrom, temp);	
-					
 		}
 		BR.close();
 		
-		line="";
-		
-		String gene="";
-		String chrom="";
-		int startPos=-1;
-		int endPos=-1;
-		String[] splitHeader;
-		String[] splitArea;
-		String[] splitPos;
-
-		NarrowPeak aktNarrowPeak=null;
-		String out="";
-		while ((line = FA.readLine()) != null){
-			if(line.startsWith(">")){
-				splitHeader=line.split(" ");
-				splitArea=splitHeader[2].split(":");
-				
-				splitPos=splitArea[1].split("-");
-				gene=line.substring(1).trim();
-				int idx = gene.indexOf(" ");
-				if (idx > 0) {
-					gene = gene.substring(0, idx);
-				}
-				
-				chrom=splitArea[0];
-				
-				startPos=Integer.parseInt(splitPos[0]);
-				
-				endPos=Integer.parseInt(splitPos[1]);
-
-				if(NarrowPeakHash.containsKey(chrom)){
-					temp=NarrowPeakHash.get(chrom);
-					for(int startPosPeak : temp.keySet()){
-						aktNarrowPeak =temp.get(startPosPeak);
-
-							int endPosPeak=aktNarrowPeak.getPeakEndPos();
-							
-							if((startPosPeak<=endPos)&(endPosPeak>=startPos)){
-								if((startPosPeak>=startPos)&(endPosPeak<=endPos)){
-									out=gene+"\t"+(startPosPeak-startPos)+"\t"+(endPosPeak-startPos)+"\t"+"."+"\t"+aktNarrowPeak.getPeakScore()+"\t"+"."+"\t"+aktNarrowPeak.getPeakValue();
-									os_ps.print(out+"\n");
-								}else if((startPosPeak<=startPos)&(endPosPeak<=endPos)){
-									out=gene+"\t"+0+"\t"+(endPosPeak-startPos)+"\t"+"."+"\t"+aktNarrowPeak.getPeakScore()+"\t"+"."+"\t"+aktNarrowPeak.getPeakValue();
-									os_ps.print(out+"\n");
-								}else if((startPosPeak>=startPos)&(endPosPeak>=endPos)){
-									out=gene+"\t"+(startPosPeak-startPos)+"\t"+(endPos-startPos)+"\t"+"."+"\t"+aktNarrowPeak.getPeakScore()+"\t"+"."+"\t"+aktNarrowPeak.getPeakValue();
-									os_ps.print(out+"\n");
-								}else if((startPosPeak<=startPos)&(endPosPeak>=endPos)){
-									out=gene+"\t"+0+"\t"+(endPos-startPos)+"\t"+"."+"\t"+aktNarrowPeak.getPeakScore()+"\t"+"."+"\t"+aktNarrowPeak.getPeakValue();
-									os_ps.print(out+"\n");
-								}
-							}
-					}
-					
-				}
-			
-			}
-		}
-		FA.close();
-		os.close();
+		promoters.write(os_ps);
+		os_ps.close();
 		
 		TextResult tr = new TextResult("Narrow peak promoter file", "Narrow peak promoter file", new FileParameter.FileRepresentation(outF.getAbsolutePath()), "narrowPeak.gz", getToolName(), null, true);
 		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
@@ -2,16 +2,21 @@ package tals.epigenetic;
 
 public class Narrowpeakprofil {
 
-	private boolean[][] peakBool=new boolean[2][];// peakBool[0] = "+" strand and peakBool[1] = "-" strand
-	public Narrowpeakprofil(String chrom,int chromLength,boolean[][] peakBool,int before,int after){
-		this.peakBool=peakBool;
+	private PositionMask peaks;// positions with peak value > 0
+	private int before;
+	private int after;
+	
+	public Narrowpeakprofil(String chrom,int chromLength,PositionMask peaks,int before,int after){
+		this.peaks=peaks;
+		this.before=before;
+		this.after=after;
 	}
 	
 	public boolean isPeakSurroundPos(int Pos,boolean strand) {
 		if(strand){//+  true
-			return peakBool[0][Pos];
+			return peaks.count(Pos, before, after)>0;
 		}else{//-  false
-			return peakBool[1][Pos];
+			return peaks.count(Pos, after, before)>0;
 		}
 	} 
-}
\ No newline at end of file
+}
@@ -1,14 +1,15 @@
 package tals.epigenetic;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 
+/**
+ * Peaks of all chromosomes of a genome, stored as {@link PositionMask}s of the positions with a
+ * peak value greater than zero, i.e. one bit per position, so that peaks surrounding a position are
+ * found by counting in the window around it. Instead of a narrowPeak file, an
+ * {@link EpigeneticTrackFile} of the peaks may be given, whose masks are mapped from disk.
+ */
 public class NarrowpeakprofilHashMap {
 
 	private HashMap<String, Narrowpeakprofil> narrowpeakProfiles=new HashMap<>();
@@ -18,77 +19,80 @@ public class NarrowpeakprofilHashMap {
 	}
 	
 	public NarrowpeakprofilHashMap(HashMap<String, Integer> chromLengthHash,String PathtoFile, int before,int after) throws Exception {
-		BufferedReader BR;
-		
-		if(PathtoFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(PathtoFile)))));
+		this(chromLengthHash,PathtoFile,before,after,true);
+	}
+	
+	public NarrowpeakprofilHashMap(String faiPath,String PathtoFile, int before,int after,String type) throws Exception {
+		this(readFai(faiPath),PathtoFile,before,after,isGenome(type));
+	}
+	
+	private NarrowpeakprofilHashMap(HashMap<String, Integer> chromLengthHash,String PathtoFile, int before,int after,boolean typeIsGenome) throws Exception {
+		HashMap<String, PositionMask> peakHash;
+		if(EpigeneticTrackFile.isTrackFile(PathtoFile)){
+			peakHash=EpigeneticTrackFile.readMasks(PathtoFile, chromLengthHash);
 		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(PathtoFile))));
+			peakHash=readPeaks(chromLengthHash, PathtoFile, typeIsGenome);
 		}
-		
-		String line="";
-		HashMap <String,float[]>peakValueHash=new HashMap<>();
-		float[] peakValue;
-		HashMap <String,boolean[][]>peakBoolHash=new HashMap<>();
-		boolean[][] peakBool;
 		for(String chrom :chromLengthHash.keySet() ){
-			peakBool=new boolean[2][chromLengthHash.get(chrom)];
-			peakValue=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(peakBool[0],false);
-			Arrays.fill(peakBool[1],false);
-			Arrays.fill(peakValue,0.0f);
-			peakBoolHash.put(chrom, peakBool.clone());
-			peakValueHash.put(chrom, peakValue.clone());
+			narrowpeakProfiles.put(chrom, new Narrowpeakprofil(chrom, chromLengthHash.get(chrom), peakHash.get(chrom), before,after));
 		}
+	}
+	
+	/**
+	 * Reads the peaks of all chromosomes in <code>chromLengthHash</code> from a narrowPeak file, or
+	 * from a file of single positions and peak values if <code>typeIsGenome</code> is
+	 * <code>false</code>.
+	 */
+	static HashMap<String, PositionMask> readPeaks(HashMap<String, Integer> chromLengthHash,String PathtoFile,boolean typeIsGenome) throws Exception {
+		TsvReader BR=TsvReader.open(PathtoFile, true);
 		
-		while ((line = BR.readLine()) != null){
-			String[] splitLine2=line.split("\t");
-			String chrom=splitLine2[0];
-		
-			peakValue=peakValueHash.get(chrom);
-			
-			int startPeakPos=Integer.parseInt(splitLine2[1]);
-			int endPeakPos=Integer.parseInt(splitLine2[2])-1;
-			float aktPeak=Float.parseFloat(splitLine2[6]);
-			for(int p=startPeakPos;p<=endPeakPos;p++){
-				peakValue[p]=aktPeak;
-			}	
-			
-			peakValueHash.put(chrom,peakValue);
+		String chrom="";
+		HashMap <String,PositionMask>peakHash=new HashMap<>();
+		PositionMask peaks=null;
+		for(String c :chromLengthHash.keySet() ){
+			peakHash.put(c, new PositionMask(chromLengthHash.get(c)));
 		}
-		BR.close();
-		for(String chrom :chromLengthHash.keySet() ){
-			peakBool=peakBoolHash.get(chrom);
-			peakValue=peakValueHash.get(chrom);
-			int chromLength=chromLengthHash.get(chrom);
-			int lastPos=chromLengthHash.get(chrom)-1;
-			for(int i=0;i<chromLength;i++){
-				int windowStart=((i-before<0)?0:(i-before));
-				int windowend=((i+after>lastPos)?lastPos:(i+after));
-				for(int s=windowStart;s<=windowend;s++){
-					if(peakValue[s]>0.0f){
-						peakBool[0][i]=true;
-						break;
-					}
-				}	
+		
+		while (BR.next()){
+			if(!BR.fieldEquals(0, chrom)){
+				chrom=BR.getString(0);
+				peaks=peakHash.get(chrom);
 			}
-			
-			for(int i=0;i<chromLength;i++){
-				int windowStart=((i-after<0)?0:(i-after));
-				int windowend=((i+before>lastPos)?lastPos:(i+before));
-				for(int s=windowStart;s<=windowend;s++){
-					if(peakValue[s]>0.0f){
-						peakBool[1][i]=true;
-						break;
-					}
-				}	
+			int startPeakPos, endPeakPos;
+			float aktPeak;
+			if(typeIsGenome){
+				startPeakPos=BR.getInt(1);
+				endPeakPos=BR.getInt(2)-1;
+				aktPeak=BR.getFloat(6);
+			}else{
+				startPeakPos=BR.getInt(1)-1;
+				endPeakPos=startPeakPos;
+				aktPeak=BR.getFloat(2);
+			}
+			if(peaks==null || startPeakPos<0 || endPeakPos>=peaks.getLength()){
+				BR.close();
+				throw new Exception("Peak "+BR.getString(1)+" on "+chrom+" not in the genome in "+PathtoFile);
 			}
-			peakBoolHash.put(chrom, peakBool);
-			narrowpeakProfiles.put(chrom, new Narrowpeakprofil(chrom, chromLengthHash.get(chrom), peakBoolHash.get(chrom), before,after));
+			//a later peak replaces the value of an earlier one
+			peaks.set(startPeakPos, endPeakPos+1, aktPeak>0.0f);
+		}
+		BR.close();
+		for(String c :chromLengthHash.keySet() ){
+			peakHash.get(c).build();
 		}
+		return peakHash;
 	}
 	
-	public NarrowpeakprofilHashMap(String faiPath,String PathtoFile, int before,int after,String type) throws Exception {
+	static boolean isGenome(String type) {
+		if(type.equals("genome")){
+			return true;
+		}else if (!type.equals("promotor")) {
+			System.err.println("Type should be 'genome' or 'promotor'!");
+		}
+		return false;
+	}
+	
+	private static HashMap<String, Integer> readFai(String faiPath) throws Exception {
 		HashMap<String, Integer> chromLengthHash=new HashMap<>();
 		
 		BufferedReader readFai = new BufferedReader(new FileReader(faiPath));
@@ -103,76 +107,7 @@ public class NarrowpeakprofilHashMap {
 			
 		}
 		readFai.close();
-		
-		BufferedReader BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(PathtoFile))));
-		line="";
-		HashMap <String,float[]>peakValueHash=new HashMap<>();
-		float[] peakValue;
-		HashMap <String,boolean[][]>peakBoolHash=new HashMap<>();
-		boolean[][] peakBool;
-		for(String chrom :chromLengthHash.keySet() ){
-			peakBool=new boolean[2][chromLengthHash.get(chrom)];
-			peakValue=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(peakBool[0],false);
-			Arrays.fill(peakBool[1],false);
-			Arrays.fill(peakValue,0.0f);
-			peakBoolHash.put(chrom, peakBool.clone());
-			peakValueHash.put(chrom, peakValue.clone());
-		}
-		
-		boolean typeIsGenome=false;
-		if(type.equals("genome")){
-			typeIsGenome=true;
-		}else if (!type.equals("promotor")) {
-			System.err.println("Type should be 'genome' or 'promotor'!");
-		}
-		
-		while ((line = BR.readLine()) != null){
-			String[] splitLine2=line.split("\t");
-			String chrom=splitLine2[0];
-			peakValue=peakValueHash.get(chrom);
-			if(typeIsGenome){
-				int startPeakPos=Integer.parseInt(splitLine2[1]);
-				int endPeakPos=Integer.parseInt(splitLine2[2])-1;
-				float aktPeak=Float.parseFloat(splitLine2[6]);
-				for(int p=startPeakPos;p<=endPeakPos;p++){
-					peakValue[p]=aktPeak;
-				}
-			}else{
-				peakValue[Integer.parseInt(splitLine2[1])-1]=Float.parseFloat(splitLine2[2]);
-			}
-			peakValueHash.put(chrom,peakValue);
-		}
-		BR.close();
-		for(String chrom :chromLengthHash.keySet() ){
-			peakBool=peakBoolHash.get(chrom);
-			peakValue=peakValueHash.get(chrom);
-			chromLength=chromLengthHash.get(chrom);
-			int lastPos=chromLengthHash.get(chrom)-1;
-			for(int i=0;i<chromLength;i++){
-				int windowStart=((i-before<0)?0:(i-before));
-				int windowend=((i+after>lastPos)?lastPos:(i+after));
-				for(int s=windowStart;s<=windowend;s++){
-					if(peakValue[s]>0.0f){
-						peakBool[0][i]=true;
-						break;
-					}
-				}	
-			}
-			
-			for(int i=0;i<chromLength;i++){
-				int windowStart=((i-after<0)?0:(i-after));
-				int windowend=((i+before>lastPos)?lastPos:(i+before));
-				for(int s=windowStart;s<=windowend;s++){
-					if(peakValue[s]>0.0f){
-						peakBool[1][i]=true;
-						break;
-					}
-				}	
-			}
-			peakBoolHash.put(chrom, peakBool);
-			narrowpeakProfiles.put(chrom, new Narrowpeakprofil(chrom, chromLengthHash.get(chrom), peakBoolHash.get(chrom), before,after));
-		}
+		return chromLengthHash;
 	}
 	
 	public Narrowpeakprofil getNarrowpeakprofil(String chrom){
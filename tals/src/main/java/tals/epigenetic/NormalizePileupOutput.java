@@ -1,19 +1,14 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -51,103 +46,75 @@ public class NormalizePileupOutput implements JstacsTool{
 		progress.setLast(1.0);
 		progress.setCurrent(0.0);
 		String pileupFile = parameters.getParameterAt(0).getValue().toString();
-		BufferedReader BR=null;
-		if(pileupFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(pileupFile)))));
-		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(pileupFile))));
-		}
+		TsvReader BR=TsvReader.open(pileupFile, threads>1);
 		
 		File out = File.createTempFile("pileup.normalized", ".temp.tsv.gz", new File("."));
 		out.deleteOnExit();
 		
 		GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(out));
-		PrintStream os_ps=new PrintStream(os);
+		PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
 		
 		//HashMap<String, HashMap<Integer,String>> tempPileup=new HashMap<>();
 		
-		String line="";
-		String[] splitLine;
 	//	HashMap <Integer,String> temp=null;
-		HashMap <Integer,Integer> tempCov=null;
+		WindowSums.Builder tempCov=null;
 		String chrom_before="";
-		String chrom="";
 		int pos=0;
 		
 		boolean first=true;
-		while ((line = BR.readLine()) != null){
-			if(line.matches("Chr([\\d]+)\\t([\\d]+)\\t([\\d]+)")){
+		while (BR.next()){
+			//lines like Chr([\d]+)\t([\d]+)\t([\d]+)
+			if(BR.getNumberOfFields()==3 && BR.startsWith(0, "Chr") && BR.isDigits(0, 3) && BR.isDigits(1, 0) && BR.isDigits(2, 0)){
 //				Chr1    1015    1
 //				Chr1    1016    3
-				splitLine=line.split("\t");
-				chrom=splitLine[0];
-				pos=Integer.parseInt(splitLine[1]);
-				if(chrom.equals(chrom_before)){
-					tempCov.put(pos, Integer.parseInt(splitLine[2]));
+				pos=BR.getInt(1);
+				if(BR.fieldEquals(0, chrom_before)){
+					tempCov.add(pos, BR.getInt(2));
 				}else{//neues chromosom beginnt
 					if(first){
 						first=false;
 					}else{
 						//System.out.println(line);
-						normalizeChrom(chrom_before,os_ps,tempCov);
+						normalizeChrom(chrom_before,os_ps,tempCov.build());
 					}
 					
-					tempCov=new HashMap<>();
-					tempCov.put(pos, Integer.parseInt(splitLine[2]));
+					tempCov=new WindowSums.Builder();
+					tempCov.add(pos, BR.getInt(2));
+					chrom_before=BR.getString(0);
 				}
-				chrom_before=chrom;
 			}
 		}
-		normalizeChrom(chrom_before,os_ps,tempCov);
+		if(!first){
+			normalizeChrom(chrom_before,os_ps,tempCov.build());
+		}
 		BR.close();
 
 
 	
-		os.close();
+		os_ps.close();
 		
 		TextResult tr = new TextResult("Normalized pileup file", "Normalized pileup file", new FileParameter.FileRepresentation(out.getAbsolutePath()), "tsv.gz", getToolName(), null, true);
 		return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
 
 	}
 	
-	private void normalizeChrom(String chrom,PrintStream os_ps,HashMap <Integer,Integer> tempCov){
+	private void normalizeChrom(String chrom,PrintStream os_ps,WindowSums tempCov){
 		double window=10000.0;
 		int half=(int)(window/2);
-		Integer[] tempPileupCovKeySetArray= new Integer[tempCov.keySet().size()];
-		tempCov.keySet().toArray(tempPileupCovKeySetArray);
-		Arrays.sort(tempPileupCovKeySetArray);
-		Integer lastPos=tempPileupCovKeySetArray[tempPileupCovKeySetArray.length-1];
-		Double[] originalCov=new Double[lastPos];
-		Double[] normalizeCov=new Double[lastPos];
-		Arrays.fill(originalCov, 0.0);
-		Arrays.fill(normalizeCov, 0.0);
+		//positions from 0 to before the last position
+		int lastPos=tempCov.getLastPosition();
+		WindowSums.Cursor cursor=tempCov.cursor();
 		
-		for(int i=0;i<originalCov.length;i++){
-			if(tempCov.containsKey(i)){
-				originalCov[i]=tempCov.get(i).doubleValue();
+		for(int k=0;k<tempCov.size();k++){
+			int i=tempCov.getPosition(k);
+			if(i<0 || i>=lastPos){
+				continue;
 			}
-		}
-		double tempSum=0;
-		boolean isFirst=true;
-		for(int i=0;i<originalCov.length;i++){
 			int windowStart=((i-half<0)?0:(i-half));
 			int windowend=((i+half>lastPos)?lastPos:(i+half));
-			if(isFirst){
-				for(int j=windowStart;j<windowend;j++){
-					tempSum+=originalCov[j];
-				}
-				isFirst=false;
-			}else{
-				tempSum-=originalCov[windowStart];
-				tempSum+=originalCov[windowend-1];
-			}
-
-			normalizeCov[i]=originalCov[i]-(tempSum/(windowend-windowStart+1));
-
-			if(tempCov.containsKey(i)){
-				if(normalizeCov[i]>0.0){
-					os_ps.print(chrom+"\t"+i+"\t"+normalizeCov[i]+"\n");
-				}
+			double normalizeCov=tempCov.getValue(k)-(cursor.sum(windowStart, windowend)/(windowend-windowStart+1));
+			if(normalizeCov>0.0){
+				os_ps.print(chrom+"\t"+i+"\t"+normalizeCov+"\n");
 			}
 		}
 	}
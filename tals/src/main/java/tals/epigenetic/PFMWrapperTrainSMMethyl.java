@@ -126,12 +126,14 @@ public class PFMWrapperTrainSMMethyl extends AbstractTrainableStatisticalModel i
 			Methylationprofil MP=methylAnno.getMethylationprofile();
 			
 			boolean strand=MP.getStrand();
+			int c=(int)sequence.getAlphabetContainer().getCode(0, "C");
 			int k=1;
 			for(int i=startpos+1;i<=endpos;i++){
-				
-				if((MP.getMethylPropAtPos(k)>0)&(sequence.discreteVal( i )==sequence.getAlphabetContainer().getCode(0, "C"))){
-					prob+=(1-MP.getMethylPropAtPos(k))*logPWM[i-startpos][sequence.discreteVal( i )];
-					prob+=MP.getMethylPropAtPos(k)*logPWM[i-startpos][4];
+				//the level is only looked up at cytosines, once
+				double methyl=sequence.discreteVal( i )==c ? MP.getMethylPropAtPos(k) : 0;
+				if(methyl>0){
+					prob+=(1-methyl)*logPWM[i-startpos][sequence.discreteVal( i )];
+					prob+=methyl*logPWM[i-startpos][4];
 				
 				}else {
 					prob+=logPWM[i-startpos][sequence.discreteVal( i )];
@@ -148,30 +150,45 @@ public class PFMWrapperTrainSMMethyl extends AbstractTrainableStatisticalModel i
 		return prob;
 	}
 	
+	/**
+	 * Returns the score of the window starting at <code>start</code> of a strand given by its codes,
+	 * which equals {@link #getLogScoreFor(Sequence, int)} of the strand annotated with its
+	 * {@link Methylationprofil}. <code>methyl[i]</code> is the methylation level of position
+	 * <code>i</code> if it is a cytosine and zero otherwise, so the plain and the methylated column
+	 * are blended without branches.
+	 */
+	public double getLogScoreFor( byte[] codes, float[] methyl, int start ) {
+		double prob = logPWM[0][codes[start]];
+		for(int i=1;i<logPWM.length;i++){
+			double m = methyl[start+i];
+			double[] col = logPWM[i];
+			prob += (1-m)*col[codes[start+i]];
+			prob += m*col[4];
+		}
+		return prob;
+	}
+	
 	public String getMethylProb( Sequence sequence, int startpos, int endpos ) throws Exception {
 		
 		MethylationSequenceAnnotation methylAnno = (MethylationSequenceAnnotation)sequence.getSequenceAnnotationByType("methylationprofil", 0);
-		String methProb="";
+		StringBuilder methProb=new StringBuilder();
 		if(methylAnno!=null){
 			Methylationprofil MP=methylAnno.getMethylationprofile();
-			boolean strand=MP.getStrand();
+			int c=(int)sequence.getAlphabetContainer().getCode(0, "C");
 		
 			int k=1;
 			for(int i=startpos+1;i<=endpos;i++){
-				methProb+=",";
-				if(sequence.discreteVal( i )==sequence.getAlphabetContainer().getCode(0, "C")){
-					methProb+= k+":"+MP.getMethylPropAtPos(k);
-				}else {
-					methProb+=k+":"+ (0.0);
+				if(k>1){
+					methProb.append(',');
 				}
+				methProb.append(k).append(':').append(sequence.discreteVal( i )==c ? MP.getMethylPropAtPos(k) : 0.0);
 				
 				k++;
 				
 			}
 			
 		}
-		methProb=methProb.replaceFirst(",", "");
-		return methProb;
+		return methProb.toString();
 	}
 
 	@Override
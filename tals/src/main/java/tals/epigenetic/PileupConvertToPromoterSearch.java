@@ -1,18 +1,13 @@
 package tals.epigenetic;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import de.jstacs.io.FileManager;
@@ -52,106 +47,58 @@ public class PileupConvertToPromoterSearch implements JstacsTool{
 				progress.setLast(1.0);
 				progress.setCurrent(0.0);
 				String pileupFile = parameters.getParameterAt(0).getValue().toString();
-				BufferedReader BR=null;
-				if(pileupFile.endsWith("gz")){
-					BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(pileupFile)))));
-				}else{
-					BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(pileupFile))));
-				}
 				String promotorFasta = parameters.getParameterAt(1).getValue().toString();
-				BufferedReader FA=new BufferedReader(new FileReader(promotorFasta));
+				PromoterJoin promoters=PromoterJoin.read(promotorFasta, false);
 				
 				File out = File.createTempFile("promoter.pileup", ".temp.tsv.gz", new File("."));
 				out.deleteOnExit();
 				
 				GZIPOutputStream os = new GZIPOutputStream(new FileOutputStream(out));
-				PrintStream os_ps=new PrintStream(os);
-				
-				HashMap<String, HashMap<Integer,String>> tempPileup=new HashMap<>();
+				PrintStream os_ps=new PrintStream(new BufferedOutputStream(os, 1<<16));
 				
-				String line="";
-				String[] splitLine;
-				while ((line = BR.readLine()) != null){
-					if(line.matches(".*\t(\\d*)\t.*")){
+				TsvReader BR=TsvReader.open(pileupFile, threads>1);
+				String chrom="";
+				int startBAM=-1;
+				while (BR.next()){
+					if(hasNumberField(BR)){
 //					Chr1    1015    1
 //					Chr1    1016    3
-						splitLine=line.split("\t");
-						if(Double.parseDouble(splitLine[2])>0.0){
-							HashMap <Integer,String> temp=null;
-							String chrom=splitLine[0];
-							int pos=Integer.parseInt(splitLine[1]);
-							if(tempPileup.containsKey(chrom)){
-								temp=tempPileup.get(chrom);
-							}else {
-								
-								temp=new HashMap<>();
+						if(BR.getDouble(2)>0.0){
+							if(!BR.fieldEquals(0, chrom)){
+								chrom=BR.getString(0);
+							}
+							int pos=BR.getInt(1);
+							int n=promoters.find(chrom, pos, pos);
+							for(int k=0;k<n;k++){
+								int region=promoters.getFound(k);
+								startBAM=pos-promoters.getStart(region);
+								promoters.add(region, startBAM, promoters.getGene(region)+"\t"+startBAM+"\t"+BR.getString(2));
 							}
-							temp.put(pos, line);
-							
-							tempPileup.put(chrom, temp);
 						}
 						
 					}		
 				}
 				BR.close();
 				
-				line="";
-				
-				String gene="";
-				String chrom="";
-				int startPos=-1;
-				int endPos=-1;
-				String[] splitHeader;
-				String[] splitArea;
-				String[] splitPos;
-				String[] splitBAM;
-
-				int startBAM=-1;
-//				boolean strand;
-				while ((line = FA.readLine()) != null){
-					if(line.startsWith(">")){
-						splitHeader=line.split(" ");
-						splitArea=splitHeader[2].split(":");
-//						if(splitArea[2].equals("+")){
-//							strand=true;
-//						}else{
-//							strand=false;
-//						}
-						splitPos=splitArea[1].split("-");
-						gene=line.substring(1).trim();
-						int idx = gene.indexOf(" ");
-						if (idx > 0) {
-							gene = gene.substring(0, idx);
-						}
-						
-						chrom=splitArea[0];
-
-						startPos=Integer.parseInt(splitPos[0]);
-						
-						endPos=Integer.parseInt(splitPos[1]);
-						
-						for(int i=startPos;i<endPos;i++){
-								if(tempPileup.containsKey(chrom)){
-									if(tempPileup.get(chrom).containsKey(i+1)){
-										String lineBAM =tempPileup.get(chrom).get(i+1);
-										splitBAM=lineBAM.split("\t");
-										startBAM=Integer.parseInt(splitBAM[1])-startPos;
-										//SRR2981221.167744       83      Chr1    11115   44      38M     =       10942   -211    CGTTTATGTGGCATTAGAATTAAAAATATATGTGGAGC  IIIIGIIIIIGIIIIIIIIGIIIIIIIIIIIIIIIIII  AS:i:76 XS:i:64 XN:i:0  XM:i:0  XO:i:0  XG:i:0  NM:i:0  MD:Z:38 YS:i:76 YT:Z:CP
-										String output=gene+"\t"+startBAM+"\t"+splitBAM[2];
-										os_ps.print(output+"\n");
-										
-									}
-									
-								}
-						}
-					}
-				}
-				FA.close();
-				os.close();	
+				promoters.write(os_ps);
+				os_ps.close();
 								
 				TextResult tr = new TextResult("Pileup promoter file", "Pileup promoter file", new FileParameter.FileRepresentation(out.getAbsolutePath()), "tsv.gz", getToolName(), null, true);
 				return new ToolResult("Result of "+getToolName(), getToolName(), null, new ResultSet(tr), parameters, getToolName(), new Date(System.currentTimeMillis()) );
 	}
+	
+	/**
+	 * Checks if the current line matches <code>.*\t(\d*)\t.*</code>, i.e., if a field other than the
+	 * first and the last one is empty or a number.
+	 */
+	private static boolean hasNumberField(TsvReader BR) {
+		for(int i=1;i<BR.getNumberOfFields()-1;i++){
+			if(BR.getLength(i)==0 || BR.isDigits(i, 0)){
+				return true;
+			}
+		}
+		return false;
+	}
 
 	@Override
 	public String getToolName() {
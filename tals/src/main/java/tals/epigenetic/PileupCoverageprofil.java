@@ -4,15 +4,15 @@ public class PileupCoverageprofil {
 
 	private String chrom;
 	private int chromLength;
-	private int[][] numberOfCoveragePositions=new int[2][];// peakBool[0] entspricht "+" Strang und peakBool[1] entspricht "-" Strang
+	private PositionMask covered;// positions with coverage > 0
 	private int before;
 	private int after;
 	private boolean calculateAlwaysOnCompleteSeq;
 	
-	public PileupCoverageprofil(String chrom,int chromLength,int[][] numberOfCoveragePositions,int before,int after, boolean calculateAlwaysOnCompleteSeq){
+	public PileupCoverageprofil(String chrom,int chromLength,PositionMask covered,int before,int after, boolean calculateAlwaysOnCompleteSeq){
 		this.chrom=chrom;
 		this.chromLength=chromLength;
-		this.numberOfCoveragePositions=numberOfCoveragePositions;
+		this.covered=covered;
 		this.before=before;
 		this.after=after;
 		this.calculateAlwaysOnCompleteSeq=calculateAlwaysOnCompleteSeq;
@@ -20,10 +20,15 @@ public class PileupCoverageprofil {
 	}
 	
 	public int getnumberOfCoveragePositionsSurroundPos(int Pos,boolean strand) {
+		//calculate number of coverage positions on complete promotor
+		if(calculateAlwaysOnCompleteSeq){
+			return covered.count();
+		}
+		//calculate number of coverage positions in defined area surround binding side
 		if(strand){//+  true
-			return numberOfCoveragePositions[0][Pos];
+			return covered.count(Pos, before, after);
 		}else{//-  false
-			return numberOfCoveragePositions[1][Pos];
+			return covered.count(Pos, after, before);
 		}
 	} 
 
@@ -1,14 +1,16 @@
 package tals.epigenetic;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
 
+/**
+ * Pileup coverage of all chromosomes of a genome, stored as {@link PositionMask}s of the covered
+ * positions, i.e. one bit per position, so that the covered positions surrounding a position are
+ * counted with the rank index of the mask. Instead of a pileup output, an
+ * {@link EpigeneticTrackFile} of the covered positions may be given, whose masks are mapped from
+ * disk.
+ */
 public class PileupCoverageprofilHashMap {
 
 	private HashMap<String, PileupCoverageprofil> pileupCoverageProfiles=new HashMap<>();
@@ -18,104 +20,56 @@ public class PileupCoverageprofilHashMap {
 	}
 	
 	public PileupCoverageprofilHashMap(HashMap<String, Integer> chromLengthHash,String PathtoFile, int before,int after,boolean calculateAlwaysOnCompleteSeq) throws Exception {
-		BufferedReader BR;
-		
-		if(PathtoFile.endsWith("gz")){
-			BR=new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(PathtoFile)))));
+		HashMap<String, PositionMask> coveredHash;
+		if(EpigeneticTrackFile.isTrackFile(PathtoFile)){
+			coveredHash=EpigeneticTrackFile.readMasks(PathtoFile, chromLengthHash);
 		}else{
-			BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(PathtoFile))));
+			coveredHash=readCoverage(chromLengthHash, PathtoFile);
 		}
-		
-		String line="";
-		HashMap <String,float[]>covValueHash=new HashMap<>();
-		float[] covValue;
-		HashMap <String,int[][]>numberOfCoveragePositionsHash=new HashMap<>();
-		int[][] numberOfCoveragePositions;
 		for(String chrom :chromLengthHash.keySet() ){
-			numberOfCoveragePositions=new int[2][chromLengthHash.get(chrom)];
-			covValue=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(numberOfCoveragePositions[0],0);
-			Arrays.fill(numberOfCoveragePositions[1],0);
-			Arrays.fill(covValue,0.0f);
-			numberOfCoveragePositionsHash.put(chrom, numberOfCoveragePositions.clone());
-			covValueHash.put(chrom, covValue.clone());
+			pileupCoverageProfiles.put(chrom, new PileupCoverageprofil(chrom, chromLengthHash.get(chrom), coveredHash.get(chrom), before,after,calculateAlwaysOnCompleteSeq));
 		}
 		
-		while ((line = BR.readLine()) != null){
-			String[] splitLine2=line.split("\t");
-			String chrom=splitLine2[0];
-			covValue=covValueHash.get(chrom);
-			covValue[Integer.parseInt(splitLine2[1])-1]=Float.parseFloat(splitLine2[2]);
-			covValueHash.put(chrom,covValue);
+	}
+	
+	/**
+	 * Reads the covered positions of all chromosomes in <code>chromLengthHash</code> from a
+	 * normalized pileup output.
+	 */
+	static HashMap<String, PositionMask> readCoverage(HashMap<String, Integer> chromLengthHash,String PathtoFile) throws Exception {
+		TsvReader BR=TsvReader.open(PathtoFile, true);
+		
+		String chrom="";
+		HashMap <String,PositionMask>coveredHash=new HashMap<>();
+		PositionMask covered=null;
+		for(String c :chromLengthHash.keySet() ){
+			coveredHash.put(c, new PositionMask(chromLengthHash.get(c)));
 		}
-		BR.close();
-		for(String chrom :chromLengthHash.keySet() ){
-			numberOfCoveragePositions=numberOfCoveragePositionsHash.get(chrom);
-			covValue=covValueHash.get(chrom);
-			int chromLength=chromLengthHash.get(chrom);
-			//calculate number of coverage positions on complete promotor
-			if(calculateAlwaysOnCompleteSeq){
-				int tempNumberOfCoveragePositions=0;
-				for(int i=0;i<chromLength;i++){
-					if(covValue[i]>0.0f){
-						tempNumberOfCoveragePositions++;
-					}
-				}
-				Arrays.fill(numberOfCoveragePositions[0], tempNumberOfCoveragePositions);
-				Arrays.fill(numberOfCoveragePositions[1], tempNumberOfCoveragePositions);
-				
-			}else{ //calculate number of coverage positions in defined area surround binding side
-				int lastPos=chromLengthHash.get(chrom)-1;
-				boolean isFirst=true;
-				for(int i=0;i<chromLength;i++){
-					int windowStart=((i-before<0)?0:(i-before));
-					int windowend=((i+after>lastPos)?lastPos:(i+after));
-					
-					if(isFirst){
-						for(int s=windowStart;s<=windowend;s++){
-							if(covValue[s]>0.0f){
-								numberOfCoveragePositions[0][i]++;
-							}
-						}
-					}else{
-						if(covValue[windowStart]>0.0f){
-							numberOfCoveragePositions[0][i]--;
-						}
-						if(covValue[windowend-1]>0.0f){
-							numberOfCoveragePositions[0][i]++;
-						}
-					}	
-				}
-				
-				isFirst=true;
-				for(int i=0;i<chromLength;i++){
-					int windowStart=((i-after<0)?0:(i-after));
-					int windowend=((i+before>lastPos)?lastPos:(i+before));
-					
-					if(isFirst){
-						for(int s=windowStart;s<=windowend;s++){
-							if(covValue[s]>0.0f){
-								numberOfCoveragePositions[1][i]++;
-							}
-						}
-					}else{
-						if(covValue[windowStart]>0.0f){
-							numberOfCoveragePositions[1][i]--;
-						}
-						if(covValue[windowend-1]>0.0f){
-							numberOfCoveragePositions[1][i]++;
-						}
-					}	
-				}
+		
+		while (BR.next()){
+			if(!BR.fieldEquals(0, chrom)){
+				chrom=BR.getString(0);
+				covered=coveredHash.get(chrom);
 			}
-			
-			numberOfCoveragePositionsHash.put(chrom, numberOfCoveragePositions);
-			pileupCoverageProfiles.put(chrom, new PileupCoverageprofil(chrom, chromLengthHash.get(chrom), numberOfCoveragePositionsHash.get(chrom), before,after,calculateAlwaysOnCompleteSeq));
+			int pos=BR.getInt(1)-1;
+			if(covered==null || pos<0 || pos>=covered.getLength()){
+				BR.close();
+				throw new Exception("Position "+(pos+1)+" on "+chrom+" not in the genome in "+PathtoFile);
+			}
+			covered.set(pos, BR.getFloat(2)>0.0f);
 		}
-		
+		BR.close();
+		for(String c :chromLengthHash.keySet() ){
+			coveredHash.get(c).build();
+		}
+		return coveredHash;
 	}
 	
 	public PileupCoverageprofilHashMap(String faiPath,String PathtoFile, int before,int after,boolean calculateAlwaysOnCompleteSeq) throws Exception {
+		this(readFai(faiPath),PathtoFile,before,after,calculateAlwaysOnCompleteSeq);
+	}
+	
+	private static HashMap<String, Integer> readFai(String faiPath) throws Exception {
 		HashMap<String, Integer> chromLengthHash=new HashMap<>();
 		
 		BufferedReader readFai = new BufferedReader(new FileReader(faiPath));
@@ -130,95 +84,7 @@ public class PileupCoverageprofilHashMap {
 			
 		}
 		readFai.close();
-		
-		BufferedReader BR=new BufferedReader(new InputStreamReader(new FileInputStream(new File(PathtoFile))));
-		line="";
-		HashMap <String,float[]>covValueHash=new HashMap<>();
-		float[] covValue;
-		HashMap <String,int[][]>numberOfCoveragePositionsHash=new HashMap<>();
-		int[][] numberOfCoveragePositions;
-		for(String chrom :chromLengthHash.keySet() ){
-			numberOfCoveragePositions=new int[2][chromLengthHash.get(chrom)];
-			covValue=new float[chromLengthHash.get(chrom)];
-			Arrays.fill(numberOfCoveragePositions[0],0);
-			Arrays.fill(numberOfCoveragePositions[1],0);
-			Arrays.fill(covValue,0.0f);
-			numberOfCoveragePositionsHash.put(chrom, numberOfCoveragePositions.clone());
-			covValueHash.put(chrom, covValue.clone());
-		}
-		
-		while ((line = BR.readLine()) != null){
-			String[] splitLine2=line.split("\t");
-			String chrom=splitLine2[0];
-			covValue=covValueHash.get(chrom);
-			covValue[Integer.parseInt(splitLine2[1])-1]=Float.parseFloat(splitLine2[2]);
-			covValueHash.put(chrom,covValue);
-		}
-		BR.close();
-		for(String chrom :chromLengthHash.keySet() ){
-			numberOfCoveragePositions=numberOfCoveragePositionsHash.get(chrom);
-			covValue=covValueHash.get(chrom);
-			chromLength=chromLengthHash.get(chrom);
-			//calculate number of coverage positions on complete promotor
-			if(calculateAlwaysOnCompleteSeq){
-				int tempNumberOfCoveragePositions=0;
-				for(int i=0;i<chromLength;i++){
-					if(covValue[i]>0.0f){
-						tempNumberOfCoveragePositions++;
-					}
-				}
-				Arrays.fill(numberOfCoveragePositions[0], tempNumberOfCoveragePositions);
-				Arrays.fill(numberOfCoveragePositions[1], tempNumberOfCoveragePositions);
-				
-			}else{ //calculate number of coverage positions in defined area surround binding side
-				int lastPos=chromLengthHash.get(chrom)-1;
-				boolean isFirst=true;
-				for(int i=0;i<chromLength;i++){
-					int windowStart=((i-before<0)?0:(i-before));
-					int windowend=((i+after>lastPos)?lastPos:(i+after));
-					
-					if(isFirst){
-						for(int s=windowStart;s<=windowend;s++){
-							if(covValue[s]>0.0f){
-								numberOfCoveragePositions[0][i]++;
-							}
-						}
-					}else{
-						if(covValue[windowStart]>0.0f){
-							numberOfCoveragePositions[0][i]--;
-						}
-						if(covValue[windowend-1]>0.0f){
-							numberOfCoveragePositions[0][i]++;
-						}
-					}	
-				}
-				
-				isFirst=true;
-				for(int i=0;i<chromLength;i++){
-					int windowStart=((i-after<0)?0:(i-after));
-					int windowend=((i+before>lastPos)?lastPos:(i+before));
-					
-					if(isFirst){
-						for(int s=windowStart;s<=windowend;s++){
-							if(covValue[s]>0.0f){
-								numberOfCoveragePositions[1][i]++;
-							}
-						}
-					}else{
-						if(covValue[windowStart]>0.0f){
-							numberOfCoveragePositions[1][i]--;
-						}
-						if(covValue[windowend-1]>0.0f){
-							numberOfCoveragePositions[1][i]++;
-						}
-					}	
-				}
-			}
-			
-			numberOfCoveragePositionsHash.put(chrom, numberOfCoveragePositions);
-			pileupCoverageProfiles.put(chrom, new PileupCoverageprofil(chrom, chromLengthHash.get(chrom), numberOfCoveragePositionsHash.get(chrom), before,after,calculateAlwaysOnCompleteSeq));
-		}
-		
+		return chromLengthHash;
 	}
 	
 	public PileupCoverageprofil getPileupCoverageprofil(String chrom){
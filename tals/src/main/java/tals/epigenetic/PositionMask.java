@@ -0,0 +1,150 @@
+package tals.epigenetic;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Set of positions of one chromosome, stored as a bitset with one bit per position and a rank
+ * index of the number of positions before every block of {@link #BLOCK} words. The number of
+ * positions in any interval is computed from the rank index and at most {@link #BLOCK} popcounts.
+ * <br>
+ * Positions are set and cleared while reading a track, the rank index is computed once by
+ * {@link #build()} before the first query. Masks mapped from an {@link EpigeneticTrackFile} come
+ * with their rank index and are read-only.
+ */
+public class PositionMask {
+
+	private static final int BLOCK = 8;
+
+	private final int length;
+	private final LongBuffer words;
+	private IntBuffer ranks;
+	private int total;
+
+	public PositionMask(int length) {
+		this(length, LongBuffer.allocate(getNumberOfWords(length)), null, 0);
+	}
+
+	PositionMask(int length, LongBuffer words, IntBuffer ranks, int total) {
+		if(words.limit()!=getNumberOfWords(length) || (ranks!=null && ranks.limit()!=getNumberOfBlocks(length))){
+			throw new IllegalArgumentException("Wrong number of words or ranks for length "+length);
+		}
+		this.length = length;
+		this.words = words;
+		this.ranks = ranks;
+		this.total = total;
+	}
+
+	static int getNumberOfWords(int length) {
+		return (length+63)>>>6;
+	}
+
+	static int getNumberOfBlocks(int length) {
+		return (getNumberOfWords(length)+BLOCK-1)/BLOCK;
+	}
+
+	LongBuffer getWords() {
+		return words.duplicate();
+	}
+
+	IntBuffer getRanks() {
+		return ranks.duplicate();
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Sets the positions <code>from</code> (inclusive) to <code>to</code> (exclusive) if
+	 * <code>value</code> is <code>true</code> and clears them otherwise.
+	 */
+	public void set(int from, int to, boolean value) {
+		if(from<0 || to>length){
+			throw new IndexOutOfBoundsException("Positions "+from+" to "+to+" not in 0 to "+length);
+		}
+		if(from>=to){
+			return;
+		}
+		ranks=null;
+		int first=from>>>6;
+		int last=(to-1)>>>6;
+		long firstMask=-1L<<from;
+		long lastMask=-1L>>>-to;
+		if(first==last){
+			apply(first, firstMask & lastMask, value);
+		}else{
+			apply(first, firstMask, value);
+			for(int w=first+1;w<last;w++){
+				words.put(w, value ? -1L : 0L);
+			}
+			apply(last, lastMask, value);
+		}
+	}
+
+	public void set(int pos, boolean value) {
+		set(pos, pos+1, value);
+	}
+
+	private void apply(int w, long mask, boolean value) {
+		if(value){
+			words.put(w, words.get(w) | mask);
+		}else{
+			words.put(w, words.get(w) & ~mask);
+		}
+	}
+
+	/**
+	 * Computes the rank index. Must be called after the last change and before the first query.
+	 */
+	public PositionMask build() {
+		int[] temp=new int[getNumberOfBlocks(length)];
+		int sum=0;
+		for(int w=0;w<words.limit();w++){
+			if(w%BLOCK==0){
+				temp[w/BLOCK]=sum;
+			}
+			sum+=Long.bitCount(words.get(w));
+		}
+		total=sum;
+		ranks=IntBuffer.wrap(temp);
+		return this;
+	}
+
+	public boolean get(int pos) {
+		return (words.get(pos>>>6) & (1L<<pos))!=0;
+	}
+
+	/**
+	 * Returns the number of positions before <code>pos</code>.
+	 */
+	public int rank(int pos) {
+		int w=pos>>>6;
+		if(w>=words.limit()){
+			return total;
+		}
+		int r=ranks.get(w/BLOCK);
+		for(int i=w-w%BLOCK;i<w;i++){
+			r+=Long.bitCount(words.get(i));
+		}
+		return r+Long.bitCount(words.get(w) & ((1L<<pos)-1L));
+	}
+
+	/**
+	 * Returns the number of positions in the window <code>[pos-before, pos+after]</code>, clipped at
+	 * the ends of the chromosome.
+	 */
+	public int count(int pos, int before, int after) {
+		int from=Math.max(0, pos-before);
+		int to=Math.min(length, pos+after+1);
+		return from<to ? rank(to)-rank(from) : 0;
+	}
+
+	/**
+	 * Returns the number of all positions.
+	 */
+	public int count() {
+		return total;
+	}
+
+}
@@ -0,0 +1,270 @@
+package tals.epigenetic;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Join of the promoter regions of a promoter FastA file with a track that is streamed from a file.
+ * The regions are taken from the headers, like <code>&gt;gene ... chrom:start-end:strand</code>, and
+ * sorted by chromosome and start. For each record of the track, {@link #find(String, int, int)}
+ * returns the regions overlapping it. If the track is sorted by position within each chromosome,
+ * the regions are found by a sweep line, otherwise by binary search.
+ * <br>
+ * The output lines of each region are collected by {@link #add(int, int, String)} and written in
+ * the order of the regions in the FastA file by {@link #write(PrintStream)}.
+ */
+public class PromoterJoin {
+
+	private final String[] genes;
+	private final String[] chroms;
+	private final int[] starts;
+	private final int[] ends;
+	private final boolean[] forward;
+
+	//regions sorted by chromosome and start, with the maximum end of all regions up to each index
+	private final int[] order;
+	private final int[] sortedFrom;
+	private final int[] sortedTo;
+	private final int[] maxTo;
+	private final HashMap<String, int[]> chromRanges = new HashMap<>();
+
+	private String chrom = null;
+	private int lo, hi, cursor;
+	private int lastTo;
+	private int[] found = new int[16];
+
+	private final ArrayList<String>[] lines;
+	private final int[][] keys;
+
+	/**
+	 * Creates a join for the given regions.
+	 *
+	 * @param startInclusive if the position <code>start</code> of a region <code>start-end</code>
+	 * belongs to the region, otherwise it covers the 1-based positions <code>start+1</code> to
+	 * <code>end</code>
+	 */
+	@SuppressWarnings("unchecked")
+	private PromoterJoin(String[] genes, String[] chroms, int[] starts, int[] ends, boolean[] forward, boolean startInclusive) {
+		this.genes = genes;
+		this.chroms = chroms;
+		this.starts = starts;
+		this.ends = ends;
+		this.forward = forward;
+		int n=genes.length;
+
+		Integer[] idx=new Integer[n];
+		for(int i=0;i<n;i++){
+			idx[i]=i;
+		}
+		Arrays.sort(idx, (a,b) -> {
+			int c=chroms[a].compareTo(chroms[b]);
+			return c!=0 ? c : Integer.compare(starts[a], starts[b]);
+		});
+		order=new int[n];
+		sortedFrom=new int[n];
+		sortedTo=new int[n];
+		maxTo=new int[n];
+		for(int i=0;i<n;i++){
+			int r=idx[i];
+			order[i]=r;
+			sortedFrom[i]=startInclusive ? starts[r] : starts[r]+1;
+			sortedTo[i]=ends[r];
+			if(i==0 || !chroms[r].equals(chroms[order[i-1]])){
+				chromRanges.put(chroms[r], new int[]{i,i});
+				maxTo[i]=sortedTo[i];
+			}else{
+				maxTo[i]=Math.max(maxTo[i-1], sortedTo[i]);
+			}
+			chromRanges.get(chroms[r])[1]=i+1;
+		}
+
+		lines=new ArrayList[n];
+		keys=new int[n][];
+	}
+
+	/**
+	 * Reads the regions from the headers of a promoter FastA file.
+	 *
+	 * @param startInclusive if the position <code>start</code> of a region <code>start-end</code>
+	 * belongs to the region, otherwise it covers the 1-based positions <code>start+1</code> to
+	 * <code>end</code>
+	 */
+	public static PromoterJoin read(String promotorFasta, boolean startInclusive) throws IOException {
+		ArrayList<String> genes=new ArrayList<>();
+		ArrayList<String> chroms=new ArrayList<>();
+		ArrayList<Integer> starts=new ArrayList<>();
+		ArrayList<Integer> ends=new ArrayList<>();
+		ArrayList<Boolean> forward=new ArrayList<>();
+
+		BufferedReader FA=new BufferedReader(new FileReader(promotorFasta));
+		String line="";
+		String[] splitHeader;
+		String[] splitArea;
+		String[] splitPos;
+		while ((line = FA.readLine()) != null){
+			if(line.startsWith(">")){
+				splitHeader=line.split(" ");
+				splitArea=splitHeader[2].split(":");
+				splitPos=splitArea[1].split("-");
+				String gene=line.substring(1).trim();
+				int idx = gene.indexOf(" ");
+				if (idx > 0) {
+					gene = gene.substring(0, idx);
+				}
+				genes.add(gene);
+				chroms.add(splitArea[0]);
+				starts.add(Integer.parseInt(splitPos[0]));
+				ends.add(Integer.parseInt(splitPos[1]));
+				forward.add(splitArea.length<3 || splitArea[2].equals("+"));
+			}
+		}
+		FA.close();
+
+		int n=genes.size();
+		int[] s=new int[n];
+		int[] e=new int[n];
+		boolean[] f=new boolean[n];
+		for(int i=0;i<n;i++){
+			s[i]=starts.get(i);
+			e[i]=ends.get(i);
+			f[i]=forward.get(i);
+		}
+		return new PromoterJoin(genes.toArray(new String[0]), chroms.toArray(new String[0]), s, e, f, startInclusive);
+	}
+
+	public int getNumberOfRegions() {
+		return genes.length;
+	}
+
+	public String getGene(int region) {
+		return genes[region];
+	}
+
+	public int getStart(int region) {
+		return starts[region];
+	}
+
+	public int getEnd(int region) {
+		return ends[region];
+	}
+
+	public boolean isForward(int region) {
+		return forward[region];
+	}
+
+	/**
+	 * Finds the regions overlapping the positions <code>from</code> to <code>to</code> (both
+	 * inclusive) on <code>chrom</code>, which are then returned by {@link #getFound(int)}. Runs in
+	 * amortized constant time plus the number of regions found if <code>to</code> does not decrease
+	 * between calls for the same chromosome.
+	 *
+	 * @return the number of regions found
+	 */
+	public int find(String chrom, int from, int to) {
+		if(chrom!=this.chrom && !chrom.equals(this.chrom)){
+			this.chrom=chrom;
+			int[] range=chromRanges.get(chrom);
+			lo=range==null ? 0 : range[0];
+			hi=range==null ? 0 : range[1];
+			cursor=lo;
+		}else if(to<lastTo){
+			//not sorted, start again
+			cursor=lo;
+		}
+		lastTo=to;
+		if(cursor<hi && sortedFrom[cursor]<=to){
+			if(hi-cursor>64 && sortedFrom[cursor+64]<=to){
+				//jump over many regions at once
+				int idx=Arrays.binarySearch(sortedFrom, cursor, hi, to+1);
+				cursor=idx<0 ? -idx-1 : idx;
+				while(cursor>lo && sortedFrom[cursor-1]>to){
+					cursor--;
+				}
+			}
+			while(cursor<hi && sortedFrom[cursor]<=to){
+				cursor++;
+			}
+		}
+		//regions before the cursor start before to, those with maxTo<from end before from
+		int n=0;
+		for(int i=cursor-1;i>=lo && maxTo[i]>=from;i--){
+			if(sortedTo[i]>=from){
+				if(n==found.length){
+					found=Arrays.copyOf(found, 2*n);
+				}
+				found[n++]=order[i];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the <code>i</code>-th region found by the last call of
+	 * {@link #find(String, int, int)}.
+	 */
+	public int getFound(int i) {
+		return found[i];
+	}
+
+	/**
+	 * Adds an output line of <code>region</code>, which is sorted by <code>key</code> among the lines
+	 * of the region.
+	 */
+	public void add(int region, int key, String line) {
+		if(lines[region]==null){
+			lines[region]=new ArrayList<>();
+			keys[region]=new int[4];
+		}
+		int n=lines[region].size();
+		if(n==keys[region].length){
+			keys[region]=Arrays.copyOf(keys[region], 2*n);
+		}
+		keys[region][n]=key;
+		lines[region].add(line);
+	}
+
+	/**
+	 * Writes the lines of all regions in the order of the FastA file and by their keys.
+	 */
+	public void write(PrintStream os_ps) {
+		for(int r=0;r<lines.length;r++){
+			if(lines[r]==null){
+				continue;
+			}
+			int n=lines[r].size();
+			int[] k=keys[r];
+			boolean ascending=true;
+			boolean descending=true;
+			for(int i=1;i<n;i++){
+				ascending&=k[i-1]<=k[i];
+				descending&=k[i-1]>k[i];
+			}
+			if(ascending){
+				for(int i=0;i<n;i++){
+					os_ps.print(lines[r].get(i)+"\n");
+				}
+			}else if(descending){
+				for(int i=n-1;i>=0;i--){
+					os_ps.print(lines[r].get(i)+"\n");
+				}
+			}else{
+				Integer[] idx=new Integer[n];
+				for(int i=0;i<n;i++){
+					idx[i]=i;
+				}
+				Arrays.sort(idx, (a,b) -> Integer.compare(k[a], k[b]));
+				for(int i=0;i<n;i++){
+					os_ps.print(lines[r].get(idx[i])+"\n");
+				}
+			}
+			lines[r]=null;
+			keys[r]=null;
+		}
+	}
+
+}
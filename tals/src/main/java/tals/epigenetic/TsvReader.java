@@ -0,0 +1,512 @@
+package tals.epigenetic;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader for tab-separated text files like Bismark coverage files, narrowPeak files or pileup
+ * outputs. It splits each line into fields within one large byte buffer and parses numbers directly
+ * from the bytes, so no Strings are created for fields that are only compared or parsed. Lines end
+ * with <code>'\n'</code> (a preceding <code>'\r'</code> is dropped) and the text must be ASCII.
+ * <br>
+ * Records are read by
+ * <pre>
+ * TsvReader reader=TsvReader.open(path);
+ * while(reader.next()){
+ * 	int pos=reader.getInt(1);
+ * 	...
+ * }
+ * reader.close();
+ * </pre>
+ */
+public class TsvReader implements Closeable {
+
+	private static final int BUFFER = 1<<20;
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0]=1;
+		for(int i=1;i<POW10.length;i++){
+			POW10[i]=POW10[i-1]*10;
+		}
+	}
+
+	private final InputStream in;
+	private byte[] buf = new byte[BUFFER];
+	private int limit;
+	private int pos;
+	private boolean eof;
+
+	private int lineStart;
+	private int lineEnd;
+	//the previous line is kept in the buffer, so the reader can go back to it once
+	private int prevStart = -1;
+	private int prevEnd;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int n;
+	private long lineNumber;
+
+	public TsvReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Opens the file at <code>path</code>, which is decompressed if it ends with <code>gz</code>.
+	 */
+	public static TsvReader open(String path) throws IOException {
+		return open(path, false);
+	}
+
+	/**
+	 * Opens the file at <code>path</code>, which is decompressed if it ends with <code>gz</code>. If
+	 * <code>background</code> is <code>true</code>, the file is decompressed on a separate thread
+	 * while the records are parsed.
+	 */
+	public static TsvReader open(String path, boolean background) throws IOException {
+		InputStream in=new FileInputStream(path);
+		if(path.endsWith("gz")){
+			in=new GZIPInputStream(in, 1<<16);
+			if(background){
+				in=new BackgroundInputStream(in);
+			}
+		}
+		return new TsvReader(in);
+	}
+
+	/**
+	 * Reads the next line and splits it into fields. At the end of the file, the current line is
+	 * kept.
+	 *
+	 * @return <code>false</code> at the end of the file
+	 */
+	public boolean next() throws IOException {
+		int from=pos;
+		while(true){
+			for(int i=from;i<limit;i++){
+				if(buf[i]=='\n'){
+					nextLine(pos, i);
+					pos=i+1;
+					return true;
+				}
+			}
+			if(eof){
+				if(pos<limit){
+					nextLine(pos, limit);
+					pos=limit;
+					return true;
+				}
+				return false;
+			}
+			from=limit;
+			from-=fill();
+		}
+	}
+
+	/**
+	 * Goes back to the previous line, so that the next call of {@link #next()} reads the current
+	 * line again. This is possible once after each call of {@link #next()} that returned
+	 * <code>true</code>, except for the first line.
+	 */
+	public void back() {
+		if(prevStart<0){
+			throw new IllegalStateException("No previous line");
+		}
+		pos=lineStart;
+		split(prevStart, prevEnd);
+		lineNumber-=2;
+		prevStart=-1;
+	}
+
+	private void nextLine(int start, int end) {
+		prevStart=lineNumber>0 ? lineStart : -1;
+		prevEnd=lineEnd;
+		split(start, end);
+	}
+
+	/**
+	 * Reads more bytes after moving the current line to the start of the buffer.
+	 *
+	 * @return the number of bytes the buffer has been moved by
+	 */
+	private int fill() throws IOException {
+		//the current line is kept, so the reader can go back to it
+		int shift=lineNumber>0 ? lineStart : pos;
+		if(shift>0){
+			System.arraycopy(buf, shift, buf, 0, limit-shift);
+			limit-=shift;
+			pos-=shift;
+			lineStart-=shift;
+			lineEnd-=shift;
+			for(int i=0;i<n;i++){
+				starts[i]-=shift;
+				ends[i]-=shift;
+			}
+		}
+		if(limit==buf.length){
+			buf=Arrays.copyOf(buf, 2*buf.length);
+		}
+		int r=in.read(buf, limit, buf.length-limit);
+		if(r<0){
+			eof=true;
+		}else{
+			limit+=r;
+		}
+		return shift;
+	}
+
+	private void split(int start, int end) {
+		if(end>start && buf[end-1]=='\r'){
+			end--;
+		}
+		lineStart=start;
+		lineEnd=end;
+		lineNumber++;
+		n=0;
+		int s=start;
+		for(int i=start;i<end;i++){
+			if(buf[i]=='\t'){
+				add(s, i);
+				s=i+1;
+			}
+		}
+		add(s, end);
+	}
+
+	private void add(int start, int end) {
+		if(n==starts.length){
+			starts=Arrays.copyOf(starts, 2*n);
+			ends=Arrays.copyOf(ends, 2*n);
+		}
+		starts[n]=start;
+		ends[n]=end;
+		n++;
+	}
+
+	public int getNumberOfFields() {
+		return n;
+	}
+
+	/**
+	 * Returns the number of the current line, starting at 1.
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	public int getLength(int field) {
+		check(field);
+		return ends[field]-starts[field];
+	}
+
+	public String getLine() {
+		return new String(buf, lineStart, lineEnd-lineStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Writes the current line without its line break to <code>out</code>.
+	 */
+	public void writeLine(OutputStream out) throws IOException {
+		out.write(buf, lineStart, lineEnd-lineStart);
+	}
+
+	public String getString(int field) {
+		check(field);
+		return new String(buf, starts[field], ends[field]-starts[field], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Writes the bytes of <code>field</code> to <code>out</code>.
+	 */
+	public void writeField(int field, OutputStream out) throws IOException {
+		check(field);
+		out.write(buf, starts[field], ends[field]-starts[field]);
+	}
+
+	/**
+	 * Checks if <code>field</code> is <code>s</code>, e.g., the chromosome of the previous line.
+	 */
+	public boolean fieldEquals(int field, String s) {
+		check(field);
+		return ends[field]-starts[field]==s.length() && regionMatches(starts[field], s);
+	}
+
+	public boolean startsWith(int field, String prefix) {
+		check(field);
+		return ends[field]-starts[field]>=prefix.length() && regionMatches(starts[field], prefix);
+	}
+
+	private boolean regionMatches(int start, String s) {
+		for(int i=0;i<s.length();i++){
+			if(buf[start+i]!=s.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if <code>field</code> consists of digits after its first <code>from</code> characters,
+	 * and at least one.
+	 */
+	public boolean isDigits(int field, int from) {
+		check(field);
+		int s=starts[field]+from;
+		if(s>=ends[field]){
+			return false;
+		}
+		for(int i=s;i<ends[field];i++){
+			if(buf[i]<'0' || buf[i]>'9'){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getInt(int field) {
+		check(field);
+		int i=starts[field];
+		int e=ends[field];
+		boolean neg=false;
+		if(i<e && (buf[i]=='-' || buf[i]=='+')){
+			neg=buf[i]=='-';
+			i++;
+		}
+		if(i==e){
+			throw error(field);
+		}
+		long v=0;
+		for(;i<e;i++){
+			int d=buf[i]-'0';
+			if(d<0 || d>9){
+				throw error(field);
+			}
+			v=v*10+d;
+			if(v>(long)Integer.MAX_VALUE+1){
+				throw error(field);
+			}
+		}
+		v=neg ? -v : v;
+		if(v>Integer.MAX_VALUE){
+			throw error(field);
+		}
+		return (int)v;
+	}
+
+	/**
+	 * Parses <code>field</code> like {@link Double#parseDouble(String)}.
+	 */
+	public double getDouble(int field) {
+		check(field);
+		double d=parseSimple(field);
+		if(Double.isNaN(d)){
+			try{
+				return Double.parseDouble(getString(field));
+			}catch(NumberFormatException e){
+				throw error(field);
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Parses <code>field</code> like {@link Float#parseFloat(String)}.
+	 */
+	public float getFloat(int field) {
+		check(field);
+		double d=parseSimple(field);
+		double abs=Math.abs(d);
+		//the double is rounded correctly, so rounding it to float is correct unless it lies exactly between two floats
+		if(d==0 || (abs>=Float.MIN_NORMAL && abs<=Float.MAX_VALUE && (Double.doubleToRawLongBits(d) & 0x1FFFFFFFL)!=0x10000000L)){
+			return (float)d;
+		}
+		try{
+			return Float.parseFloat(getString(field));
+		}catch(NumberFormatException e){
+			throw error(field);
+		}
+	}
+
+	/**
+	 * Parses decimal numbers with up to 18 digits and a decimal exponent of at most 22, which are
+	 * exactly rounded by a single multiplication or division of exact doubles. Returns
+	 * <code>NaN</code> for all other numbers.
+	 */
+	private double parseSimple(int field) {
+		int i=starts[field];
+		int e=ends[field];
+		boolean neg=false;
+		if(i<e && (buf[i]=='-' || buf[i]=='+')){
+			neg=buf[i]=='-';
+			i++;
+		}
+		long m=0;
+		int exp=0;
+		boolean any=false;
+		for(;i<e && buf[i]>='0' && buf[i]<='9';i++){
+			if(m>99999999999999999L){
+				return Double.NaN;
+			}
+			m=m*10+(buf[i]-'0');
+			any=true;
+		}
+		if(i<e && buf[i]=='.'){
+			i++;
+			for(;i<e && buf[i]>='0' && buf[i]<='9';i++){
+				if(m>99999999999999999L){
+					return Double.NaN;
+				}
+				m=m*10+(buf[i]-'0');
+				exp--;
+				any=true;
+			}
+		}
+		if(!any){
+			return Double.NaN;
+		}
+		if(i<e && (buf[i]=='e' || buf[i]=='E')){
+			i++;
+			boolean negExp=false;
+			if(i<e && (buf[i]=='-' || buf[i]=='+')){
+				negExp=buf[i]=='-';
+				i++;
+			}
+			int x=0;
+			boolean anyExp=false;
+			for(;i<e && buf[i]>='0' && buf[i]<='9' && x<1000;i++){
+				x=x*10+(buf[i]-'0');
+				anyExp=true;
+			}
+			if(!anyExp){
+				return Double.NaN;
+			}
+			exp+=negExp ? -x : x;
+		}
+		if(i!=e){
+			return Double.NaN;
+		}
+		double d;
+		if(m==0){
+			d=0;
+		}else if(m<(1L<<53) && exp>=-22 && exp<=22){
+			d=exp<0 ? m/POW10[-exp] : m*POW10[exp];
+		}else{
+			return Double.NaN;
+		}
+		return neg ? -d : d;
+	}
+
+	private void check(int field) {
+		if(field>=n){
+			throw new IllegalArgumentException("Line "+lineNumber+" has only "+n+" fields: "+getLine());
+		}
+	}
+
+	private NumberFormatException error(int field) {
+		return new NumberFormatException("For input \""+getString(field)+"\" in line "+lineNumber);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads a stream on a separate thread in chunks, which are handed over by a bounded queue.
+	 */
+	private static class BackgroundInputStream extends InputStream {
+
+		private static final int CHUNK = 1<<16;
+		private static final byte[] END = new byte[0];
+
+		private final ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(64);
+		private final Thread thread;
+		private volatile IOException error;
+		private byte[] chunk = new byte[0];
+		private int off = 0;
+		private boolean done = false;
+
+		private BackgroundInputStream(InputStream source) {
+			this.thread = new Thread(() -> run(source), "TsvReader");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		private void run(InputStream source) {
+			try{
+				int r;
+				do{
+					byte[] b=new byte[CHUNK];
+					r=source.readNBytes(b, 0, CHUNK);
+					if(r>0){
+						chunks.put(r<CHUNK ? Arrays.copyOf(b, r) : b);
+					}
+				}while(r==CHUNK);
+			}catch(IOException e){
+				error=e;
+			}catch(InterruptedException e){
+				return;
+			}finally{
+				try{
+					source.close();
+				}catch(IOException e){
+					if(error==null){
+						error=e;
+					}
+				}
+			}
+			try{
+				chunks.put(END);
+			}catch(InterruptedException e){
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int o, int len) throws IOException {
+			if(len==0){
+				return 0;
+			}
+			while(!done && off==chunk.length){
+				try{
+					chunk=chunks.take();
+				}catch(InterruptedException e){
+					throw new IOException(e);
+				}
+				off=0;
+				if(chunk==END){
+					done=true;
+					if(error!=null){
+						throw error;
+					}
+				}
+			}
+			if(done){
+				return -1;
+			}
+			int k=Math.min(len, chunk.length-off);
+			System.arraycopy(chunk, off, b, o, k);
+			off+=k;
+			return k;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one=new byte[1];
+			return read(one, 0, 1)<0 ? -1 : one[0]&0xFF;
+		}
+
+		@Override
+		public void close() throws IOException {
+			thread.interrupt();
+		}
+
+	}
+
+}
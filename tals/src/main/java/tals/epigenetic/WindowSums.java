@@ -0,0 +1,197 @@
+package tals.epigenetic;
+
+import java.util.Arrays;
+
+/**
+ * Sparse values of one chromosome, e.g. the coverage of a pileup, with prefix sums for the number,
+ * sum and mean of the values in any window of positions. Positions without a value count as zero.
+ * <br>
+ * A window query takes two binary searches, or amortized constant time with a {@link Cursor} if the
+ * windows move along the chromosome. Dense counts of covered positions are computed by
+ * {@link PositionMask}.
+ */
+public class WindowSums {
+
+	private final int[] positions;
+	private final double[] values;
+	//prefix[k] is the sum of the first k values
+	private final double[] prefix;
+
+	private WindowSums(int[] positions, double[] values) {
+		this.positions = positions;
+		this.values = values;
+		this.prefix = new double[values.length+1];
+		for(int k=0;k<values.length;k++){
+			prefix[k+1]=prefix[k]+values[k];
+		}
+	}
+
+	/**
+	 * Returns the number of positions with a value.
+	 */
+	public int size() {
+		return positions.length;
+	}
+
+	/**
+	 * Returns the <code>k</code>-th position with a value, in ascending order.
+	 */
+	public int getPosition(int k) {
+		return positions[k];
+	}
+
+	public double getValue(int k) {
+		return values[k];
+	}
+
+	/**
+	 * Returns the last position with a value, or <code>-1</code> if there is none.
+	 */
+	public int getLastPosition() {
+		return positions.length==0 ? -1 : positions[positions.length-1];
+	}
+
+	/**
+	 * Returns the index of the first position not smaller than <code>pos</code>.
+	 */
+	private int lower(int pos) {
+		int idx=Arrays.binarySearch(positions, pos);
+		return idx<0 ? -idx-1 : idx;
+	}
+
+	/**
+	 * Returns the number of positions with a value in <code>[from,to)</code>.
+	 */
+	public int count(int from, int to) {
+		return from<to ? lower(to)-lower(from) : 0;
+	}
+
+	/**
+	 * Returns the sum of the values in <code>[from,to)</code>.
+	 */
+	public double sum(int from, int to) {
+		return from<to ? prefix[lower(to)]-prefix[lower(from)] : 0;
+	}
+
+	/**
+	 * Returns the mean of the values in <code>[from,to)</code> over all positions of the window.
+	 */
+	public double mean(int from, int to) {
+		return from<to ? sum(from, to)/(to-from) : 0;
+	}
+
+	/**
+	 * Returns a cursor for windows moving along the chromosome.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Window queries that move the indexes of both ends of the previous window, so windows whose
+	 * ends do not decrease take amortized constant time each. Not thread-safe.
+	 */
+	public class Cursor {
+
+		private int from = Integer.MIN_VALUE;
+		private int to = Integer.MIN_VALUE;
+		private int lo = 0;
+		private int hi = 0;
+
+		private Cursor() {}
+
+		private void move(int from, int to) {
+			lo=move(lo, this.from, from);
+			hi=move(hi, this.to, to);
+			this.from=from;
+			this.to=to;
+		}
+
+		private int move(int idx, int last, int pos) {
+			if(pos<last){
+				return lower(pos);
+			}
+			while(idx<positions.length && positions[idx]<pos){
+				idx++;
+			}
+			return idx;
+		}
+
+		public int count(int from, int to) {
+			if(from>=to){
+				return 0;
+			}
+			move(from, to);
+			return hi-lo;
+		}
+
+		public double sum(int from, int to) {
+			if(from>=to){
+				return 0;
+			}
+			move(from, to);
+			return prefix[hi]-prefix[lo];
+		}
+
+		public double mean(int from, int to) {
+			return from<to ? sum(from, to)/(to-from) : 0;
+		}
+
+	}
+
+	/**
+	 * Collects the values of a chromosome in any order. A later value at the same position
+	 * replaces an earlier one.
+	 */
+	public static class Builder {
+
+		private int[] positions = new int[16];
+		private double[] values = new double[16];
+		private int n = 0;
+		private boolean sorted = true;
+
+		public void add(int pos, double value) {
+			if(n==positions.length){
+				positions=Arrays.copyOf(positions, 2*n);
+				values=Arrays.copyOf(values, 2*n);
+			}
+			if(n>0 && positions[n-1]>=pos){
+				sorted=false;
+			}
+			positions[n]=pos;
+			values[n]=value;
+			n++;
+		}
+
+		public WindowSums build() {
+			if(!sorted){
+				//sort by position, stable so that the last value of a position is kept
+				long[] keys=new long[n];
+				for(int i=0;i<n;i++){
+					keys[i]=((long)positions[i]<<32) | i;
+				}
+				Arrays.sort(keys);
+				int[] pos2=new int[n];
+				double[] val2=new double[n];
+				int m=0;
+				for(int i=0;i<n;i++){
+					int p=(int)(keys[i]>>32);
+					double v=values[(int)keys[i]];
+					if(m>0 && pos2[m-1]==p){
+						val2[m-1]=v;
+					}else{
+						pos2[m]=p;
+						val2[m]=v;
+						m++;
+					}
+				}
+				positions=pos2;
+				values=val2;
+				n=m;
+			}
+			return new WindowSums(Arrays.copyOf(positions, n), Arrays.copyOf(values, n));
+		}
+
+	}
+
+}